@@ -15,21 +15,18 @@ import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicLong;
 
 final class OpaNio2CopyOutputStream extends OutputStream {
 	private static final int INIT_BUFF_LEN = 1024 * 2;
@@ -139,16 +136,20 @@ final class OpaNio2CopyOutputStream extends OutputStream {
 	}
 }
 
-public class OpaNio2Client implements OpaClient {
+public class OpaNio2Client implements OpaClient, OpaBatch.Sender {
 	private final OpaClientConfig mConfig;
-	private final AtomicLong mCurrId = new AtomicLong();
-	private final Queue<CallbackSF<Object,OpaRpcError>> mMainCallbacks = new ConcurrentLinkedQueue<CallbackSF<Object,OpaRpcError>>();
+	private final CallbackRing mMainCallbacks;
+	private final PendingLimit mPendingLimit;
+	private final AsyncIdTable mAutoCallbacks;
 	private final Map<Object,CallbackSF<Object,OpaRpcError>> mAsyncCallbacks = new ConcurrentHashMap<Object,CallbackSF<Object,OpaRpcError>>();
 	private final OpaClientRecvState mRecvState;
 	private final ByteBuffer mRecvBuff;
 	private final OpaNio2CopyOutputStream mOut;
 	private final OpaSerializer mSerializer;
-	private final Queue<Request> mSerializeQueue = new LinkedList<Request>();
+	// only accessed while holding mOut's lock
+	private final RequestLanes mSerializeQueue;
+	private final int[] mLaneWeights;
+	private final OpaClient[] mLanes;
 	private final Semaphore mSendLock;
 	private final AsynchronousByteChannel mChan;
 	private boolean mAutoFlush = true;
@@ -167,7 +168,16 @@ public class OpaNio2Client implements OpaClient {
 		}
 		mChan = ch;
 		mConfig = cfg;
-		mRecvState = new OpaClientRecvState(mMainCallbacks, mAsyncCallbacks, cfg);
+		mLaneWeights = OpaClientUtils.laneWeights(cfg);
+		mLanes = new OpaClient[mLaneWeights.length];
+		for (int i = 0; i < mLanes.length; ++i) {
+			mLanes[i] = i == 0 ? this : new Lane(i);
+		}
+		mSerializeQueue = new RequestLanes(mLaneWeights, 16);
+		mPendingLimit = OpaClientUtils.newPendingLimit(cfg);
+		mAutoCallbacks = new AsyncIdTable(64, mPendingLimit, cfg.maxAutoId);
+		mMainCallbacks = new CallbackRing(256, mPendingLimit != null && mPendingLimit.isAdaptive());
+		mRecvState = new OpaClientRecvState(mMainCallbacks, mAutoCallbacks, mAsyncCallbacks, mPendingLimit, cfg);
 		mRecvBuff = ByteBuffer.allocate(cfg.recvBuffLen);
 		mOut = new OpaNio2CopyOutputStream(this, ch);
 		mSendLock = new Semaphore(cfg.sendQueueLen);
@@ -175,6 +185,14 @@ public class OpaNio2Client implements OpaClient {
 		mChan.read(mRecvBuff, this, READCH);
 	}
 
+	/**
+	 * @return the current limit on pending responses and the response times used to adjust it; null if
+	 *         neither maxPendingResponses nor adaptivePendingLimit is configured
+	 */
+	public OpaPipelineMetrics getPipelineMetrics() {
+		return mPendingLimit != null ? mPendingLimit.getMetrics() : null;
+	}
+
 	public boolean setAutoFlush(boolean onOrOff) {
 		boolean prevVal = mAutoFlush;
 		mAutoFlush = onOrOff;
@@ -192,7 +210,22 @@ public class OpaNio2Client implements OpaClient {
 						break;
 					}
 					mSendLock.release();
-					OpaClientUtils.writeRequest(mSerializer, r.command, r.args, r.asyncId);
+					if (OpaDeadline.isDone(r.cb)) {
+						// timed out or cancelled before being sent
+						if (r.usesMainCallbacks()) {
+							OpaClientUtils.releaseMain(mPendingLimit, r.cb, null);
+						}
+						if (r.autoId > 0) {
+							// no response will free the cancelled id
+							mAutoCallbacks.remove(r.autoId);
+						}
+						continue;
+					}
+					if (r.usesMainCallbacks()) {
+						// callback is added when the request is written because lanes can reorder queued requests
+						mMainCallbacks.add(r.cb);
+					}
+					OpaClientUtils.writeRequest(mSerializer, r);
 				}
 			} catch (Exception e) {
 				OpaClientUtils.handleException(mConfig.clientErrorHandler, e, null);
@@ -201,10 +234,28 @@ public class OpaNio2Client implements OpaClient {
 		}
 	}
 
-	private void sendRequest(CharSequence cmd, Iterator<?> args, Object id, CallbackSF<Object,OpaRpcError> cb) {
+	// batch is null unless sending a batch; autoId is 0 unless the id is from mAutoCallbacks;
+	// a Request is only allocated if it must be queued
+	private void sendRequest(int lane, CharSequence cmd, Iterator<?> args, Object id, long autoId, CallbackSF<Object,OpaRpcError> cb, OpaBatch batch) {
+		boolean isMain = id == null && autoId == 0;
+		if (isMain) {
+			OpaClientUtils.acquireMain(mPendingLimit, cb, batch);
+		}
 		try {
-			mSendLock.acquire();
+			if (mConfig.failWhenFull) {
+				if (!mSendLock.tryAcquire()) {
+					if (isMain) {
+						OpaClientUtils.releaseMain(mPendingLimit, cb, batch);
+					}
+					throw new RejectedExecutionException("send queue is full");
+				}
+			} else {
+				mSendLock.acquire();
+			}
 		} catch (InterruptedException e) {
+			if (isMain) {
+				OpaClientUtils.releaseMain(mPendingLimit, cb, batch);
+			}
 			Thread.currentThread().interrupt();
 			// TODO: create an Opatomic-specific exception class to use here rather than a wrapped RuntimeException?
 			throw new RuntimeException(e);
@@ -213,21 +264,31 @@ public class OpaNio2Client implements OpaClient {
 		synchronized (mOut) {
 			if (mClosed) {
 				mSendLock.release();
+				if (isMain) {
+					OpaClientUtils.releaseMain(mPendingLimit, cb, batch);
+				}
 				// TODO: invoke callback rather than throw?
 				throw new IllegalStateException("closed");
 			}
 			try {
-				if (id == null) {
-					// note: adding to mMainCallbacks must be inside synchronized lock block to make sure the request is serialized at same time
-					//       it was added to mMainCallbacks. Otherwise, another request could be serialized in between the following things
-					//       happening: (1) this request added to queue and (2) this request being serialized (or added to serialize queue).
-					mMainCallbacks.add(cb);
-				}
 				if (mOut.isWriteOutstanding()) {
-					mSerializeQueue.add(new Request(cmd, args, id, cb));
+					mSerializeQueue.add(OpaClientUtils.newRequest(lane, cmd, args, id, autoId, cb, batch));
 					addedToQueue = true;
 				} else {
-					OpaClientUtils.writeRequest(mSerializer, cmd, args, id);
+					if (isMain) {
+						// note: adding to mMainCallbacks must be inside synchronized lock block to make sure the request is serialized at same time
+						//       it was added to mMainCallbacks. Otherwise, another request could be serialized in between the following things
+						//       happening: (1) this request added to mMainCallbacks and (2) this request being serialized. Queued
+						//       requests are added to mMainCallbacks when they are serialized (see flush())
+						mMainCallbacks.add(cb);
+					}
+					if (batch != null) {
+						batch.writeTo(mSerializer);
+					} else if (autoId > 0) {
+						OpaClientUtils.writeRequest(mSerializer, cmd, args, autoId);
+					} else {
+						OpaClientUtils.writeRequest(mSerializer, cmd, args, id);
+					}
 					if (mAutoFlush && !mOut.isWriteOutstanding()) {
 						mSerializer.flush();
 					}
@@ -245,23 +306,37 @@ public class OpaNio2Client implements OpaClient {
 
 	@Override
 	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
-		sendRequest(cmd, args, cb == null ? Boolean.FALSE : null, cb);
+		call(0, cmd, args, cb);
+	}
+
+	private void call(int lane, CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb != null && mConfig.autoIdCalls) {
+			callA(lane, cmd, args, cb);
+			return;
+		}
+		sendRequest(lane, cmd, args, cb == null ? Boolean.FALSE : null, 0, cb, null);
 	}
 
 	@Override
 	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		callA(0, cmd, args, cb);
+	}
+
+	private void callA(int lane, CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
 		if (cb == null) {
 			throw new IllegalArgumentException("callback cannot be null");
 		}
-		Long id = mCurrId.incrementAndGet();
-		mAsyncCallbacks.put(id, cb);
+		long id = mAutoCallbacks.put(cb);
+		if (cb instanceof OpaDeadline) {
+			((OpaDeadline) cb).setAsyncId(mAutoCallbacks, id);
+		}
 		boolean removeCB = true;
 		try {
-			sendRequest(cmd, args, id, cb);
+			sendRequest(lane, cmd, args, null, id, cb, null);
 			removeCB = false;
 		} finally {
 			if (removeCB) {
-				mAsyncCallbacks.remove(id);
+				mAutoCallbacks.remove(id);
 			}
 		}
 	}
@@ -273,20 +348,83 @@ public class OpaNio2Client implements OpaClient {
 
 	@Override
 	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		callID(0, id, cmd, args);
+	}
+
+	private void callID(int lane, Object id, CharSequence cmd, Iterator<?> args) {
 		if (id == null) {
 			throw new IllegalArgumentException("id cannot be null");
 		}
-		sendRequest(cmd, args, id, null);
+		sendRequest(lane, cmd, args, id, 0, null, null);
 	}
 
-	private static void cleanupDeadRequests(OpaClientConfig cfg, Queue<Request> q) {
+	/**
+	 * Send all commands of a batch. The batch uses 1 entry in the send queue and its commands are
+	 * serialized contiguously. See OpaBatch
+	 * @param b  batch to send. Do not modify
+	 * @param cb Callback to invoke when all responses are received. Cannot be null.
+	 */
+	@Override
+	public void callBatch(OpaBatch b, OpaBatch.Callback cb) {
+		callBatch(0, b, cb);
+	}
+
+	private void callBatch(int lane, OpaBatch b, OpaBatch.Callback cb) {
+		sendRequest(lane, null, null, null, 0, b.newCollector(cb), b);
+	}
+
+	// sends requests through 1 of the send queue's priority lanes
+	private final class Lane implements OpaClient, OpaBatch.Sender {
+		private final int mLane;
+
+		Lane(int lane) {
+			mLane = lane;
+		}
+
+		@Override
+		public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			OpaNio2Client.this.call(mLane, cmd, args, cb);
+		}
+
+		@Override
+		public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			OpaNio2Client.this.callA(mLane, cmd, args, cb);
+		}
+
+		@Override
+		public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+			return OpaNio2Client.this.registerCB(id, cb);
+		}
+
+		@Override
+		public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+			OpaNio2Client.this.callID(mLane, id, cmd, args);
+		}
+
+		@Override
+		public void callBatch(OpaBatch b, OpaBatch.Callback cb) {
+			OpaNio2Client.this.callBatch(mLane, b, cb);
+		}
+	}
+
+	/**
+	 * Get a client that sends requests through a priority lane of this client's send queue (see
+	 * OpaClientConfig.priorityWeights). The returned client shares this client's connection and callbacks.
+	 * @param priority index of lane
+	 * @return client for the lane; this client if priority is 0
+	 */
+	public OpaClient withPriority(int priority) {
+		OpaClientUtils.checkPriority(mLaneWeights, priority);
+		return mLanes[priority];
+	}
+
+	private static void cleanupDeadRequests(OpaClientConfig cfg, RequestLanes q, AsyncIdTable autoCBs) {
 		while (true) {
 			Request r = q.poll();
 			if (r == null) {
 				break;
 			}
-			// TODO: use a different error to indicate that the client was closed but the request was never sent?
-			OpaClientUtils.invokeCallback(cfg, r.cb, null, OpaClientUtils.CLOSED_ERROR);
+			OpaClientUtils.invokeNotSent(cfg, r, autoCBs);
 		}
 	}
 
@@ -305,10 +443,13 @@ public class OpaNio2Client implements OpaClient {
 	private void closeInternal(boolean isRecv) {
 		synchronized (mOut) {
 			closeChan();
+			if (mPendingLimit != null) {
+				mPendingLimit.close();
+			}
 			mSendLock.release(mSerializeQueue.size());
-			cleanupDeadRequests(mConfig, mSerializeQueue);
+			cleanupDeadRequests(mConfig, mSerializeQueue, mAutoCallbacks);
 			if (isRecv) {
-				OpaClientUtils.respondWithClosedErr(mConfig, mMainCallbacks, mAsyncCallbacks);
+				OpaClientUtils.respondWithClosedErr(mConfig, mMainCallbacks, mAutoCallbacks, mAsyncCallbacks);
 			}
 		}
 	}
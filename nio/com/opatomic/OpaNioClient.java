@@ -15,10 +15,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
 
 final class OpaNioBufferedOutputStream extends OutputStream {
 	private final OpaNioSelector mSelector;
@@ -78,7 +75,7 @@ final class OpaNioBufferedOutputStream extends OutputStream {
 	}
 }
 
-public class OpaNioClient implements OpaClient {
+public class OpaNioClient implements OpaClient, OpaBatch.Sender {
 	private static final int RECVREADITS = 1;
 
 	private final OpaNioSelector.NioSelectionHandler mHandler = new OpaNioSelector.NioSelectionHandler() {
@@ -115,8 +112,9 @@ public class OpaNioClient implements OpaClient {
 	};
 
 	private final OpaClientConfig mConfig;
-	private final AtomicLong mCurrId = new AtomicLong();
-	private final Queue<CallbackSF<Object,OpaRpcError>> mMainCallbacks = new ConcurrentLinkedQueue<CallbackSF<Object,OpaRpcError>>();
+	private final CallbackRing mMainCallbacks;
+	private final PendingLimit mPendingLimit;
+	private final AsyncIdTable mAutoCallbacks;
 	private final Map<Object,CallbackSF<Object,OpaRpcError>> mAsyncCallbacks = new ConcurrentHashMap<Object,CallbackSF<Object,OpaRpcError>>();
 	private final OpaClientRecvState mRecvState;
 	private final ByteBuffer mRecvBuff;
@@ -125,13 +123,26 @@ public class OpaNioClient implements OpaClient {
 
 	private final OpaNioBufferedOutputStream mOut;
 	private final OpaSerializer mSerializer;
-	private final Queue<Request> mSerializeQueue = new ConcurrentLinkedQueue<Request>();
+	// only accessed while holding this object's lock
+	private final RequestLanes mSerializeQueue;
+	private final int[] mLaneWeights;
+	private final OpaClient[] mLanes;
 	private boolean mUseQueue = false;
 	private boolean mAutoFlush = true;
+	private boolean mClosed = false;
 
 	OpaNioClient(SocketChannel ch, OpaNioSelector sel, OpaClientConfig cfg) {
 		mConfig = cfg;
-		mRecvState = new OpaClientRecvState(mMainCallbacks, mAsyncCallbacks, cfg);
+		mLaneWeights = OpaClientUtils.laneWeights(cfg);
+		mLanes = new OpaClient[mLaneWeights.length];
+		for (int i = 0; i < mLanes.length; ++i) {
+			mLanes[i] = i == 0 ? this : new Lane(i);
+		}
+		mSerializeQueue = new RequestLanes(mLaneWeights, 16);
+		mPendingLimit = OpaClientUtils.newPendingLimit(cfg);
+		mAutoCallbacks = new AsyncIdTable(64, mPendingLimit, cfg.maxAutoId);
+		mMainCallbacks = new CallbackRing(256, mPendingLimit != null && mPendingLimit.isAdaptive());
+		mRecvState = new OpaClientRecvState(mMainCallbacks, mAutoCallbacks, mAsyncCallbacks, mPendingLimit, cfg);
 		mRecvBuff = ByteBuffer.allocate(cfg.recvBuffLen);
 		mOut = new OpaNioBufferedOutputStream(sel, ch, mHandler);
 		mSerializer = new OpaSerializer(mOut, cfg.sendBuffLen);
@@ -141,13 +152,32 @@ public class OpaNioClient implements OpaClient {
 	}
 
 	public synchronized void close() {
+		mClosed = true;
 		try {
 			mChan.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			//e.printStackTrace();
 		}
-		OpaClientUtils.respondWithClosedErr(mConfig, mMainCallbacks, mAsyncCallbacks);
+		if (mPendingLimit != null) {
+			mPendingLimit.close();
+		}
+		// responses are parsed on the selector thread, which is the only thread allowed to remove from mMainCallbacks
+		mSelector.execute(new Runnable() {
+			@Override
+			public void run() {
+				cleanupDeadRequests();
+				OpaClientUtils.respondWithClosedErr(mConfig, mMainCallbacks, mAutoCallbacks, mAsyncCallbacks);
+			}
+		});
+	}
+
+	/**
+	 * @return the current limit on pending responses and the response times used to adjust it; null if
+	 *         neither maxPendingResponses nor adaptivePendingLimit is configured
+	 */
+	public OpaPipelineMetrics getPipelineMetrics() {
+		return mPendingLimit != null ? mPendingLimit.getMetrics() : null;
 	}
 
 	public boolean setAutoFlush(boolean onOrOff) {
@@ -186,22 +216,66 @@ public class OpaNioClient implements OpaClient {
 					}
 					break;
 				}
-				OpaClientUtils.writeRequest(mSerializer, r.command, r.args, r.asyncId);
+				if (OpaDeadline.isDone(r.cb)) {
+					// timed out or cancelled before being sent
+					if (r.usesMainCallbacks()) {
+						OpaClientUtils.releaseMain(mPendingLimit, r.cb, null);
+					}
+					if (r.autoId > 0) {
+						// no response will free the cancelled id
+						mAutoCallbacks.remove(r.autoId);
+					}
+					continue;
+				}
+				if (r.usesMainCallbacks()) {
+					// callback is added when the request is written because lanes can reorder queued requests
+					mMainCallbacks.add(r.cb);
+				}
+				OpaClientUtils.writeRequest(mSerializer, r);
 			}
 		} catch (Exception e) {
 			close();
 		}
 	}
 
-	private synchronized void addRequest(CharSequence command, Iterator<?> args, Object id, CallbackSF<Object,OpaRpcError> cb) {
-		try {
-			if (id == null) {
-				mMainCallbacks.add(cb);
+	private synchronized void cleanupDeadRequests() {
+		Request r;
+		while ((r = mSerializeQueue.poll()) != null) {
+			OpaClientUtils.invokeNotSent(mConfig, r, mAutoCallbacks);
+		}
+	}
+
+	// batch is null unless sending a batch; autoId is 0 unless the id is from mAutoCallbacks
+	private void addRequest(int lane, CharSequence command, Iterator<?> args, Object id, long autoId, CallbackSF<Object,OpaRpcError> cb, OpaBatch batch) {
+		if (id == null && autoId == 0) {
+			// note: must not hold lock while waiting for responses
+			OpaClientUtils.acquireMain(mPendingLimit, cb, batch);
+		}
+		addRequestLocked(lane, command, args, id, autoId, cb, batch);
+	}
+
+	// a Request is only allocated if it must be queued
+	private synchronized void addRequestLocked(int lane, CharSequence command, Iterator<?> args, Object id, long autoId, CallbackSF<Object,OpaRpcError> cb, OpaBatch batch) {
+		if (mClosed) {
+			if (id == null && autoId == 0) {
+				OpaClientUtils.releaseMain(mPendingLimit, cb, batch);
 			}
+			throw new IllegalStateException("closed");
+		}
+		try {
 			if (mUseQueue) {
-				mSerializeQueue.add(new Request(command, args, id, cb));
+				mSerializeQueue.add(OpaClientUtils.newRequest(lane, command, args, id, autoId, cb, batch));
 			} else {
-				OpaClientUtils.writeRequest(mSerializer, command, args, id);
+				if (id == null && autoId == 0) {
+					mMainCallbacks.add(cb);
+				}
+				if (batch != null) {
+					batch.writeTo(mSerializer);
+				} else if (autoId > 0) {
+					OpaClientUtils.writeRequest(mSerializer, command, args, autoId);
+				} else {
+					OpaClientUtils.writeRequest(mSerializer, command, args, id);
+				}
 				if (mAutoFlush) {
 					flushInternal();
 				}
@@ -213,23 +287,37 @@ public class OpaNioClient implements OpaClient {
 
 	@Override
 	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
-		addRequest(cmd, args, cb == null ? Boolean.FALSE : null, cb);
+		call(0, cmd, args, cb);
+	}
+
+	private void call(int lane, CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb != null && mConfig.autoIdCalls) {
+			callA(lane, cmd, args, cb);
+			return;
+		}
+		addRequest(lane, cmd, args, cb == null ? Boolean.FALSE : null, 0, cb, null);
 	}
 
 	@Override
 	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		callA(0, cmd, args, cb);
+	}
+
+	private void callA(int lane, CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
 		if (cb == null) {
 			throw new IllegalArgumentException("callback cannot be null");
 		}
-		Long id = mCurrId.incrementAndGet();
-		mAsyncCallbacks.put(id, cb);
+		long id = mAutoCallbacks.put(cb);
+		if (cb instanceof OpaDeadline) {
+			((OpaDeadline) cb).setAsyncId(mAutoCallbacks, id);
+		}
 		boolean removeCB = true;
 		try {
-			addRequest(cmd, args, id, null);
+			addRequest(lane, cmd, args, null, id, cb, null);
 			removeCB = false;
 		} finally {
 			if (removeCB) {
-				mAsyncCallbacks.remove(id);
+				mAutoCallbacks.remove(id);
 			}
 		}
 	}
@@ -241,10 +329,73 @@ public class OpaNioClient implements OpaClient {
 
 	@Override
 	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		callID(0, id, cmd, args);
+	}
+
+	private void callID(int lane, Object id, CharSequence cmd, Iterator<?> args) {
 		if (id == null) {
 			throw new IllegalArgumentException("id cannot be null");
 		}
-		addRequest(cmd, args, id, null);
+		addRequest(lane, cmd, args, id, 0, null, null);
+	}
+
+	/**
+	 * Send all commands of a batch. The commands are serialized contiguously. See OpaBatch
+	 * @param b  batch to send. Do not modify
+	 * @param cb Callback to invoke when all responses are received. Cannot be null.
+	 */
+	@Override
+	public void callBatch(OpaBatch b, OpaBatch.Callback cb) {
+		callBatch(0, b, cb);
+	}
+
+	private void callBatch(int lane, OpaBatch b, OpaBatch.Callback cb) {
+		addRequest(lane, null, null, null, 0, b.newCollector(cb), b);
+	}
+
+	// sends requests through 1 of the send queue's priority lanes
+	private final class Lane implements OpaClient, OpaBatch.Sender {
+		private final int mLane;
+
+		Lane(int lane) {
+			mLane = lane;
+		}
+
+		@Override
+		public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			OpaNioClient.this.call(mLane, cmd, args, cb);
+		}
+
+		@Override
+		public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			OpaNioClient.this.callA(mLane, cmd, args, cb);
+		}
+
+		@Override
+		public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+			return OpaNioClient.this.registerCB(id, cb);
+		}
+
+		@Override
+		public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+			OpaNioClient.this.callID(mLane, id, cmd, args);
+		}
+
+		@Override
+		public void callBatch(OpaBatch b, OpaBatch.Callback cb) {
+			OpaNioClient.this.callBatch(mLane, b, cb);
+		}
+	}
+
+	/**
+	 * Get a client that sends requests through a priority lane of this client's send queue (see
+	 * OpaClientConfig.priorityWeights). The returned client shares this client's connection and callbacks.
+	 * @param priority index of lane
+	 * @return client for the lane; this client if priority is 0
+	 */
+	public OpaClient withPriority(int priority) {
+		OpaClientUtils.checkPriority(mLaneWeights, priority);
+		return mLanes[priority];
 	}
 
 
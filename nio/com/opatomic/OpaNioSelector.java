@@ -52,12 +52,21 @@ final class OpaNioSelector implements Runnable {
 		if (Thread.currentThread() == mLoopThread) {
 			registerInternal(sc, h, ops);
 		} else {
-			mWork.add(new Runnable() {
+			execute(new Runnable() {
 				@Override
 				public void run() {
 					registerInternal(sc, h, ops);
 				}
 			});
+		}
+	}
+
+	// run a task on the selector thread; can be called at any time from any thread
+	public void execute(Runnable r) {
+		if (Thread.currentThread() == mLoopThread) {
+			r.run();
+		} else {
+			mWork.add(r);
 			mSelector.wakeup();
 		}
 	}
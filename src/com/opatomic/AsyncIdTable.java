@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Callbacks for auto-generated async ids (see OpaClient.callA()). Ids are positive and increasing, unless a
+ * max id is set; then ids wrap around to 1 after the max id (or after the capacity if it is larger) so that
+ * they stay small. Each callback is stored in a slot at index (id % capacity); the slot also stores the id,
+ * so a response with an old id that maps to a reused slot is not matched. Ids that map to an occupied slot
+ * are skipped, so a pending id is never reused. If ids wrap, a cancelled id keeps its slot until its
+ * response arrives so that a late response is not matched with a later request. Adding or removing a
+ * callback does not box the id or allocate a node.
+ */
+final class AsyncIdTable {
+	// kept in the slot of a cancelled id until its response arrives
+	private static final CallbackSF<Object,OpaRpcError> CANCELLED = new CallbackSF<Object,OpaRpcError>() {
+		@Override
+		public void onSuccess(Object result) {}
+		@Override
+		public void onFailure(OpaRpcError error) {}
+	};
+
+	private CallbackSF<Object,OpaRpcError>[] mCallbacks;
+	private long[] mIds;
+	// time each callback was added; only used if limit is adaptive
+	private long[] mTimes;
+	private int mMask;
+	private int mCount;
+	private int mNumCancelled;
+	private long mNextId = 1;
+	private final long mMaxId;
+	private final PendingLimit mLimit;
+	private final boolean mTimed;
+
+	/**
+	 * @param initCapacity initial number of slots
+	 * @param limit        permit is acquired when a callback is added and released when it is removed. can be null
+	 */
+	AsyncIdTable(int initCapacity, PendingLimit limit) {
+		this(initCapacity, limit, 0);
+	}
+
+	/**
+	 * @param initCapacity initial number of slots
+	 * @param limit        permit is acquired when a callback is added and released when it is removed. can be null
+	 * @param maxId        ids wrap around to 1 after this id (or after the capacity if larger). 0 means ids do not wrap
+	 */
+	AsyncIdTable(int initCapacity, PendingLimit limit, long maxId) {
+		mMaxId = maxId;
+		mLimit = limit;
+		mTimed = limit != null && limit.isAdaptive();
+		int cap = 1;
+		while (cap < initCapacity) {
+			cap <<= 1;
+		}
+		alloc(cap);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void alloc(int cap) {
+		mCallbacks = new CallbackSF[cap];
+		mIds = new long[cap];
+		mTimes = new long[cap];
+		mMask = cap - 1;
+	}
+
+	private void grow() {
+		CallbackSF<Object,OpaRpcError>[] oldCallbacks = mCallbacks;
+		long[] oldIds = mIds;
+		long[] oldTimes = mTimes;
+		alloc(oldCallbacks.length * 2);
+		// ids that map to different slots at the old capacity will also map to different slots at a larger capacity
+		for (int i = 0; i < oldCallbacks.length; ++i) {
+			if (oldCallbacks[i] != null) {
+				int idx = (int) oldIds[i] & mMask;
+				mCallbacks[idx] = oldCallbacks[i];
+				mIds[idx] = oldIds[i];
+				mTimes[idx] = oldTimes[i];
+			}
+		}
+	}
+
+	/**
+	 * Store a callback with a newly generated id.
+	 * @return the id that must be sent with the request. Always greater than 0.
+	 */
+	long put(CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		if (mLimit != null) {
+			// note: must not hold lock while waiting for permit
+			mLimit.acquire(1);
+		}
+		return putInternal(cb);
+	}
+
+	private synchronized long putInternal(CallbackSF<Object,OpaRpcError> cb) {
+		// keep table at most half full so that few ids are skipped
+		if (mCount >= (mCallbacks.length >> 1)) {
+			grow();
+		}
+		while (true) {
+			long id = mNextId++;
+			if (mMaxId > 0 && mNextId > mMaxId && mNextId > mCallbacks.length) {
+				// ids 1 to max(maxId, capacity) map to every slot
+				mNextId = 1;
+			}
+			int idx = (int) id & mMask;
+			if (mCallbacks[idx] == null) {
+				mCallbacks[idx] = cb;
+				mIds[idx] = id;
+				if (mTimed) {
+					mTimes[idx] = System.nanoTime();
+				}
+				++mCount;
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Remove the callback for an id. Call when the response arrives or when the request will not be sent.
+	 * @return the callback or null if the id is not in the table (or was cancelled)
+	 */
+	CallbackSF<Object,OpaRpcError> remove(long id) {
+		long sent;
+		CallbackSF<Object,OpaRpcError> cb;
+		synchronized (this) {
+			int idx = (int) id & mMask;
+			cb = mCallbacks[idx];
+			if (cb == null || mIds[idx] != id) {
+				return null;
+			}
+			mCallbacks[idx] = null;
+			--mCount;
+			if (cb == CANCELLED) {
+				// permit was released by cancel()
+				--mNumCancelled;
+				return null;
+			}
+			sent = mTimes[idx];
+		}
+		if (mLimit != null) {
+			mLimit.release(1, mTimed ? System.nanoTime() - sent : -1);
+		}
+		return cb;
+	}
+
+	/**
+	 * Remove the callback of a request whose response can still arrive (ie, the request timed out). If ids
+	 * wrap, the id is not reused until remove() is called with the id or removeAll() is called.
+	 * @return the callback or null if the id is not in the table
+	 */
+	CallbackSF<Object,OpaRpcError> cancel(long id) {
+		long sent;
+		CallbackSF<Object,OpaRpcError> cb;
+		synchronized (this) {
+			int idx = (int) id & mMask;
+			cb = mCallbacks[idx];
+			if (cb == null || cb == CANCELLED || mIds[idx] != id) {
+				return null;
+			}
+			if (mMaxId > 0) {
+				mCallbacks[idx] = CANCELLED;
+				++mNumCancelled;
+			} else {
+				mCallbacks[idx] = null;
+				--mCount;
+			}
+			sent = mTimes[idx];
+		}
+		if (mLimit != null) {
+			mLimit.release(1, mTimed ? System.nanoTime() - sent : -1);
+		}
+		return cb;
+	}
+
+	/**
+	 * Remove all callbacks.
+	 * @return the callbacks that were in the table (not including cancelled callbacks)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	synchronized CallbackSF<Object,OpaRpcError>[] removeAll() {
+		CallbackSF<Object,OpaRpcError>[] cbs = new CallbackSF[mCount - mNumCancelled];
+		int num = 0;
+		for (int i = 0; i < mCallbacks.length && mCount > 0; ++i) {
+			if (mCallbacks[i] != null) {
+				if (mCallbacks[i] != CANCELLED) {
+					cbs[num++] = mCallbacks[i];
+				}
+				mCallbacks[i] = null;
+				--mCount;
+			}
+		}
+		mNumCancelled = 0;
+		return cbs;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * FIFO of callbacks waiting for responses that do not have an async id. Each callback is stored in the
+ * slot of its sequence number (the number of callbacks that were added before it). The ring is filled by
+ * one producer at a time (callers must serialize calls to add(), which the clients already do to keep
+ * callbacks in the same order as the serialized requests) and drained by a single consumer thread. Neither side allocates or
+ * uses a CAS; the array doubles in size when it is full.
+ */
+final class CallbackRing {
+	private static final AtomicLongFieldUpdater<CallbackRing> HEAD = AtomicLongFieldUpdater.newUpdater(CallbackRing.class, "mHead");
+	private static final AtomicLongFieldUpdater<CallbackRing> TAIL = AtomicLongFieldUpdater.newUpdater(CallbackRing.class, "mTail");
+
+	private static final class Slots {
+		final CallbackSF<Object,OpaRpcError>[] callbacks;
+		final long[] times;
+		final int mask;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Slots(int len, boolean timed) {
+			callbacks = new CallbackSF[len];
+			times = timed ? new long[len] : null;
+			mask = len - 1;
+		}
+	}
+
+	private volatile Slots mSlots;
+	// sequence number of next callback to remove; only modified by consumer
+	private volatile long mHead;
+	// sequence number of next callback to add; only modified by producer
+	private volatile long mTail;
+
+	CallbackRing(int initCapacity) {
+		this(initCapacity, false);
+	}
+
+	/**
+	 * @param initCapacity initial number of slots
+	 * @param timed        whether to record the time each callback is added (see headTime())
+	 */
+	CallbackRing(int initCapacity, boolean timed) {
+		int cap = 1;
+		while (cap < initCapacity) {
+			cap <<= 1;
+		}
+		mSlots = new Slots(cap, timed);
+	}
+
+	private Slots grow(Slots s, long head, long tail) {
+		Slots s2 = new Slots(s.callbacks.length * 2, s.times != null);
+		// consumer may be removing callbacks while they are copied. Copies of removed callbacks are never read
+		// because consumer will not read any sequence number before mHead
+		for (long seq = head; seq < tail; ++seq) {
+			int idx = (int) seq & s.mask;
+			int idx2 = (int) seq & s2.mask;
+			s2.callbacks[idx2] = s.callbacks[idx];
+			if (s.times != null) {
+				s2.times[idx2] = s.times[idx];
+			}
+		}
+		mSlots = s2;
+		return s2;
+	}
+
+	/**
+	 * Add a callback. Must not be called by more than 1 thread at a time.
+	 */
+	void add(CallbackSF<Object,OpaRpcError> cb) {
+		Slots s = mSlots;
+		long tail = mTail;
+		long head = mHead;
+		if (tail - head >= s.callbacks.length) {
+			s = grow(s, head, tail);
+		}
+		int idx = (int) tail & s.mask;
+		s.callbacks[idx] = cb;
+		if (s.times != null) {
+			s.times[idx] = System.nanoTime();
+		}
+		// publish callback to consumer
+		TAIL.lazySet(this, tail + 1);
+	}
+
+	/**
+	 * @return the oldest callback or null if there are no callbacks. Must only be called by the consumer.
+	 */
+	CallbackSF<Object,OpaRpcError> peek() {
+		long head = mHead;
+		if (head == mTail) {
+			return null;
+		}
+		Slots s = mSlots;
+		return s.callbacks[(int) head & s.mask];
+	}
+
+	/**
+	 * @return the time (System.nanoTime()) that the oldest callback was added; 0 if there are no callbacks or
+	 *         times are not recorded. Must only be called by the consumer.
+	 */
+	long headTime() {
+		long head = mHead;
+		Slots s = mSlots;
+		if (head == mTail || s.times == null) {
+			return 0;
+		}
+		return s.times[(int) head & s.mask];
+	}
+
+	/**
+	 * Remove the oldest callback. Must only be called by the consumer.
+	 * @return the oldest callback or null if there are no callbacks
+	 */
+	CallbackSF<Object,OpaRpcError> poll() {
+		long head = mHead;
+		if (head == mTail) {
+			return null;
+		}
+		Slots s = mSlots;
+		int idx = (int) head & s.mask;
+		CallbackSF<Object,OpaRpcError> cb = s.callbacks[idx];
+		s.callbacks[idx] = null;
+		HEAD.lazySet(this, head + 1);
+		return cb;
+	}
+
+	/**
+	 * Remove the oldest callback when a response is received. Must only be called by the consumer.
+	 * @return the oldest callback
+	 * @throws IllegalStateException if there are no callbacks (a response was received that does not
+	 *                               have a matching request)
+	 */
+	CallbackSF<Object,OpaRpcError> remove() {
+		if (mHead == mTail) {
+			throw new IllegalStateException("response received but no callback is waiting");
+		}
+		return poll();
+	}
+
+	/**
+	 * @return the number of callbacks waiting for a response
+	 */
+	int size() {
+		return (int) (mTail - mHead);
+	}
+}
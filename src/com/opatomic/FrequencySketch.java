@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Count-min sketch that estimates how often a hash has been seen recently (TinyLFU). Each of 4 rows holds
+ * 4-bit counters; the estimate is the smallest of a hash's counters. All counters are halved after a number
+ * of increments so that old accesses are forgotten. Not thread safe.
+ */
+final class FrequencySketch {
+	private static final int ROWS = 4;
+	private static final int MAXCOUNT = 15;
+	private static final int[] SEEDS = {0x97cb3127, 0x5b2e8c1d, 0xc2b2ae35, 0x27d4eb2f};
+
+	private final byte[][] mRows;
+	private final int mMask;
+	private final int mSampleSize;
+	private int mAdditions;
+
+	/**
+	 * @param width number of counters per row (rounded up to a power of 2)
+	 */
+	FrequencySketch(int width) {
+		int w = 1;
+		while (w < width) {
+			w <<= 1;
+		}
+		mRows = new byte[ROWS][w];
+		mMask = w - 1;
+		mSampleSize = w * 10;
+	}
+
+	private int index(int hash, int row) {
+		int h = hash * SEEDS[row];
+		return (h ^ (h >>> 16)) & mMask;
+	}
+
+	void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < ROWS; ++i) {
+			int idx = index(hash, i);
+			if (mRows[i][idx] < MAXCOUNT) {
+				++mRows[i][idx];
+				added = true;
+			}
+		}
+		if (added && ++mAdditions >= mSampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		mAdditions = 0;
+		for (int i = 0; i < ROWS; ++i) {
+			byte[] row = mRows[i];
+			for (int j = 0; j < row.length; ++j) {
+				row[j] >>= 1;
+			}
+		}
+	}
+
+	int frequency(int hash) {
+		int f = MAXCOUNT;
+		for (int i = 0; i < ROWS; ++i) {
+			f = Math.min(f, mRows[i][index(hash, i)]);
+		}
+		return f;
+	}
+}
@@ -0,0 +1,14 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Callback that is created by the client library rather than by the caller (ie, to collect a batch, time out
+ * a request or wrap a caller's callback). Internal callbacks are invoked when their response is parsed and
+ * are not passed to OpaClientConfig.batchResponseHandler.
+ */
+interface InternalCallback extends CallbackSF<Object,OpaRpcError> {
+}
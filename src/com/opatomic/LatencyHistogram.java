@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Histogram of response times used to estimate a percentile. Each power of 2 is split into 4 buckets, so an
+ * estimate is at most 25% larger than the actual value. Counts are halved after a number of samples so the
+ * estimate follows recent response times. Estimates are cached and recalculated periodically.
+ */
+final class LatencyHistogram {
+	private static final int NUMBUCKETS = 256;
+	private static final int DECAYSAMPLES = 2000;
+	private static final int RECALCSAMPLES = 64;
+
+	private final int[] mCounts = new int[NUMBUCKETS];
+	private final double mPercentile;
+	private int mTotal;
+	private int mSinceRecalc;
+	private long mEstimate = -1;
+
+	/**
+	 * @param percentile percentile to estimate (greater than 0 and less than 100)
+	 */
+	LatencyHistogram(double percentile) {
+		if (!(percentile > 0 && percentile < 100)) {
+			throw new IllegalArgumentException("percentile must be greater than 0 and less than 100");
+		}
+		mPercentile = percentile;
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < 8) {
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		int lg = 63 - Long.numberOfLeadingZeros(nanos);
+		return ((lg - 1) << 2) | (int) ((nanos >>> (lg - 2)) & 3);
+	}
+
+	// largest value that is stored in a bucket
+	static long bucketMax(int idx) {
+		if (idx < 8) {
+			return idx;
+		}
+		int lg = (idx >> 2) + 1;
+		return ((long) (4 | (idx & 3)) + 1 << (lg - 2)) - 1;
+	}
+
+	synchronized void record(long nanos) {
+		++mCounts[bucket(nanos)];
+		if (++mTotal >= DECAYSAMPLES) {
+			mTotal = 0;
+			for (int i = 0; i < NUMBUCKETS; ++i) {
+				mCounts[i] >>= 1;
+				mTotal += mCounts[i];
+			}
+		}
+		if (++mSinceRecalc >= RECALCSAMPLES) {
+			mSinceRecalc = 0;
+			long target = (long) Math.ceil(mTotal * mPercentile / 100);
+			long count = 0;
+			for (int i = 0; i < NUMBUCKETS; ++i) {
+				count += mCounts[i];
+				if (count >= target) {
+					mEstimate = bucketMax(i);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the estimated percentile in nanoseconds; -1 if not enough samples have been recorded
+	 */
+	synchronized long get() {
+		return mEstimate;
+	}
+}
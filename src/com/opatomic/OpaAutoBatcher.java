@@ -0,0 +1,296 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client that gathers single-field reads (DGET key field) and sends the reads of each key as 1 DMGET
+ * command. Reads are held for a short time (or until a number of reads are held) so that other reads of the
+ * same key can join them. The DMGET response is split and each read's callback receives its field's value;
+ * a key that has only 1 read is sent as a DGET.
+ *
+ * <p>Every other command first sends the held reads, so commands are sent in the same order that they were
+ * made (a read is never delayed past a write that was made after it). DGET requests without a callback or
+ * with an async id (callID()) are not held.
+ *
+ * <p>Held reads are sent by a background thread when the delay passes. Call close() to stop the thread.
+ */
+public class OpaAutoBatcher implements OpaClient {
+	// reads of 1 key
+	private static final class Group implements InternalCallback {
+		final Object key;
+		final List<Object> fields = new ArrayList<Object>(4);
+		final List<CallbackSF<Object,OpaRpcError>> callbacks = new ArrayList<CallbackSF<Object,OpaRpcError>>(4);
+		boolean async = true;
+
+		Group(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			if (callbacks.size() == 1) {
+				callbacks.get(0).onSuccess(result);
+				return;
+			}
+			List<?> vals = (List<?>) result;
+			for (int i = 0; i < callbacks.size(); ++i) {
+				callbacks.get(i).onSuccess(i < vals.size() ? vals.get(i) : null);
+			}
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			for (int i = 0; i < callbacks.size(); ++i) {
+				callbacks.get(i).onFailure(error);
+			}
+		}
+	}
+
+	private final OpaClient mClient;
+	private final long mDelayNanos;
+	private final int mMaxHeld;
+	// held while sending so that commands are sent in order
+	private final Object mSendLock = new Object();
+	// the following are guarded by this object's lock
+	private Map<Object,Group> mGroups = new LinkedHashMap<Object,Group>();
+	private int mNumHeld;
+	private long mNumReads;
+	private long mNumSent;
+	private boolean mClosed;
+
+	/**
+	 * @param c       client to send requests to
+	 * @param delay   max time to hold a read
+	 * @param unit    unit of delay
+	 * @param maxHeld send the held reads when this many reads are held
+	 */
+	public OpaAutoBatcher(OpaClient c, long delay, TimeUnit unit, int maxHeld) {
+		if (maxHeld <= 0) {
+			throw new IllegalArgumentException("maxHeld must be greater than 0");
+		}
+		mClient = c;
+		mDelayNanos = unit.toNanos(delay);
+		mMaxHeld = maxHeld;
+		OpaUtils.startDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "OpaAutoBatcher-flush");
+	}
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				while (mNumHeld == 0 && !mClosed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				if (mClosed) {
+					break;
+				}
+			}
+			// give other reads time to join
+			long end = System.nanoTime() + mDelayNanos;
+			for (long left = mDelayNanos; left > 0; left = end - System.nanoTime()) {
+				LockSupport.parkNanos(left);
+			}
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				// client is closed or full; the reads that were not sent have been failed
+			}
+		}
+	}
+
+	private synchronized Map<Object,Group> takeGroups() {
+		if (mNumHeld == 0) {
+			return null;
+		}
+		Map<Object,Group> groups = mGroups;
+		mGroups = new LinkedHashMap<Object,Group>();
+		mNumHeld = 0;
+		return groups;
+	}
+
+	private synchronized void addSent(int num) {
+		mNumSent += num;
+	}
+
+	/**
+	 * Send the held reads now. If the client throws, the reads that were not sent are failed with ERR_CLOSED
+	 * and the exception is rethrown.
+	 */
+	public void flush() {
+		synchronized (mSendLock) {
+			flushLocked();
+		}
+	}
+
+	// must hold mSendLock
+	private void flushLocked() {
+		Map<Object,Group> groups = takeGroups();
+		if (groups == null) {
+			return;
+		}
+		Iterator<Group> it = groups.values().iterator();
+		int num = 0;
+		try {
+			for (; it.hasNext(); ++num) {
+				Group g = it.next();
+				List<Object> args = new ArrayList<Object>(1 + g.fields.size());
+				args.add(g.key);
+				args.addAll(g.fields);
+				String cmd = g.fields.size() == 1 ? "DGET" : "DMGET";
+				try {
+					if (g.async) {
+						mClient.callA(cmd, args.iterator(), g);
+					} else {
+						mClient.call(cmd, args.iterator(), g);
+					}
+				} catch (RuntimeException e) {
+					OpaClientUtils.invokeClosed(OpaClientConfig.DEFAULT_CFG, g);
+					throw e;
+				}
+			}
+		} catch (RuntimeException e) {
+			// the reads that were not sent will never receive a response
+			while (it.hasNext()) {
+				OpaClientUtils.invokeClosed(OpaClientConfig.DEFAULT_CFG, it.next());
+			}
+			throw e;
+		} finally {
+			addSent(num);
+		}
+	}
+
+	// returns false if the read was not held
+	private boolean hold(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb, boolean async) {
+		if (cb == null || args == null || !"DGET".contentEquals(cmd)) {
+			return false;
+		}
+		List<Object> l = OpaClientUtils.toList(args);
+		if (l.size() != 2) {
+			send(cmd, l.iterator(), cb, async);
+			return true;
+		}
+		boolean full;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IllegalStateException("closed");
+			}
+			Object key = l.get(0);
+			if (key instanceof byte[]) {
+				// arrays do not implement equals(); key by contents
+				key = SerializedKey.of(key);
+			}
+			Group g = mGroups.get(key);
+			if (g == null) {
+				g = new Group(l.get(0));
+				mGroups.put(key, g);
+			}
+			g.fields.add(l.get(1));
+			g.callbacks.add(cb);
+			g.async &= async;
+			++mNumReads;
+			if (++mNumHeld == 1) {
+				notifyAll();
+			}
+			full = mNumHeld >= mMaxHeld;
+		}
+		if (full) {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				// this read was accepted; it (and any other unsent read) has been failed with ERR_CLOSED
+			}
+		}
+		return true;
+	}
+
+	// send held reads then a command
+	private void send(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb, boolean async) {
+		synchronized (mSendLock) {
+			flushLocked();
+			if (async) {
+				mClient.callA(cmd, args, cb);
+			} else {
+				mClient.call(cmd, args, cb);
+			}
+		}
+	}
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (!hold(cmd, args, cb, false)) {
+			send(cmd, args, cb, false);
+		}
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		if (!hold(cmd, args, cb, true)) {
+			send(cmd, args, cb, true);
+		}
+	}
+
+	@Override
+	public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		return mClient.registerCB(id, cb);
+	}
+
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		synchronized (mSendLock) {
+			flushLocked();
+			mClient.callID(id, cmd, args);
+		}
+	}
+
+	/**
+	 * @return number of reads that were held
+	 */
+	public synchronized long getNumReads() {
+		return mNumReads;
+	}
+
+	/**
+	 * @return number of DGET/DMGET commands that were sent for the held reads
+	 */
+	public synchronized long getNumCommands() {
+		return mNumSent;
+	}
+
+	/**
+	 * Send the held reads and stop the background thread. Does not close the wrapped client. Held reads that
+	 * cannot be sent are failed with ERR_CLOSED.
+	 */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			// unsent reads have been failed
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of commands that are sent together and complete with a single callback. When the client supports
+ * batches (OpaStreamClient, OpaNioClient, OpaNio2Client) the commands are queued as 1 request and serialized
+ * contiguously; otherwise each command is sent with call(). Commands' args must not be modified (and the
+ * batch must not be modified or cleared) until the callback is invoked.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ *   OpaBatch b = new OpaBatch();
+ *   b.add("INCR", asIt("key1"));
+ *   b.add("INCR", asIt("key2"));
+ *   b.send(client, new OpaBatch.Callback() {
+ *     public void onResponses(Object[] results, OpaRpcError[] errors) {
+ *       // errors[i] is null if command i succeeded
+ *     }
+ *   });
+ * }
+ * </pre>
+ */
+public final class OpaBatch {
+	/**
+	 * Callback that is invoked when all responses of a batch have been received.
+	 */
+	public interface Callback {
+		/**
+		 * Invoked when all responses have been received. If the connection closed before a response was received,
+		 * the command's error is ERR_CLOSED.
+		 * @param results Each command's result, in the order the commands were added. null if the command failed
+		 * @param errors  Each command's error, in the order the commands were added. null if the command succeeded
+		 */
+		public void onResponses(Object[] results, OpaRpcError[] errors);
+	}
+
+	interface Sender {
+		void callBatch(OpaBatch b, Callback cb);
+	}
+
+	// callback that receives all of a batch's responses in order; must remain at the head of the main
+	// callback queue until the last response is received
+	static final class Collector implements InternalCallback {
+		private final Object[] mResults;
+		private final OpaRpcError[] mErrors;
+		private final Callback mCB;
+		private int mNext;
+
+		Collector(int size, Callback cb) {
+			mResults = new Object[size];
+			mErrors = new OpaRpcError[size];
+			mCB = cb;
+		}
+
+		boolean isLastResponse() {
+			return mNext == mResults.length - 1;
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			mResults[mNext++] = result;
+			if (mNext == mResults.length) {
+				mCB.onResponses(mResults, mErrors);
+			}
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			mErrors[mNext++] = error;
+			if (mNext == mResults.length) {
+				mCB.onResponses(mResults, mErrors);
+			}
+		}
+
+		void failRemaining(OpaRpcError error) {
+			while (mNext < mResults.length) {
+				onFailure(error);
+			}
+		}
+	}
+
+	private static final int INITLEN = 8;
+
+	private CharSequence[] mCmds = new CharSequence[INITLEN];
+	private Iterator<?>[] mArgs = new Iterator<?>[INITLEN];
+	private int mSize;
+
+	/**
+	 * Add a command to the batch.
+	 * @param cmd  Command to run
+	 * @param args Command's parameters. Do not modify
+	 * @return this batch
+	 */
+	public OpaBatch add(CharSequence cmd, Iterator<?> args) {
+		if (mSize == mCmds.length) {
+			CharSequence[] cmds = new CharSequence[mSize * 2];
+			Iterator<?>[] allArgs = new Iterator<?>[mSize * 2];
+			System.arraycopy(mCmds, 0, cmds, 0, mSize);
+			System.arraycopy(mArgs, 0, allArgs, 0, mSize);
+			mCmds = cmds;
+			mArgs = allArgs;
+		}
+		mCmds[mSize] = cmd;
+		mArgs[mSize] = args;
+		++mSize;
+		return this;
+	}
+
+	/**
+	 * Get the number of commands in the batch.
+	 * @return number of commands
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Remove all commands so the batch can be reused. Must not be called until the callback of a previous send
+	 * has been invoked.
+	 * @return this batch
+	 */
+	public OpaBatch clear() {
+		for (int i = 0; i < mSize; ++i) {
+			mCmds[i] = null;
+			mArgs[i] = null;
+		}
+		mSize = 0;
+		return this;
+	}
+
+	// args are not iterated (they can only be iterated once); each command's args are assumed to be small
+	long estimateSize() {
+		long sz = 0;
+		for (int i = 0; i < mSize; ++i) {
+			sz += OpaClientUtils.estimateSize(mCmds[i]) + 40;
+		}
+		return sz;
+	}
+
+	void writeTo(OpaSerializer s) throws IOException {
+		for (int i = 0; i < mSize; ++i) {
+			OpaClientUtils.writeRequest(s, mCmds[i], mArgs[i], null);
+		}
+	}
+
+	private void checkSend(Callback cb) {
+		if (mSize == 0) {
+			throw new IllegalStateException("batch is empty");
+		} else if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+	}
+
+	Collector newCollector(Callback cb) {
+		checkSend(cb);
+		return new Collector(mSize, cb);
+	}
+
+	private static CallbackSF<Object,OpaRpcError> indexCB(final Object[] results, final OpaRpcError[] errors, final int idx, final AtomicInteger remaining, final Callback cb) {
+		return new InternalCallback() {
+			@Override
+			public void onSuccess(Object result) {
+				results[idx] = result;
+				if (remaining.decrementAndGet() == 0) {
+					cb.onResponses(results, errors);
+				}
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				errors[idx] = error;
+				if (remaining.decrementAndGet() == 0) {
+					cb.onResponses(results, errors);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Send all commands in the batch.
+	 * @param c  client to send the commands with
+	 * @param cb callback to invoke when all responses have been received. Cannot be null.
+	 */
+	public void send(OpaClient c, Callback cb) {
+		if (c instanceof Sender) {
+			((Sender) c).callBatch(this, cb);
+			return;
+		}
+		checkSend(cb);
+		Object[] results = new Object[mSize];
+		OpaRpcError[] errors = new OpaRpcError[mSize];
+		AtomicInteger remaining = new AtomicInteger(mSize);
+		for (int i = 0; i < mSize; ++i) {
+			c.call(mCmds[i], mArgs[i], indexCB(results, errors, i, remaining, cb));
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Snapshot of an OpaNearCache's counters.
+ */
+public class OpaCacheMetrics {
+	/**
+	 * Number of reads that were answered from the cache.
+	 */
+	public final long hits;
+	/**
+	 * Number of cacheable reads that were sent to the server.
+	 */
+	public final long misses;
+	/**
+	 * Number of entries removed (or not admitted) to stay within the size limit.
+	 */
+	public final long evictions;
+	/**
+	 * Number of entries removed because their key was written or an invalidation message was received.
+	 */
+	public final long invalidations;
+	/**
+	 * Number of entries in the cache.
+	 */
+	public final int entries;
+	/**
+	 * Estimated size of the entries, in bytes.
+	 */
+	public final long bytes;
+
+	public OpaCacheMetrics(long hits, long misses, long evictions, long invalidations, int entries, long bytes) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.invalidations = invalidations;
+		this.entries = entries;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return hits divided by the number of cacheable reads; 0 if there have been no reads
+	 */
+	public double hitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits + " misses=" + misses + " hitRate=" + hitRate() + " evictions=" + evictions
+			+ " invalidations=" + invalidations + " entries=" + entries + " bytes=" + bytes;
+	}
+}
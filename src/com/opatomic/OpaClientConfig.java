@@ -1,5 +1,7 @@
 package com.opatomic;
 
+import java.util.concurrent.ThreadFactory;
+
 public class OpaClientConfig {
 	public interface RawResponseHandler {
 		void handle(Object id, Object result, Object err);
@@ -7,6 +9,17 @@ public class OpaClientConfig {
 	public interface ExceptionHandler {
 		void handle(Throwable e, Object context);
 	}
+	public interface BatchResponseHandler {
+		/**
+		 * Handle the responses that were parsed from 1 read of the connection. The arrays are reused after
+		 * this method returns; copy any elements that are needed later.
+		 * @param callbacks callback of each response's request
+		 * @param results   result of each response
+		 * @param errors    error of each response; null if the response is a success
+		 * @param len       number of responses in the arrays
+		 */
+		void handle(CallbackSF<Object,OpaRpcError>[] callbacks, Object[] results, OpaRpcError[] errors, int len);
+	}
 
 	public static final OpaClientConfig DEFAULT_CFG;
 	static {
@@ -41,11 +54,90 @@ public class OpaClientConfig {
 	 */
 	public int sendQueueLen = 1024;
 
+	/**
+	 * Max estimated size in bytes of the requests in the send queue (see sendQueueLen). 0 means no limit.
+	 * A request's args are copied from its iterator when the request is queued so that their size can be
+	 * estimated. A request larger than this limit is queued when the send queue is empty. Only used by
+	 * OpaStreamClient.
+	 */
+	public long sendQueueBytes = 0;
+
+	/**
+	 * Max number of responses that a client can be waiting for (requests that were sent or queued with a
+	 * callback but have not received a response). 0 means no limit. When the limit is reached, callers block
+	 * until responses are received. Responses are received on a client thread, so callbacks must not make
+	 * calls that could block when this limit is used.
+	 */
+	public int maxPendingResponses = 0;
+
+	/**
+	 * Upper bound of the adaptive limit when maxPendingResponses is 0.
+	 */
+	public static final int MAX_ADAPTIVE_PENDING = 10000;
+
+	/**
+	 * If true, then the limit on pending responses is adjusted from measured response times rather than
+	 * being fixed at maxPendingResponses (which becomes the upper bound of the limit). The limit grows while
+	 * response times stay close to the lowest response time seen and shrinks when they increase (a sign that
+	 * requests are being queued). Use the client's getPipelineMetrics() to see the current limit.
+	 */
+	public boolean adaptivePendingLimit = false;
+
+	/**
+	 * Weights of the send queue's priority lanes. Use a client's withPriority() to choose the lane of a
+	 * request; requests from the client itself use lane 0. Requests are sent in order within a lane. Lanes
+	 * take turns; in each turn a lane can send up to its weight of requests, so a high priority request (ie,
+	 * a health check) waits for at most the weights of the other lanes rather than every queued bulk request.
+	 * Responses to call() are still matched in the order the requests were sent. null means 1 lane. Lanes are
+	 * only used when requests must be queued (the connection cannot send as fast as requests are made).
+	 */
+	public int[] priorityWeights = null;
+
+	/**
+	 * If true, then call() with a callback sends the request with an auto-generated async id (as if callA()
+	 * was used) so that a slow command does not delay the callbacks of requests that were sent after it.
+	 * Callbacks can then be invoked in a different order than the requests were sent. Each such request is
+	 * 1-3 bytes larger for most ids (see maxAutoId). call() without a callback is not changed.
+	 */
+	public boolean autoIdCalls = false;
+
+	/**
+	 * Largest auto-generated async id (see callA() and autoIdCalls) before ids wrap around to 1. 0 means ids
+	 * are never reused and keep growing. Smaller ids serialize to fewer bytes: compared to a call() request
+	 * (which is sent with a null id), an id up to 127 adds 1 byte, up to 16383 adds 2 bytes, and up to
+	 * 2097151 adds 3 bytes. The max is raised to the number of callback slots when more requests are
+	 * pending. A pending id is never reused; the id of a request that timed out or was cancelled (see
+	 * OpaDeadline) is not reused until its response arrives.
+	 */
+	public long maxAutoId = 0;
+
+	/**
+	 * If true, then callers will not block when the send queue or the pending responses are at their limits
+	 * (see sendQueueLen, sendQueueBytes, maxPendingResponses). Instead, a RejectedExecutionException is thrown.
+	 */
+	public boolean failWhenFull = false;
+
 	/**
 	 * Callback to invoke when a response is received without a registered callback.
 	 */
 	public RawResponseHandler unknownIdHandler;
 
+	/**
+	 * If set, then the responses that are parsed from each read of the connection are passed to this handler
+	 * at once rather than invoking the callback of each response. The handler is responsible for invoking the
+	 * callbacks (cb.onSuccess(result) or cb.onFailure(error)), either before it returns or later on another
+	 * thread. Only the callbacks that were passed to the client are given to the handler: callbacks created
+	 * by this library (ie, for OpaBatch, OpaDeadline, quit() and the wrappers of OpaClientPool and the other
+	 * wrapping clients) and WaitCallbackSF/ParkCallbackSF are invoked as soon as their response is parsed,
+	 * after the responses parsed before it have been passed to the handler; a wrapper then invokes the
+	 * caller's callback on the client's thread. If the handler invokes callbacks later on another thread,
+	 * then a sync call (ie, a PING used as a barrier) can return before the callbacks of requests that were
+	 * sent before it have run. Responses with an unknown id
+	 * still go to unknownIdHandler, and the errors sent to pending callbacks when the connection closes are
+	 * not passed to this handler.
+	 */
+	public BatchResponseHandler batchResponseHandler;
+
 	/**
 	 * Callback to invoke when an uncaught exception occurs.
 	 */
@@ -56,4 +148,11 @@ public class OpaClientConfig {
 	 * errors or serialization errors.
 	 */
 	public ExceptionHandler clientErrorHandler;
+
+	/**
+	 * Factory used to create the threads that run a client's send/recv loops. If null, then daemon
+	 * platform threads are used. Use OpaVirtualThreads.factory() to run the loops on virtual threads
+	 * (requires Java 21+).
+	 */
+	public ThreadFactory threadFactory;
 }
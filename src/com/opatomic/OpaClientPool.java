@@ -0,0 +1,627 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Client that sends requests over several connections. Each request is sent on the connection that has the
+ * fewest outstanding requests (requests that have a callback and have not received a response); ties go to
+ * the connection with the lowest recent response time. Connections are warmed up (a PING is sent and its
+ * response received) before they are used.
+ *
+ * <p>A connection is considered dead when a call throws IllegalStateException or a response fails with
+ * ERR_CLOSED. Dead connections are not used; a background thread connects a replacement, retrying with
+ * increasing delays. Callbacks registered with registerCB() are registered on every connection (including
+ * replacements), so they will receive an ERR_CLOSED error when any connection closes. Requests that were
+ * pending on a dead connection fail with ERR_CLOSED; they are not retried.
+ *
+ * <p>Callbacks are wrapped to count outstanding requests and measure response times, so a request sent
+ * through the pool allocates a small object. Responses to call() are received in order per connection but
+ * not across connections.
+ *
+ * <p>Read commands can be hedged (see setHedging()) to cut tail latency: if the response to a hedged command
+ * has not been received after a delay (a percentile of recent response times) then the request is sent
+ * again on another connection (from a pool thread, so a full connection does not delay the shared timer).
+ * The first response is used; the other request's callback is removed from its connection. Hedging sends
+ * extra requests and is only safe for commands that do not modify data.
+ *
+ * <pre>
+ *   OpaClientPool p = new OpaClientPool(new OpaClientPool.Connector() {
+ *       public OpaClient connect() throws IOException {
+ *           return OpaNioClient.connect(addr, 3000, cfg);
+ *       }
+ *       public void close(OpaClient c) {
+ *           ((OpaNioClient) c).close();
+ *       }
+ *   }, 4);
+ * </pre>
+ */
+public class OpaClientPool implements OpaClient, OpaBatch.Sender {
+	/**
+	 * Creates and closes the pool's connections.
+	 */
+	public interface Connector {
+		/**
+		 * Create a new connection. Called from the pool's constructor and from a background thread when a
+		 * connection must be replaced.
+		 */
+		public OpaClient connect() throws IOException;
+
+		/**
+		 * Close a connection that is dead or that belongs to a closed pool.
+		 */
+		public void close(OpaClient c);
+	}
+
+	private static final long WARMUPMILLIS = 10000;
+	private static final long MINRETRYMILLIS = 100;
+	private static final long MAXRETRYMILLIS = 10000;
+	private static final String[] DEFAULTHEDGED = {"DGET", "DRANGE", "KEYS", "BLEN"};
+
+	private static final class Conn {
+		final OpaClient client;
+		final AtomicInteger outstanding = new AtomicInteger();
+		// exponentially weighted moving average of response times
+		volatile long rttNanos;
+		volatile boolean dead;
+
+		Conn(OpaClient c) {
+			client = c;
+		}
+	}
+
+	// tracks a request's response on a connection
+	private final class Tracked implements InternalCallback {
+		private final Conn mConn;
+		private final CallbackSF<Object,OpaRpcError> mCB;
+		private final long mStart = System.nanoTime();
+
+		Tracked(Conn c, CallbackSF<Object,OpaRpcError> cb) {
+			mConn = c;
+			mCB = cb;
+		}
+
+		private void done(boolean sample) {
+			mConn.outstanding.decrementAndGet();
+			if (sample) {
+				long rtt = mConn.rttNanos;
+				mConn.rttNanos = rtt + ((System.nanoTime() - mStart - rtt) >> 3);
+			}
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			done(true);
+			mCB.onSuccess(result);
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			// a cancelled hedge did not wait for its response
+			done(error != OpaDeadline.CANCELLED_ERROR);
+			if (error != null && error.code == OpaDef.ERR_CLOSED) {
+				onDead(mConn);
+			}
+			mCB.onFailure(error);
+		}
+	}
+
+	// a hedged request. sent to 1 connection and, if the response is slow, to a second connection (when the
+	// timer expires). the first response is passed to the caller's callback and the other request is cancelled
+	private final class Hedge extends OpaTimer.Task implements InternalCallback, Runnable {
+		private final CharSequence mCmd;
+		private final List<Object> mArgs;
+		private final CallbackSF<Object,OpaRpcError> mCB;
+		private final LatencyHistogram mLatency;
+		private final long mStart = System.nanoTime();
+		// the following are guarded by this object's lock
+		private final OpaDeadline[] mLegs = new OpaDeadline[2];
+		private Conn mFirst;
+		private int mPending = 1;
+		private boolean mDone;
+		private OpaRpcError mError;
+
+		Hedge(CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb, LatencyHistogram latency) {
+			mCmd = cmd;
+			mArgs = args;
+			mCB = cb;
+			mLatency = latency;
+		}
+
+		// throws IllegalStateException if connection is closed
+		private OpaDeadline send(Conn c) {
+			OpaDeadline d = new OpaDeadline(new Tracked(c, this));
+			c.outstanding.incrementAndGet();
+			try {
+				c.client.callA(mCmd, mArgs.iterator(), d);
+			} catch (IllegalStateException e) {
+				c.outstanding.decrementAndGet();
+				throw e;
+			}
+			return d;
+		}
+
+		void start() {
+			while (true) {
+				Conn c = choose();
+				try {
+					OpaDeadline d = send(c);
+					synchronized (this) {
+						mFirst = c;
+						mLegs[0] = d;
+					}
+					break;
+				} catch (IllegalStateException e) {
+					onDead(c);
+				}
+			}
+			long delay = mLatency.get();
+			if (delay >= 0) {
+				OpaTimer.INSTANCE.schedule(this, delay);
+			}
+		}
+
+		@Override
+		void expire() {
+			synchronized (this) {
+				if (mDone) {
+					return;
+				}
+			}
+			// sending can block (ie, full send queue); the timer thread is shared by all deadlines and hedges
+			try {
+				mHedgeSender.execute(this);
+			} catch (RejectedExecutionException e) {
+				// pool is closed; do not hedge
+			}
+		}
+
+		// send the second request. run by mHedgeSender
+		@Override
+		public void run() {
+			Conn first;
+			synchronized (this) {
+				if (mDone) {
+					return;
+				}
+				first = mFirst;
+				++mPending;
+			}
+			OpaDeadline d = null;
+			Conn c = find(first);
+			if (c != null) {
+				try {
+					d = send(c);
+				} catch (IllegalStateException e) {
+					onDead(c);
+				}
+			}
+			boolean cancel;
+			synchronized (this) {
+				mLegs[1] = d;
+				cancel = d != null && mDone;
+			}
+			if (cancel) {
+				d.cancel();
+			} else if (d == null) {
+				unsent();
+			}
+		}
+
+		// called when a request completes
+		private void finish(boolean success, Object result, OpaRpcError error) {
+			OpaDeadline[] legs;
+			synchronized (this) {
+				if (mDone) {
+					return;
+				}
+				if (!success) {
+					mError = error;
+					if (--mPending > 0) {
+						// wait for the other request
+						return;
+					}
+				}
+				mDone = true;
+				legs = new OpaDeadline[] {mLegs[0], mLegs[1]};
+			}
+			OpaTimer.INSTANCE.cancel(this);
+			for (int i = 0; i < legs.length; ++i) {
+				if (legs[i] != null) {
+					legs[i].cancel();
+				}
+			}
+			if (success) {
+				mLatency.record(System.nanoTime() - mStart);
+				mCB.onSuccess(result);
+			} else {
+				mCB.onFailure(error);
+			}
+		}
+
+		// called when the hedge could not be sent
+		private void unsent() {
+			OpaRpcError err;
+			synchronized (this) {
+				if (mDone || --mPending > 0) {
+					return;
+				}
+				// first request has already failed
+				mDone = true;
+				err = mError;
+			}
+			mCB.onFailure(err);
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			finish(true, result, null);
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			finish(false, null, error);
+		}
+	}
+
+	private final Connector mConnector;
+	private final AtomicReferenceArray<Conn> mConns;
+	private final Map<Object,CallbackSF<Object,OpaRpcError>> mRegistered = new ConcurrentHashMap<Object,CallbackSF<Object,OpaRpcError>>();
+	private final Map<String,Boolean> mHedged = new ConcurrentHashMap<String,Boolean>();
+	// sends the second request of hedges; its thread exits when idle
+	private final ThreadPoolExecutor mHedgeSender = newHedgeSender();
+	private volatile LatencyHistogram mHedgeLatency;
+	private volatile boolean mClosed;
+	// where to start searching for a connection; not atomic because it only spreads out ties
+	private int mNext;
+
+	/**
+	 * Connect and warm up all connections. Blocks until each connection has responded to a PING.
+	 * @param c    creates the connections
+	 * @param size number of connections
+	 * @throws IOException if a connection could not be created or did not respond
+	 */
+	public OpaClientPool(Connector c, int size) throws IOException {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size must be greater than 0");
+		}
+		mConnector = c;
+		mConns = new AtomicReferenceArray<Conn>(size);
+		for (int i = 0; i < DEFAULTHEDGED.length; ++i) {
+			mHedged.put(DEFAULTHEDGED[i], Boolean.TRUE);
+		}
+		try {
+			OpaClient[] clients = new OpaClient[size];
+			for (int i = 0; i < size; ++i) {
+				clients[i] = c.connect();
+				mConns.set(i, new Conn(clients[i]));
+			}
+			warmUp(clients);
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private static ThreadPoolExecutor newHedgeSender() {
+		ThreadPoolExecutor e = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OpaClientPool-hedge");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		e.allowCoreThreadTimeOut(true);
+		return e;
+	}
+
+	private static void warmUp(OpaClient[] clients) throws IOException {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		WaitCallbackSF<Object,OpaRpcError>[] cbs = new WaitCallbackSF[clients.length];
+		for (int i = 0; i < clients.length; ++i) {
+			cbs[i] = new WaitCallbackSF<Object,OpaRpcError>();
+			clients[i].call("PING", null, cbs[i]);
+		}
+		long end = System.currentTimeMillis() + WARMUPMILLIS;
+		for (int i = 0; i < cbs.length; ++i) {
+			try {
+				cbs[i].waitIfNotDone(Math.max(1, end - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while warming up connection");
+			} catch (TimeoutException e) {
+				throw new IOException("connection did not respond to PING");
+			}
+			if (cbs[i].getError() != null) {
+				throw new IOException("connection failed to respond to PING: " + cbs[i].getError());
+			}
+		}
+	}
+
+	// returns null if there are no connections available (other than exclude)
+	private Conn find(Conn exclude) {
+		int len = mConns.length();
+		int start = mNext++ & 0x7FFFFFFF;
+		Conn best = null;
+		int bestCount = 0;
+		for (int i = 0; i < len; ++i) {
+			Conn c = mConns.get((start + i) % len);
+			if (c == null || c.dead || c == exclude) {
+				continue;
+			}
+			int count = c.outstanding.get();
+			if (best == null || count < bestCount || (count == bestCount && c.rttNanos < best.rttNanos)) {
+				best = c;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	private Conn choose() {
+		Conn c = find(null);
+		if (c == null) {
+			throw new IllegalStateException(mClosed ? "closed" : "no connections are available");
+		}
+		return c;
+	}
+
+	private void onDead(final Conn c) {
+		synchronized (c) {
+			if (c.dead) {
+				return;
+			}
+			c.dead = true;
+		}
+		mConnector.close(c.client);
+		if (mClosed) {
+			return;
+		}
+		OpaUtils.startDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+				replace(c);
+			}
+		}, "OpaClientPool-connect");
+	}
+
+	private void replace(Conn old) {
+		long delay = MINRETRYMILLIS;
+		while (!mClosed) {
+			OpaClient client = null;
+			try {
+				client = mConnector.connect();
+				warmUp(new OpaClient[] {client});
+				Iterator<Map.Entry<Object,CallbackSF<Object,OpaRpcError>>> it = mRegistered.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Object,CallbackSF<Object,OpaRpcError>> e = it.next();
+					client.registerCB(e.getKey(), e.getValue());
+				}
+				for (int i = 0; i < mConns.length(); ++i) {
+					if (mConns.compareAndSet(i, old, new Conn(client))) {
+						break;
+					}
+				}
+				if (mClosed) {
+					mConnector.close(client);
+				}
+				return;
+			} catch (Exception e) {
+				if (client != null) {
+					mConnector.close(client);
+				}
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			delay = Math.min(delay * 2, MAXRETRYMILLIS);
+		}
+	}
+
+	/**
+	 * Enable or disable hedging. Hedging is disabled by default. When enabled, a hedged command that has not
+	 * received a response after a percentile of the recent response times of hedged commands is sent again
+	 * on another connection. Requests are not hedged until enough response times have been measured. Delays
+	 * are rounded up to the resolution of the timer used by OpaDeadline (10 milliseconds).
+	 * @param percentile percentile of response times to wait before hedging (ie, 95); 0 to disable hedging
+	 */
+	public void setHedging(double percentile) {
+		mHedgeLatency = percentile == 0 ? null : new LatencyHistogram(percentile);
+	}
+
+	/**
+	 * Set whether a command is hedged (when hedging is enabled). Only commands that do not modify data should
+	 * be hedged. DGET, DRANGE, KEYS and BLEN are hedged by default.
+	 * @param cmd    command name
+	 * @param hedged whether to hedge the command
+	 */
+	public void setHedged(CharSequence cmd, boolean hedged) {
+		if (hedged) {
+			mHedged.put(cmd.toString(), Boolean.TRUE);
+		} else {
+			mHedged.remove(cmd.toString());
+		}
+	}
+
+	// returns false if the request is not hedged
+	private boolean hedge(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		LatencyHistogram latency = mHedgeLatency;
+		if (latency == null || cb == null || mConns.length() < 2 || !mHedged.containsKey(cmd.toString())) {
+			return false;
+		}
+		new Hedge(cmd, OpaClientUtils.toList(args), cb, latency).start();
+		return true;
+	}
+
+	/**
+	 * Run a command on the chosen connection. A hedged command (see setHedging()) is sent with an async id so
+	 * that its response can be received out of order. See OpaClient.call()
+	 */
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (hedge(cmd, args, cb)) {
+			return;
+		}
+		while (true) {
+			Conn c = choose();
+			if (cb == null) {
+				// no response to wait for
+				try {
+					c.client.call(cmd, args, null);
+					return;
+				} catch (IllegalStateException e) {
+					onDead(c);
+					continue;
+				}
+			}
+			c.outstanding.incrementAndGet();
+			try {
+				c.client.call(cmd, args, new Tracked(c, cb));
+				return;
+			} catch (IllegalStateException e) {
+				// request was not sent; try another connection
+				c.outstanding.decrementAndGet();
+				onDead(c);
+			}
+		}
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		if (hedge(cmd, args, cb)) {
+			return;
+		}
+		while (true) {
+			Conn c = choose();
+			c.outstanding.incrementAndGet();
+			try {
+				c.client.callA(cmd, args, new Tracked(c, cb));
+				return;
+			} catch (IllegalStateException e) {
+				c.outstanding.decrementAndGet();
+				onDead(c);
+			}
+		}
+	}
+
+	/**
+	 * Register a callback on every connection. See OpaClient.registerCB()
+	 */
+	@Override
+	public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		CallbackSF<Object,OpaRpcError> prev = cb == null ? mRegistered.remove(id) : mRegistered.put(id, cb);
+		for (int i = 0; i < mConns.length(); ++i) {
+			Conn c = mConns.get(i);
+			if (c != null && !c.dead) {
+				c.client.registerCB(id, cb);
+			}
+		}
+		return prev;
+	}
+
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		while (true) {
+			Conn c = choose();
+			try {
+				c.client.callID(id, cmd, args);
+				return;
+			} catch (IllegalStateException e) {
+				onDead(c);
+			}
+		}
+	}
+
+	/**
+	 * Send all commands of a batch on 1 connection. See OpaBatch
+	 */
+	@Override
+	public void callBatch(OpaBatch b, final OpaBatch.Callback cb) {
+		while (true) {
+			final Conn c = choose();
+			final int num = b.size();
+			final long start = System.nanoTime();
+			c.outstanding.addAndGet(num);
+			try {
+				b.send(c.client, new OpaBatch.Callback() {
+					@Override
+					public void onResponses(Object[] results, OpaRpcError[] errors) {
+						c.outstanding.addAndGet(-num);
+						long rtt = c.rttNanos;
+						c.rttNanos = rtt + ((System.nanoTime() - start - rtt) >> 3);
+						for (int i = 0; i < errors.length; ++i) {
+							if (errors[i] != null && errors[i].code == OpaDef.ERR_CLOSED) {
+								onDead(c);
+								break;
+							}
+						}
+						cb.onResponses(results, errors);
+					}
+				});
+				return;
+			} catch (IllegalStateException e) {
+				c.outstanding.addAndGet(-num);
+				onDead(c);
+			}
+		}
+	}
+
+	/**
+	 * @return number of connections that are not dead
+	 */
+	public int numAlive() {
+		int num = 0;
+		for (int i = 0; i < mConns.length(); ++i) {
+			Conn c = mConns.get(i);
+			if (c != null && !c.dead) {
+				++num;
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Close all connections and stop replacing dead connections.
+	 */
+	public void close() {
+		mClosed = true;
+		mHedgeSender.shutdown();
+		for (int i = 0; i < mConns.length(); ++i) {
+			Conn c = mConns.get(i);
+			if (c != null) {
+				synchronized (c) {
+					if (c.dead) {
+						continue;
+					}
+					c.dead = true;
+				}
+				mConnector.close(c.client);
+			}
+		}
+	}
+}
@@ -7,22 +7,78 @@ package com.opatomic;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 class OpaClientRecvState {
-	private final Queue<CallbackSF<Object,OpaRpcError>> mMainCallbacks;
+	private final CallbackRing mMainCallbacks;
+	private final AsyncIdTable mAutoCallbacks;
 	private final Map<Object,CallbackSF<Object,OpaRpcError>> mAsyncCallbacks;
 	private final OpaClientConfig mConfig;
+	private final PendingLimit mLimit;
+	private final OpaClientConfig.BatchResponseHandler mBatchHandler;
+
+	// responses that have been parsed from the current buffer; only used if there is a batch handler
+	private CallbackSF<Object,OpaRpcError>[] mBatchCBs;
+	private Object[] mBatchResults;
+	private OpaRpcError[] mBatchErrs;
+	private int mBatchLen;
 
 	private final OpaPartialParser.Buff mBuff = new OpaPartialParser.Buff();
 	private final OpaPartialParser mParser = new OpaPartialParser();
 
 	//private long mNumRecv;
 
-	public OpaClientRecvState(Queue<CallbackSF<Object,OpaRpcError>> maincbs, Map<Object,CallbackSF<Object,OpaRpcError>> asynccbs, OpaClientConfig cfg) {
+	public OpaClientRecvState(CallbackRing maincbs, AsyncIdTable autocbs, Map<Object,CallbackSF<Object,OpaRpcError>> asynccbs, PendingLimit limit, OpaClientConfig cfg) {
+		mLimit = limit;
 		mMainCallbacks = maincbs;
+		mAutoCallbacks = autocbs;
 		mAsyncCallbacks = asynccbs;
 		mConfig = cfg;
+		mBatchHandler = cfg.batchResponseHandler;
+		if (mBatchHandler != null) {
+			allocBatch(16);
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void allocBatch(int len) {
+		CallbackSF<Object,OpaRpcError>[] cbs = new CallbackSF[len];
+		Object[] results = new Object[len];
+		OpaRpcError[] errs = new OpaRpcError[len];
+		if (mBatchLen > 0) {
+			System.arraycopy(mBatchCBs, 0, cbs, 0, mBatchLen);
+			System.arraycopy(mBatchResults, 0, results, 0, mBatchLen);
+			System.arraycopy(mBatchErrs, 0, errs, 0, mBatchLen);
+		}
+		mBatchCBs = cbs;
+		mBatchResults = results;
+		mBatchErrs = errs;
+	}
+
+	private void addToBatch(CallbackSF<Object,OpaRpcError> cb, Object result, OpaRpcError err) {
+		if (mBatchLen == mBatchCBs.length) {
+			allocBatch(mBatchLen * 2);
+		}
+		mBatchCBs[mBatchLen] = cb;
+		mBatchResults[mBatchLen] = result;
+		mBatchErrs[mBatchLen] = err;
+		++mBatchLen;
+	}
+
+	private void flushBatch() {
+		int len = mBatchLen;
+		try {
+			mBatchHandler.handle(mBatchCBs, mBatchResults, mBatchErrs, len);
+		} catch (Exception ex) {
+			OpaClientUtils.handleException(mConfig.uncaughtExceptionHandler, ex, null);
+		} finally {
+			// do not keep references to the responses
+			for (int i = 0; i < len; ++i) {
+				mBatchCBs[i] = null;
+				mBatchResults[i] = null;
+				mBatchErrs[i] = null;
+			}
+			mBatchLen = 0;
+		}
 	}
 
 	private static int getErrorCode(Object codeObj) {
@@ -33,11 +89,40 @@ class OpaClientRecvState {
 		return (int) code;
 	}
 
+	static OpaRpcError convertErr(Object err) {
+		if (err == null) {
+			return null;
+		} else if (err instanceof List) {
+			List<?> lerr = (List<?>) err;
+			if (lerr.size() < 2 || lerr.size() > 3) {
+				throw new RuntimeException("error is an array of wrong size: " + lerr.size());
+			}
+			return new OpaRpcError(getErrorCode(lerr.get(0)), (String) lerr.get(1), lerr.size() >= 3 ? lerr.get(2) : null);
+		} else if (err instanceof Long) {
+			return new OpaRpcError(getErrorCode(err));
+		}
+		throw new RuntimeException("unknown error object returned from server: " + OpaUtils.stringify(err));
+	}
+
+	// callbacks of the client library (and those that only wake a waiting thread) are not passed to the batch handler
+	private static boolean isInternal(CallbackSF<Object,OpaRpcError> cb) {
+		return cb instanceof InternalCallback || cb instanceof WaitCallbackSF || cb instanceof ParkCallbackSF;
+	}
+
 	private void handleResponse(Object result, Object err, Object id) {
 		CallbackSF<Object,OpaRpcError> cb;
 		if (id != null) {
 			if (id instanceof Long) {
-				cb = ((Long)id).longValue() < 0 ? mAsyncCallbacks.get(id) : mAsyncCallbacks.remove(id);
+				long lid = ((Long)id).longValue();
+				if (lid < 0) {
+					cb = mAsyncCallbacks.get(id);
+				} else {
+					cb = mAutoCallbacks.remove(lid);
+					if (cb == null) {
+						// id was registered with registerCB()
+						cb = mAsyncCallbacks.remove(id);
+					}
+				}
 			} else {
 				cb = mAsyncCallbacks.get(id);
 			}
@@ -48,21 +133,26 @@ class OpaClientRecvState {
 				return;
 			}
 		} else {
-			cb = mMainCallbacks.remove();
+			long sent = mLimit != null ? mMainCallbacks.headTime() : 0;
+			cb = mMainCallbacks.peek();
+			if (!(cb instanceof OpaBatch.Collector) || ((OpaBatch.Collector) cb).isLastResponse()) {
+				cb = mMainCallbacks.remove();
+			}
+			if (mLimit != null) {
+				mLimit.release(1, sent != 0 ? System.nanoTime() - sent : -1);
+			}
 		}
 
-		OpaRpcError err2 = null;
-		if (err != null) {
-			if (err instanceof List) {
-				List<?> lerr = (List<?>) err;
-				if (lerr.size() < 2 || lerr.size() > 3) {
-					throw new RuntimeException("error is an array of wrong size: " + lerr.size());
-				}
-				err2 = new OpaRpcError(getErrorCode(lerr.get(0)), (String) lerr.get(1), lerr.size() >= 3 ? lerr.get(2) : null);
-			} else if (err instanceof Long) {
-				err2 = new OpaRpcError(getErrorCode(err));
-			} else {
-				throw new RuntimeException("unknown error object returned from server: " + OpaUtils.stringify(err));
+		OpaRpcError err2 = convertErr(err);
+
+		if (mBatchHandler != null && cb != null) {
+			if (!isInternal(cb)) {
+				addToBatch(cb, result, err2);
+				return;
+			}
+			if (mBatchLen > 0) {
+				// keep callback order: responses parsed before this one are handed over first
+				flushBatch();
 			}
 		}
 
@@ -91,13 +181,19 @@ class OpaClientRecvState {
 		mBuff.data = buff;
 		mBuff.idx = idx;
 		mBuff.len = len;
-		while (true) {
-			Object obj = mParser.parseNext(mBuff);
-			if (obj == OpaPartialParser.NOMORE) {
-				break;
+		try {
+			while (true) {
+				Object obj = mParser.parseNext(mBuff);
+				if (obj == OpaPartialParser.NOMORE) {
+					break;
+				}
+				onResponse(obj);
+				//++mNumRecv;
+			}
+		} finally {
+			if (mBatchLen > 0) {
+				flushBatch();
 			}
-			onResponse(obj);
-			//++mNumRecv;
 		}
 	}
 }
@@ -1,12 +1,17 @@
 package com.opatomic;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 class OpaClientUtils {
 	static final OpaRpcError CLOSED_ERROR = new OpaRpcError(OpaDef.ERR_CLOSED);
+	// the connection closed while the request was queued; the request was never written so it is safe to resend
+	static final OpaRpcError NOTSENT_ERROR = new OpaRpcError(OpaDef.ERR_CLOSED, "closed before request was sent");
 
 	static class ResponseCallbackFailure {
 		public final CallbackSF<Object,OpaRpcError> callback;
@@ -35,9 +40,31 @@ class OpaClientUtils {
 		}
 	}
 
+	// copy args so that they can be inspected and iterated again (ie, to route or resend a request)
+	static List<Object> toList(Iterator<?> args) {
+		List<Object> l = new ArrayList<Object>();
+		if (args != null) {
+			while (args.hasNext()) {
+				l.add(args.next());
+			}
+		}
+		return l;
+	}
+
 	static void writeRequest(OpaSerializer s, CharSequence cmd, Iterator<?> args, Object id) throws IOException {
 		s.write(OpaDef.C_ARRAYSTART);
 		s.writeObject(id);
+		writeCommand(s, cmd, args);
+	}
+
+	// write request with an id from AsyncIdTable (avoids boxing the id)
+	static void writeRequest(OpaSerializer s, CharSequence cmd, Iterator<?> args, long autoId) throws IOException {
+		s.write(OpaDef.C_ARRAYSTART);
+		s.writeLong(autoId);
+		writeCommand(s, cmd, args);
+	}
+
+	private static void writeCommand(OpaSerializer s, CharSequence cmd, Iterator<?> args) throws IOException {
 		if (cmd == null) {
 			s.writeObject(cmd);
 		} else {
@@ -51,6 +78,148 @@ class OpaClientUtils {
 		s.write(OpaDef.C_ARRAYEND);
 	}
 
+	static void writeRequest(OpaSerializer s, Request r) throws IOException {
+		if (r.batch != null) {
+			r.batch.writeTo(s);
+		} else if (r.autoId > 0) {
+			writeRequest(s, r.command, r.args, r.autoId);
+		} else {
+			writeRequest(s, r.command, r.args, r.asyncId);
+		}
+	}
+
+	/**
+	 * Estimate the number of bytes an object will use when serialized. Strings are assumed to be ascii.
+	 * Iterators and OpaSerializable objects cannot be inspected so a small size is assumed.
+	 */
+	static long estimateSize(Object o) {
+		if (o == null || o instanceof Boolean) {
+			return 1;
+		} else if (o instanceof CharSequence) {
+			return ((CharSequence) o).length() + 10;
+		} else if (o instanceof byte[]) {
+			return ((byte[]) o).length + 10;
+		} else if (o instanceof Number) {
+			if (o instanceof BigInteger) {
+				return (((BigInteger) o).bitLength() >> 3) + 10;
+			} else if (o instanceof BigDecimal) {
+				return (((BigDecimal) o).unscaledValue().bitLength() >> 3) + 20;
+			}
+			return 10;
+		} else if (o instanceof Object[]) {
+			Object[] a = (Object[]) o;
+			long sz = 2;
+			for (int i = 0; i < a.length; ++i) {
+				sz += estimateSize(a[i]);
+			}
+			return sz;
+		} else if (o instanceof Iterable) {
+			long sz = 2;
+			for (Object o2 : (Iterable<?>) o) {
+				sz += estimateSize(o2);
+			}
+			return sz;
+		}
+		return 16;
+	}
+
+	private static final int[] ONELANE = new int[] {1};
+
+	// returns weights of send queue lanes from config
+	static int[] laneWeights(OpaClientConfig cfg) {
+		int[] weights = cfg.priorityWeights;
+		if (weights == null || weights.length == 0) {
+			return ONELANE;
+		}
+		weights = weights.clone();
+		for (int i = 0; i < weights.length; ++i) {
+			if (weights[i] <= 0) {
+				throw new IllegalArgumentException("config priorityWeights must be greater than 0");
+			}
+		}
+		return weights;
+	}
+
+	static void checkPriority(int[] weights, int priority) {
+		if (priority < 0 || priority >= weights.length) {
+			throw new IllegalArgumentException("priority must be >= 0 and less than the number of priorityWeights");
+		}
+	}
+
+	static PendingLimit newPendingLimit(OpaClientConfig cfg) {
+		if (cfg.adaptivePendingLimit) {
+			return new PendingLimit(cfg.maxPendingResponses > 0 ? cfg.maxPendingResponses : OpaClientConfig.MAX_ADAPTIVE_PENDING, cfg.failWhenFull, true);
+		}
+		return cfg.maxPendingResponses > 0 ? new PendingLimit(cfg.maxPendingResponses, cfg.failWhenFull, false) : null;
+	}
+
+	// acquire permits for the responses that a request sent with the main callback queue will receive
+	static void acquireMain(PendingLimit limit, CallbackSF<Object,OpaRpcError> cb, OpaBatch batch) {
+		if (limit != null && cb != null) {
+			limit.acquire(batch != null ? batch.size() : 1);
+		}
+	}
+
+	static void releaseMain(PendingLimit limit, CallbackSF<Object,OpaRpcError> cb, OpaBatch batch) {
+		if (limit != null && cb != null) {
+			limit.release(batch != null ? batch.size() : 1, -1);
+		}
+	}
+
+	static Request newRequest(int lane, CharSequence cmd, Iterator<?> args, Object id, long autoId, CallbackSF<Object,OpaRpcError> cb, OpaBatch batch) {
+		Request r;
+		if (batch != null) {
+			r = new Request(batch, (OpaBatch.Collector) cb);
+		} else {
+			r = new Request(cmd, args, id, cb);
+			r.autoId = autoId;
+		}
+		r.lane = lane;
+		return r;
+	}
+
+	// notify callback that conn is closed; a batch's callback must fail each of its remaining responses
+	static void invokeClosed(OpaClientConfig cfg, CallbackSF<Object,OpaRpcError> cb) {
+		invokeError(cfg, cb, CLOSED_ERROR);
+	}
+
+	private static void invokeError(OpaClientConfig cfg, CallbackSF<Object,OpaRpcError> cb, OpaRpcError err) {
+		if (cb instanceof OpaBatch.Collector) {
+			try {
+				((OpaBatch.Collector) cb).failRemaining(err);
+			} catch (Exception ex) {
+				handleException(cfg.uncaughtExceptionHandler, ex, new ResponseCallbackFailure(cb, null, null, err));
+			}
+		} else {
+			invokeCallback(cfg, cb, null, err);
+		}
+	}
+
+	// notify callback of a request that was still queued when the conn closed (see NOTSENT_ERROR). A callA()
+	// callback is removed from autoCBs so that respondWithClosedErr() does not also notify it
+	static void invokeNotSent(OpaClientConfig cfg, Request r, AsyncIdTable autoCBs) {
+		CallbackSF<Object,OpaRpcError> cb;
+		if (r.autoId > 0) {
+			cb = autoCBs.remove(r.autoId);
+		} else if (r.usesMainCallbacks()) {
+			cb = r.cb;
+		} else {
+			// callID() request; registered callbacks are notified by respondWithClosedErr()
+			return;
+		}
+		if (cb != null) {
+			invokeError(cfg, cb, NOTSENT_ERROR);
+		}
+	}
+
+	/**
+	 * @return true if the error indicates that the request's connection closed before the request was written
+	 *         (the request was not received by the server and can be sent again)
+	 */
+	static boolean isNotSent(OpaRpcError err) {
+		return err == NOTSENT_ERROR;
+	}
+
 	static void handleException(OpaClientConfig.ExceptionHandler h, Throwable ex, Object context) {
 		try {
 			if (h != null) {
@@ -65,14 +234,19 @@ class OpaClientUtils {
 		}
 	}
 
-	static void respondWithClosedErr(OpaClientConfig cfg, Queue<CallbackSF<Object,OpaRpcError>> mainCBs, Map<Object,CallbackSF<Object,OpaRpcError>> asyncCBs) {
+	static void respondWithClosedErr(OpaClientConfig cfg, CallbackRing mainCBs, AsyncIdTable autoCBs, Map<Object,CallbackSF<Object,OpaRpcError>> asyncCBs) {
 		// notify callbacks that conn is closed
 		while (true) {
 			CallbackSF<Object,OpaRpcError> cb = mainCBs.poll();
 			if (cb == null) {
 				break;
 			}
-			invokeCallback(cfg, cb, null, CLOSED_ERROR);
+			invokeClosed(cfg, cb);
+		}
+
+		CallbackSF<Object,OpaRpcError>[] autoCBArray = autoCBs.removeAll();
+		for (int i = 0; i < autoCBArray.length; ++i) {
+			invokeCallback(cfg, autoCBArray[i], null, CLOSED_ERROR);
 		}
 
 		if (asyncCBs.size() > 0) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client that shares 1 request among identical reads that are pending at the same time (single-flight).
+ * A read is identical if its command and serialized args are the same. The first read is sent; reads that
+ * arrive before its response are not sent and receive the same response. Only commands that are reads in
+ * the OpaCommandTable (see getCommandTable()) and that have a callback are coalesced.
+ *
+ * <p>All callbacks of a shared request receive the same result object so they must not modify it.
+ * Responses are not received in the order that requests were sent (a read that joins an earlier request
+ * may receive its response before the responses of requests that were sent before it).
+ *
+ * <p>A command that is not a read stops later reads from joining requests that were sent before it, so a
+ * read that is sent after a write by this client is never answered by a response to a request that was
+ * sent before the write.
+ */
+public class OpaCoalescingClient implements OpaClient {
+	// a request that is being shared
+	private final class Flight implements InternalCallback {
+		private final SerializedKey mKey;
+		private final CallbackSF<Object,OpaRpcError> mFirst;
+		// guarded by this object's lock; null when response has been received
+		private List<CallbackSF<Object,OpaRpcError>> mOthers = new ArrayList<CallbackSF<Object,OpaRpcError>>(2);
+
+		Flight(SerializedKey key, CallbackSF<Object,OpaRpcError> cb) {
+			mKey = key;
+			mFirst = cb;
+		}
+
+		// returns false if the response has already been received
+		synchronized boolean join(CallbackSF<Object,OpaRpcError> cb) {
+			if (mOthers == null) {
+				return false;
+			}
+			mOthers.add(cb);
+			return true;
+		}
+
+		private List<CallbackSF<Object,OpaRpcError>> finish() {
+			mFlights.remove(mKey, this);
+			synchronized (this) {
+				List<CallbackSF<Object,OpaRpcError>> l = mOthers;
+				mOthers = null;
+				return l;
+			}
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			List<CallbackSF<Object,OpaRpcError>> others = finish();
+			mFirst.onSuccess(result);
+			for (int i = 0; i < others.size(); ++i) {
+				others.get(i).onSuccess(result);
+			}
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			List<CallbackSF<Object,OpaRpcError>> others = finish();
+			mFirst.onFailure(error);
+			for (int i = 0; i < others.size(); ++i) {
+				others.get(i).onFailure(error);
+			}
+		}
+	}
+
+	private final OpaClient mClient;
+	private final OpaCommandTable mCommands = new OpaCommandTable();
+	private final ConcurrentHashMap<SerializedKey,Flight> mFlights = new ConcurrentHashMap<SerializedKey,Flight>();
+	private final AtomicLong mNumCoalesced = new AtomicLong();
+
+	/**
+	 * @param c client to send requests to
+	 */
+	public OpaCoalescingClient(OpaClient c) {
+		mClient = c;
+	}
+
+	/**
+	 * @return the table used to decide whether a command is a read; can be modified
+	 */
+	public OpaCommandTable getCommandTable() {
+		return mCommands;
+	}
+
+	/**
+	 * @return number of reads that were not sent because they shared an identical pending request
+	 */
+	public long getNumCoalesced() {
+		return mNumCoalesced.get();
+	}
+
+	private void send(CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb, boolean async) {
+		if (cb == null || !mCommands.isRead(cmd)) {
+			if (async) {
+				mClient.callA(cmd, args.iterator(), cb);
+			} else {
+				mClient.call(cmd, args.iterator(), cb);
+			}
+			if (!mCommands.isRead(cmd)) {
+				// later reads must not be answered by requests that were sent before the write
+				mFlights.clear();
+			}
+			return;
+		}
+		SerializedKey key = SerializedKey.of(cmd, args);
+		while (true) {
+			Flight f = mFlights.get(key);
+			if (f != null) {
+				if (f.join(cb)) {
+					mNumCoalesced.incrementAndGet();
+					return;
+				}
+				// response was received while joining; start a new request
+				mFlights.remove(key, f);
+				continue;
+			}
+			f = new Flight(key, cb);
+			if (mFlights.putIfAbsent(key, f) != null) {
+				continue;
+			}
+			try {
+				if (async) {
+					mClient.callA(cmd, args.iterator(), f);
+				} else {
+					mClient.call(cmd, args.iterator(), f);
+				}
+			} catch (RuntimeException e) {
+				// request was not sent; fail the reads that joined it
+				mFlights.remove(key, f);
+				List<CallbackSF<Object,OpaRpcError>> others = f.finish();
+				for (int i = 0; i < others.size(); ++i) {
+					OpaClientUtils.invokeClosed(OpaClientConfig.DEFAULT_CFG, others.get(i));
+				}
+				throw e;
+			}
+			return;
+		}
+	}
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		send(cmd, OpaClientUtils.toList(args), cb, false);
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		send(cmd, OpaClientUtils.toList(args), cb, true);
+	}
+
+	@Override
+	public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		return mClient.registerCB(id, cb);
+	}
+
+	/**
+	 * See OpaClient.callID(). Requests with an async id are never coalesced.
+	 */
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		mClient.callID(id, cmd, args);
+		if (!mCommands.isRead(cmd)) {
+			mFlights.clear();
+		}
+	}
+}
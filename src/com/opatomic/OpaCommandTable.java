@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classifies commands as reads (commands that do not modify data) or writes. Commands that are not in the
+ * table are writes, so an unknown command is never sent somewhere that only reads are safe (ie, a replica).
+ */
+public final class OpaCommandTable {
+	private static final String[] DEFAULTREADS = {
+		"BGETRANGE", "BLEN", "DGET", "DLEN", "DMGET", "DRANGE", "ECHO", "KEYS", "LLEN", "LRANGE", "PING"
+	};
+
+	private final Map<String,Boolean> mReads = new ConcurrentHashMap<String,Boolean>();
+
+	/**
+	 * Create a table with the default read commands: BGETRANGE, BLEN, DGET, DLEN, DMGET, DRANGE, ECHO, KEYS,
+	 * LLEN, LRANGE, PING
+	 */
+	public OpaCommandTable() {
+		for (int i = 0; i < DEFAULTREADS.length; ++i) {
+			mReads.put(DEFAULTREADS[i], Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * @param cmd  command name
+	 * @param read whether the command only reads data
+	 */
+	public void setRead(CharSequence cmd, boolean read) {
+		if (read) {
+			mReads.put(cmd.toString(), Boolean.TRUE);
+		} else {
+			mReads.remove(cmd.toString());
+		}
+	}
+
+	/**
+	 * @param cmd command name
+	 * @return true if the command only reads data
+	 */
+	public boolean isRead(CharSequence cmd) {
+		return mReads.containsKey(cmd.toString());
+	}
+}
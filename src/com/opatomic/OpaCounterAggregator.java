@@ -0,0 +1,303 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client that adds up fire-and-forget increments (INCR sent with call() and a null callback) of each key
+ * and sends the total as 1 INCR per key. Increments are held for a time window (or until a number of
+ * increments are held). The server's counters are behind by the held increments until they are sent;
+ * increments that are held when the process exits are lost unless close() or flush() is called.
+ *
+ * <p>Every other command (including an INCR with a callback) first sends the held increments, so a read
+ * sent through this client sees all increments made before it.
+ *
+ * <p>Deltas are added as longs; if a delta is not an integer or the sum overflows then the sum is kept as a
+ * BigDecimal. Held increments are sent by a background thread when the window ends. Call close() to stop
+ * the thread.
+ */
+public class OpaCounterAggregator implements OpaClient {
+	private static final Long ONE = Long.valueOf(1);
+
+	private static final class Sum {
+		final Object key;
+		long sum;
+		BigDecimal big;
+
+		Sum(Object key) {
+			this.key = key;
+		}
+
+		void add(Object delta) {
+			if (big == null && (delta instanceof Long || delta instanceof Integer || delta instanceof Short || delta instanceof Byte)) {
+				long d = ((Number) delta).longValue();
+				long r = sum + d;
+				// overflow if both operands have a different sign than the result
+				if (((sum ^ r) & (d ^ r)) >= 0) {
+					sum = r;
+					return;
+				}
+			}
+			big = (big == null ? BigDecimal.valueOf(sum) : big).add(OpaUtils.getBig(delta));
+		}
+
+		Object get() {
+			return big != null ? big : Long.valueOf(sum);
+		}
+	}
+
+	private final OpaClient mClient;
+	private final long mWindowNanos;
+	private final int mMaxHeld;
+	// held while sending so that commands are sent in order
+	private final Object mSendLock = new Object();
+	// the following are guarded by this object's lock
+	private Map<Object,Sum> mSums = new LinkedHashMap<Object,Sum>();
+	private int mNumHeld;
+	private long mNumIncrs;
+	private long mNumSent;
+	private boolean mClosed;
+
+	/**
+	 * @param c       client to send requests to
+	 * @param window  max time to hold an increment
+	 * @param unit    unit of window
+	 * @param maxHeld send the held increments when this many increments are held
+	 */
+	public OpaCounterAggregator(OpaClient c, long window, TimeUnit unit, int maxHeld) {
+		if (maxHeld <= 0) {
+			throw new IllegalArgumentException("maxHeld must be greater than 0");
+		}
+		mClient = c;
+		mWindowNanos = unit.toNanos(window);
+		mMaxHeld = maxHeld;
+		OpaUtils.startDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "OpaCounterAggregator-flush");
+	}
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				while (mNumHeld == 0 && !mClosed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				if (mClosed) {
+					break;
+				}
+				// wait for the window to end; close() ends it early
+				long end = System.nanoTime() + mWindowNanos;
+				for (long left = mWindowNanos; left > 0 && !mClosed; left = end - System.nanoTime()) {
+					try {
+						wait(left / 1000000, (int) (left % 1000000));
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+			}
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				// client is closed or full; the unsent increments are held again and sent by a later flush
+			}
+		}
+	}
+
+	private synchronized Map<Object,Sum> takeSums() {
+		if (mNumHeld == 0) {
+			return null;
+		}
+		Map<Object,Sum> sums = mSums;
+		mSums = new LinkedHashMap<Object,Sum>();
+		mNumHeld = 0;
+		return sums;
+	}
+
+	// hold the sums that could not be sent again, before the sums that were added while sending
+	private synchronized void restoreSums(Iterator<Map.Entry<Object,Sum>> unsent, int numSent) {
+		mNumSent += numSent;
+		Map<Object,Sum> sums = new LinkedHashMap<Object,Sum>();
+		int num = 0;
+		while (unsent.hasNext()) {
+			Map.Entry<Object,Sum> e = unsent.next();
+			sums.put(e.getKey(), e.getValue());
+			++num;
+		}
+		Iterator<Map.Entry<Object,Sum>> it = mSums.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object,Sum> e = it.next();
+			Sum s = sums.get(e.getKey());
+			if (s == null) {
+				sums.put(e.getKey(), e.getValue());
+			} else {
+				s.add(e.getValue().get());
+			}
+		}
+		mSums = sums;
+		mNumHeld += num;
+	}
+
+	/**
+	 * Send the held increments now. If the wrapped client throws, then the increments that were not sent are
+	 * held again and the exception is rethrown.
+	 */
+	public void flush() {
+		synchronized (mSendLock) {
+			flushLocked();
+		}
+	}
+
+	// must hold mSendLock
+	private void flushLocked() {
+		Map<Object,Sum> sums = takeSums();
+		if (sums == null) {
+			return;
+		}
+		List<Object> args = new ArrayList<Object>(2);
+		// sent sums are removed so that the unsent sums can be held again if call() throws
+		Iterator<Map.Entry<Object,Sum>> it = sums.entrySet().iterator();
+		int numSent = 0;
+		try {
+			while (it.hasNext()) {
+				Sum s = it.next().getValue();
+				args.clear();
+				args.add(s.key);
+				args.add(s.get());
+				mClient.call("INCR", args.iterator(), null);
+				it.remove();
+				++numSent;
+			}
+		} catch (RuntimeException e) {
+			restoreSums(sums.entrySet().iterator(), numSent);
+			throw e;
+		}
+		synchronized (this) {
+			mNumSent += numSent;
+		}
+	}
+
+	// returns false if the command is not an increment that can be held
+	private boolean hold(CharSequence cmd, Iterator<?> args) {
+		if (args == null || !"INCR".contentEquals(cmd)) {
+			return false;
+		}
+		List<Object> l = OpaClientUtils.toList(args);
+		Object delta = l.size() == 2 ? l.get(1) : ONE;
+		if (l.size() < 1 || l.size() > 2 || (!(delta instanceof Long || delta instanceof Integer) && OpaUtils.getBig(delta) == null)) {
+			// let the server reject it
+			send(cmd, l.iterator(), null);
+			return true;
+		}
+		boolean full;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IllegalStateException("closed");
+			}
+			Object key = l.get(0);
+			if (key instanceof CharSequence) {
+				// most CharSequences do not implement equals()
+				key = key.toString();
+			} else {
+				// arrays do not implement equals(); key by contents
+				key = SerializedKey.of(key);
+			}
+			Sum s = mSums.get(key);
+			if (s == null) {
+				s = new Sum(l.get(0));
+				mSums.put(key, s);
+			}
+			s.add(delta);
+			++mNumIncrs;
+			if (++mNumHeld == 1) {
+				notifyAll();
+			}
+			full = mNumHeld >= mMaxHeld;
+		}
+		if (full) {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				// the increment is held; it is sent by a later flush
+			}
+		}
+		return true;
+	}
+
+	// send held increments then a command
+	private void send(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		synchronized (mSendLock) {
+			flushLocked();
+			mClient.call(cmd, args, cb);
+		}
+	}
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb != null || !hold(cmd, args)) {
+			send(cmd, args, cb);
+		}
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		synchronized (mSendLock) {
+			flushLocked();
+			mClient.callA(cmd, args, cb);
+		}
+	}
+
+	@Override
+	public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		return mClient.registerCB(id, cb);
+	}
+
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		synchronized (mSendLock) {
+			flushLocked();
+			mClient.callID(id, cmd, args);
+		}
+	}
+
+	/**
+	 * @return number of increments that were held
+	 */
+	public synchronized long getNumIncrements() {
+		return mNumIncrs;
+	}
+
+	/**
+	 * @return number of INCR commands that were sent for the held increments
+	 */
+	public synchronized long getNumSent() {
+		return mNumSent;
+	}
+
+	/**
+	 * Send the held increments and stop the background thread. Does not close the wrapped client.
+	 */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+		flush();
+	}
+}
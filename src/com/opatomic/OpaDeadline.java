@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Callback wrapper that fails a request if its response is not received before a deadline. Only 1 of the
+ * following is passed to the wrapped callback: the response, an ERR_TIMEOUT error when the deadline passes,
+ * or an ERR_CANCELLED error if cancel() is called. A response that arrives after the request timed out or was
+ * cancelled is ignored.
+ *
+ * <p>All deadlines share a single hashed wheel timer thread; the timer's resolution is 10 milliseconds.
+ * The ERR_TIMEOUT error is passed to the wrapped callback on that thread, so the callback must not block
+ * (ie, make a call that waits for space in a full send queue); a slow callback delays every other deadline.
+ * OpaStreamClient will not send a request that has already timed out or been cancelled. A callA() request
+ * is removed from the client's pending callbacks when it times out. A call() request's response must still
+ * be read in order, so its wrapper (but not the wrapped callback) is kept until the response arrives or the
+ * connection is closed.
+ */
+public final class OpaDeadline extends OpaTimer.Task implements CallbackSF<Object,OpaRpcError>, InternalCallback {
+	private static final AtomicIntegerFieldUpdater<OpaDeadline> STATE = AtomicIntegerFieldUpdater.newUpdater(OpaDeadline.class, "mState");
+
+	static final OpaRpcError TIMEOUT_ERROR = new OpaRpcError(OpaDef.ERR_TIMEOUT, "timed out");
+	static final OpaRpcError CANCELLED_ERROR = new OpaRpcError(OpaDef.ERR_CANCELLED, "cancelled");
+
+	private static final int PENDING = 0;
+	private static final int DONE = 1;
+
+	private CallbackSF<Object,OpaRpcError> mCB;
+	private volatile int mState;
+	private volatile AsyncIdTable mTable;
+	private volatile long mId;
+
+	/**
+	 * Create a wrapper and start its timer.
+	 * @param cb      callback to invoke with the response or error
+	 * @param timeout max time to wait for the response
+	 * @param unit    unit of timeout
+	 */
+	public OpaDeadline(CallbackSF<Object,OpaRpcError> cb, long timeout, TimeUnit unit) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		mCB = cb;
+		OpaTimer.INSTANCE.schedule(this, unit.toNanos(timeout));
+	}
+
+	/**
+	 * Create a wrapper without a deadline; the request can only be cancelled.
+	 */
+	OpaDeadline(CallbackSF<Object,OpaRpcError> cb) {
+		mCB = cb;
+	}
+
+	// returns the wrapped callback if the caller is the first to complete this object
+	private CallbackSF<Object,OpaRpcError> complete() {
+		if (!STATE.compareAndSet(this, PENDING, DONE)) {
+			return null;
+		}
+		CallbackSF<Object,OpaRpcError> cb = mCB;
+		mCB = null;
+		return cb;
+	}
+
+	// request could not be queued; stop timer without invoking callback
+	private void abandon() {
+		OpaTimer.INSTANCE.cancel(this);
+		complete();
+	}
+
+	// true if request should not be sent
+	static boolean isDone(CallbackSF<Object,OpaRpcError> cb) {
+		return cb instanceof OpaDeadline && ((OpaDeadline) cb).isDone();
+	}
+
+	// called by client when the callback is stored with an id from AsyncIdTable
+	void setAsyncId(AsyncIdTable t, long id) {
+		mId = id;
+		mTable = t;
+		if (mState != PENDING) {
+			// expired or cancelled before id was set
+			t.cancel(id);
+		}
+	}
+
+	private boolean fail(OpaRpcError err) {
+		CallbackSF<Object,OpaRpcError> cb = complete();
+		if (cb == null) {
+			return false;
+		}
+		AsyncIdTable t = mTable;
+		if (t != null) {
+			t.cancel(mId);
+		}
+		cb.onFailure(err);
+		return true;
+	}
+
+	@Override
+	void expire() {
+		fail(TIMEOUT_ERROR);
+	}
+
+	/**
+	 * Cancel the request. The wrapped callback's onFailure() is invoked with an ERR_CANCELLED error. If the
+	 * request has not been sent yet then it will not be sent.
+	 * @return true if the request was cancelled; false if it had already completed
+	 */
+	public boolean cancel() {
+		if (mState != PENDING) {
+			return false;
+		}
+		OpaTimer.INSTANCE.cancel(this);
+		return fail(CANCELLED_ERROR);
+	}
+
+	/**
+	 * @return true if the response was received, the deadline passed, or the request was cancelled
+	 */
+	public boolean isDone() {
+		return mState != PENDING;
+	}
+
+	@Override
+	public void onSuccess(Object result) {
+		CallbackSF<Object,OpaRpcError> cb = complete();
+		if (cb != null) {
+			OpaTimer.INSTANCE.cancel(this);
+			cb.onSuccess(result);
+		}
+	}
+
+	@Override
+	public void onFailure(OpaRpcError error) {
+		CallbackSF<Object,OpaRpcError> cb = complete();
+		if (cb != null) {
+			OpaTimer.INSTANCE.cancel(this);
+			cb.onFailure(error);
+		}
+	}
+
+	/**
+	 * Run a command and fail it with ERR_TIMEOUT if the response is not received in time.
+	 * @param c       client to use
+	 * @param cmd     Command to run
+	 * @param args    Command's parameters
+	 * @param timeout max time to wait for the response
+	 * @param unit    unit of timeout
+	 * @param cb      Callback to invoke when response is received, the deadline passes, or the request is cancelled
+	 * @return object that can be used to cancel the request
+	 */
+	public static OpaDeadline call(OpaClient c, CharSequence cmd, Iterator<?> args, long timeout, TimeUnit unit, CallbackSF<Object,OpaRpcError> cb) {
+		OpaDeadline d = new OpaDeadline(cb, timeout, unit);
+		try {
+			c.call(cmd, args, d);
+		} catch (RuntimeException e) {
+			d.abandon();
+			throw e;
+		}
+		return d;
+	}
+
+	/**
+	 * Same as call() but uses an auto-generated async id (see OpaClient.callA()).
+	 * @param c       client to use
+	 * @param cmd     Command to run
+	 * @param args    Command's parameters
+	 * @param timeout max time to wait for the response
+	 * @param unit    unit of timeout
+	 * @param cb      Callback to invoke when response is received, the deadline passes, or the request is cancelled
+	 * @return object that can be used to cancel the request
+	 */
+	public static OpaDeadline callA(OpaClient c, CharSequence cmd, Iterator<?> args, long timeout, TimeUnit unit, CallbackSF<Object,OpaRpcError> cb) {
+		OpaDeadline d = new OpaDeadline(cb, timeout, unit);
+		try {
+			c.callA(cmd, args, d);
+		} catch (RuntimeException e) {
+			d.abandon();
+			throw e;
+		}
+		return d;
+	}
+}
@@ -14,6 +14,8 @@ public class OpaDef {
 
 	public static final int ERR_CLOSED      = -1;
 	public static final int ERR_INVRESPONSE = -2;
+	public static final int ERR_TIMEOUT     = -3;
+	public static final int ERR_CANCELLED   = -4;
 
 	public static final byte C_UNDEFINED    = 'U';
 	public static final byte C_NULL         = 'N';
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client that caches the responses of read commands in memory. Only commands that are configured with
+ * setCached() are cached (DGET by default). An entry is found by its command and args; its key is the first
+ * arg. Responses are stored in serialized form and parsed on each hit, so each hit returns a new object
+ * that the caller may modify.
+ *
+ * <p>The cache is bounded by the estimated size of its entries. Entries are admitted and evicted with the
+ * W-TinyLFU policy: new entries go into a small LRU window; an entry that leaves the window replaces the
+ * least recently used entry of the main segmented LRU only if it has been accessed more often recently
+ * (estimated by a FrequencySketch). Entries that are hit in the main area's probation segment move to its
+ * protected segment.
+ *
+ * <p>Entries become stale when their key is modified. Entries are invalidated when this client sends a
+ * command that is not a read (see getCommandTable()) with the key as one of its args, and when a key is
+ * published to the invalidation channel (see listen()). Other clients' writes are only seen through the
+ * invalidation channel. A response is not cached if its key was invalidated while the request was pending.
+ *
+ * <p>A hit invokes the callback immediately from the calling thread, so its response may be received
+ * before the responses of requests that were sent earlier.
+ */
+public class OpaNearCache implements OpaClient {
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	// estimated size of an entry's objects (not including its key and value)
+	private static final int ENTRYOVERHEAD = 96;
+	private static final int STAMPS = 1024;
+
+	private static final class Entry {
+		final SerializedKey key;
+		final SerializedKey dataKey;
+		final byte[] value;
+		final int size;
+		int segment;
+		Entry prev;
+		Entry next;
+
+		Entry(SerializedKey key, SerializedKey dataKey, byte[] value) {
+			this.key = key;
+			this.dataKey = dataKey;
+			this.value = value;
+			size = key == null ? 0 : key.bytes.length + value.length + ENTRYOVERHEAD;
+		}
+	}
+
+	// stores a response in the cache then passes it to the caller
+	private final class Fill implements InternalCallback {
+		private final SerializedKey mKey;
+		private final SerializedKey mDataKey;
+		private final long mStamp;
+		private final CallbackSF<Object,OpaRpcError> mCB;
+
+		Fill(SerializedKey key, SerializedKey dataKey, long stamp, CallbackSF<Object,OpaRpcError> cb) {
+			mKey = key;
+			mDataKey = dataKey;
+			mStamp = stamp;
+			mCB = cb;
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			put(mKey, mDataKey, SerializedKey.serialize(result), mStamp);
+			mCB.onSuccess(result);
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			mCB.onFailure(error);
+		}
+	}
+
+	// receives pub/sub messages; handles invalidations and passes other messages to the registered callback
+	private final class Dispatcher implements InternalCallback {
+		@Override
+		public void onSuccess(Object result) {
+			if (result instanceof List) {
+				List<?> l = (List<?>) result;
+				Object channel = mChannel;
+				if (l.size() >= 2 && channel != null && channel.equals(OpaPubSub.key(l.get(0)))) {
+					invalidateMessage(l.get(1));
+					return;
+				}
+			}
+			CallbackSF<Object,OpaRpcError> cb = mPubSubCB;
+			if (cb != null) {
+				cb.onSuccess(result);
+			}
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			// invalidations may have been missed
+			invalidateAll();
+			CallbackSF<Object,OpaRpcError> cb = mPubSubCB;
+			if (cb != null) {
+				cb.onFailure(error);
+			}
+		}
+	}
+
+	private final OpaClient mClient;
+	private final OpaCommandTable mCommands = new OpaCommandTable();
+	private final Map<String,Boolean> mCached = new ConcurrentHashMap<String,Boolean>();
+	private volatile Object mPubSubId;
+	// invalidation channel, keyed by OpaPubSub.key()
+	private volatile Object mChannel;
+	private volatile CallbackSF<Object,OpaRpcError> mPubSubCB;
+
+	// the following are guarded by this object's lock
+	private final long mMaxBytes;
+	private final long mWindowMax;
+	private final long mProtectedMax;
+	private final Map<SerializedKey,Entry> mEntries = new HashMap<SerializedKey,Entry>();
+	private final Map<SerializedKey,List<Entry>> mByDataKey = new HashMap<SerializedKey,List<Entry>>();
+	private final Entry[] mLists = new Entry[3];
+	private final long[] mBytes = new long[3];
+	// incremented when a key that hashes to the stamp is invalidated; a response is only cached if the stamp
+	// of its key has not changed since the request was sent
+	private final long[] mStamps = new long[STAMPS];
+	private final FrequencySketch mSketch;
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+	private long mInvalidations;
+
+	/**
+	 * @param c        client to send requests to
+	 * @param maxBytes max estimated size of all entries
+	 */
+	public OpaNearCache(OpaClient c, long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be greater than 0");
+		}
+		mClient = c;
+		mMaxBytes = maxBytes;
+		mWindowMax = Math.max(1, maxBytes / 100);
+		mProtectedMax = (maxBytes - mWindowMax) * 8 / 10;
+		mSketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(64, maxBytes / 256)));
+		for (int i = 0; i < mLists.length; ++i) {
+			// sentinel of circular list; next is most recently used
+			Entry e = new Entry(null, null, null);
+			e.prev = e;
+			e.next = e;
+			mLists[i] = e;
+		}
+		mCached.put("DGET", Boolean.TRUE);
+	}
+
+	/**
+	 * @return the table used to decide whether a command modifies its args' keys; can be modified
+	 */
+	public OpaCommandTable getCommandTable() {
+		return mCommands;
+	}
+
+	/**
+	 * Set whether the responses of a command are cached. The command should be a read whose key is its first
+	 * arg.
+	 * @param cmd    command name
+	 * @param cached whether to cache responses
+	 */
+	public void setCached(CharSequence cmd, boolean cached) {
+		if (cached) {
+			mCached.put(cmd.toString(), Boolean.TRUE);
+		} else {
+			mCached.remove(cmd.toString());
+		}
+	}
+
+	/**
+	 * Subscribe to a channel of invalidation messages. Each message is a key, a list of keys, or null to
+	 * invalidate every entry. All entries are invalidated if the pub/sub callback fails (ie, the connection
+	 * closes) because messages may have been missed. Messages from other channels are passed to the
+	 * callback that is registered with this object's registerCB() using the same id.
+	 * @param pubsubId id that the server uses for pub/sub messages (ie, "_pubsub")
+	 * @param channel  channel to subscribe to
+	 */
+	public void listen(Object pubsubId, Object channel) {
+		synchronized (this) {
+			mChannel = OpaPubSub.key(channel);
+			mPubSubId = pubsubId;
+		}
+		CallbackSF<Object,OpaRpcError> prev = mClient.registerCB(pubsubId, new Dispatcher());
+		if (prev != null && !(prev instanceof Dispatcher) && mPubSubCB == null) {
+			// callback was registered before listen() was called
+			mPubSubCB = prev;
+		}
+		List<Object> args = new ArrayList<Object>(1);
+		args.add(channel);
+		mClient.call("SUBSCRIBE", args.iterator(), null);
+	}
+
+	private Entry lru(int segment) {
+		Entry s = mLists[segment];
+		return s.prev == s ? null : s.prev;
+	}
+
+	private void link(Entry e, int segment) {
+		Entry s = mLists[segment];
+		e.segment = segment;
+		e.prev = s;
+		e.next = s.next;
+		s.next.prev = e;
+		s.next = e;
+		mBytes[segment] += e.size;
+	}
+
+	private void unlink(Entry e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+		mBytes[e.segment] -= e.size;
+	}
+
+	// remove an entry that has been unlinked
+	private void discard(Entry e) {
+		mEntries.remove(e.key);
+		List<Entry> l = mByDataKey.get(e.dataKey);
+		if (l != null) {
+			l.remove(e);
+			if (l.isEmpty()) {
+				mByDataKey.remove(e.dataKey);
+			}
+		}
+	}
+
+	private int stamp(SerializedKey dataKey) {
+		return dataKey.hashCode() & (STAMPS - 1);
+	}
+
+	// returns the cached value or null; if not cached then stamp[0] is set to the key's stamp
+	private synchronized byte[] get(SerializedKey key, SerializedKey dataKey, long[] stamp) {
+		mSketch.increment(key.hashCode());
+		Entry e = mEntries.get(key);
+		if (e == null) {
+			++mMisses;
+			stamp[0] = mStamps[stamp(dataKey)];
+			return null;
+		}
+		++mHits;
+		unlink(e);
+		if (e.segment == PROBATION) {
+			link(e, PROTECTED);
+			while (mBytes[PROTECTED] > mProtectedMax) {
+				Entry d = lru(PROTECTED);
+				unlink(d);
+				link(d, PROBATION);
+			}
+		} else {
+			link(e, e.segment);
+		}
+		return e.value;
+	}
+
+	private synchronized void put(SerializedKey key, SerializedKey dataKey, byte[] value, long stamp) {
+		if (mStamps[stamp(dataKey)] != stamp) {
+			// key was invalidated while request was pending
+			return;
+		}
+		Entry e = new Entry(key, dataKey, value);
+		if (e.size > mMaxBytes - mWindowMax) {
+			return;
+		}
+		Entry prev = mEntries.put(key, e);
+		if (prev != null) {
+			unlink(prev);
+			discard(prev);
+			mEntries.put(key, e);
+		}
+		List<Entry> l = mByDataKey.get(dataKey);
+		if (l == null) {
+			l = new ArrayList<Entry>(2);
+			mByDataKey.put(dataKey, l);
+		}
+		l.add(e);
+		link(e, WINDOW);
+		evict();
+	}
+
+	// move entries that do not fit in the window to the main area, evicting the least frequently used
+	private void evict() {
+		long mainMax = mMaxBytes - mWindowMax;
+		while (mBytes[WINDOW] > mWindowMax) {
+			Entry c = lru(WINDOW);
+			unlink(c);
+			int freq = mSketch.frequency(c.key.hashCode());
+			boolean admit = true;
+			while (mBytes[PROBATION] + mBytes[PROTECTED] + c.size > mainMax) {
+				Entry victim = lru(PROBATION);
+				if (victim == null) {
+					victim = lru(PROTECTED);
+				}
+				if (freq <= mSketch.frequency(victim.key.hashCode())) {
+					admit = false;
+					break;
+				}
+				unlink(victim);
+				discard(victim);
+				++mEvictions;
+			}
+			if (admit) {
+				link(c, PROBATION);
+			} else {
+				discard(c);
+				++mEvictions;
+			}
+		}
+	}
+
+	/**
+	 * Remove the entries of a key.
+	 */
+	public void invalidate(Object key) {
+		invalidate(SerializedKey.of(key));
+	}
+
+	private synchronized void invalidate(SerializedKey dataKey) {
+		++mStamps[stamp(dataKey)];
+		List<Entry> l = mByDataKey.remove(dataKey);
+		if (l != null) {
+			for (int i = 0; i < l.size(); ++i) {
+				Entry e = l.get(i);
+				unlink(e);
+				mEntries.remove(e.key);
+				++mInvalidations;
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public synchronized void invalidateAll() {
+		for (int i = 0; i < STAMPS; ++i) {
+			++mStamps[i];
+		}
+		mInvalidations += mEntries.size();
+		mEntries.clear();
+		mByDataKey.clear();
+		for (int i = 0; i < mLists.length; ++i) {
+			Entry s = mLists[i];
+			s.prev = s;
+			s.next = s;
+			mBytes[i] = 0;
+		}
+	}
+
+	private void invalidateMessage(Object msg) {
+		if (msg == null) {
+			invalidateAll();
+		} else if (msg instanceof List) {
+			List<?> keys = (List<?>) msg;
+			for (int i = 0; i < keys.size(); ++i) {
+				invalidate(keys.get(i));
+			}
+		} else {
+			invalidate(msg);
+		}
+	}
+
+	/**
+	 * @return counters and size of the cache
+	 */
+	public synchronized OpaCacheMetrics getMetrics() {
+		return new OpaCacheMetrics(mHits, mMisses, mEvictions, mInvalidations, mEntries.size(), mBytes[WINDOW] + mBytes[PROBATION] + mBytes[PROTECTED]);
+	}
+
+	// invalidate keys that a write may modify (any of its args could be a key)
+	private void onWrite(List<Object> args) {
+		for (int i = 0; i < args.size(); ++i) {
+			Object a = args.get(i);
+			if (a instanceof CharSequence || a instanceof byte[]) {
+				invalidate(SerializedKey.of(a));
+			}
+		}
+	}
+
+	private void getOrSend(CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb, boolean async) {
+		SerializedKey key = SerializedKey.of(cmd, args);
+		SerializedKey dataKey = SerializedKey.of(args.get(0));
+		long[] stamp = new long[1];
+		byte[] val = get(key, dataKey, stamp);
+		if (val != null) {
+			cb.onSuccess(SerializedKey.parse(val));
+			return;
+		}
+		Fill f = new Fill(key, dataKey, stamp[0], cb);
+		if (async) {
+			mClient.callA(cmd, args.iterator(), f);
+		} else {
+			mClient.call(cmd, args.iterator(), f);
+		}
+	}
+
+	private boolean isCached(CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb) {
+		return cb != null && !args.isEmpty() && mCached.containsKey(cmd.toString());
+	}
+
+	// note: keys are invalidated after a write is sent. a read that was sent before the write may receive the
+	// old value; changing the key's stamp prevents the old value from being cached (or removes it)
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		List<Object> l = OpaClientUtils.toList(args);
+		if (isCached(cmd, l, cb)) {
+			getOrSend(cmd, l, cb, false);
+			return;
+		}
+		mClient.call(cmd, l.iterator(), cb);
+		if (!mCommands.isRead(cmd)) {
+			onWrite(l);
+		}
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		List<Object> l = OpaClientUtils.toList(args);
+		if (isCached(cmd, l, cb)) {
+			getOrSend(cmd, l, cb, true);
+			return;
+		}
+		mClient.callA(cmd, l.iterator(), cb);
+		if (!mCommands.isRead(cmd)) {
+			onWrite(l);
+		}
+	}
+
+	/**
+	 * See OpaClient.registerCB(). If listen() has been called with the same id then the callback receives the
+	 * pub/sub messages that are not invalidations.
+	 */
+	@Override
+	public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		synchronized (this) {
+			if (id.equals(mPubSubId)) {
+				CallbackSF<Object,OpaRpcError> prev = mPubSubCB;
+				mPubSubCB = cb;
+				return prev;
+			}
+		}
+		return mClient.registerCB(id, cb);
+	}
+
+	/**
+	 * See OpaClient.callID(). Responses are not cached; a command that is not a read invalidates its keys.
+	 */
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		List<Object> l = OpaClientUtils.toList(args);
+		mClient.callID(id, cmd, l.iterator());
+		if (!mCommands.isRead(cmd)) {
+			onWrite(l);
+		}
+	}
+}
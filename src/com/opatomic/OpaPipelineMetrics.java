@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Snapshot of a client's limit on pending responses (see OpaClientConfig.maxPendingResponses and
+ * OpaClientConfig.adaptivePendingLimit).
+ */
+public class OpaPipelineMetrics {
+	/**
+	 * Current max number of pending responses.
+	 */
+	public final int limit;
+	/**
+	 * Number of responses the client is waiting for.
+	 */
+	public final int pending;
+	/**
+	 * Lowest response time seen (since the last periodic reset), in nanoseconds. 0 if not adaptive.
+	 */
+	public final long minRttNanos;
+	/**
+	 * Lowest response time in the last window of samples, in nanoseconds. 0 if not adaptive.
+	 */
+	public final long lastRttNanos;
+	/**
+	 * Number of times the adaptive limit was increased.
+	 */
+	public final long numIncreases;
+	/**
+	 * Number of times the adaptive limit was decreased.
+	 */
+	public final long numDecreases;
+
+	public OpaPipelineMetrics(int limit, int pending, long minRttNanos, long lastRttNanos, long numIncreases, long numDecreases) {
+		this.limit = limit;
+		this.pending = pending;
+		this.minRttNanos = minRttNanos;
+		this.lastRttNanos = lastRttNanos;
+		this.numIncreases = numIncreases;
+		this.numDecreases = numDecreases;
+	}
+
+	@Override
+	public String toString() {
+		return "limit=" + limit + " pending=" + pending + " minRtt=" + (minRttNanos / 1000) + "us lastRtt=" + (lastRttNanos / 1000)
+			+ "us increases=" + numIncreases + " decreases=" + numDecreases;
+	}
+}
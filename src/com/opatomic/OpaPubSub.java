@@ -0,0 +1,447 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches pub/sub messages to subscribers by channel. Register it as the callback of the pub/sub id
+ * (see register()) and subscribe through it instead of sending SUBSCRIBE/PSUBSCRIBE. A channel or pattern is
+ * subscribed to on the server when its first subscriber is added and unsubscribed when its last subscriber is
+ * cancelled; the channels of 1 subscribe() call are sent in as few commands as possible.
+ * <br><br>
+ * A message is a list of [channel, message] for a channel subscription or [channel, message, pattern] for
+ * a pattern subscription. Subscribers receive the whole list. Looking up the subscribers of a message does
+ * not lock; the registries are copied when subscribers are added or removed.
+ * <br><br>
+ * If an Executor is given then each subscriber has a bounded queue and its messages are delivered in order
+ * by the executor (1 task at a time per subscriber). When a subscriber's queue is full, its overflow policy
+ * decides whether the oldest message is dropped, the newest message is dropped, or the subscriber is
+ * cancelled and receives an ERR_CANCELLED error. Without an executor, messages are delivered on the
+ * thread that receives them (often the client's parser thread) so subscribers must not block.
+ * <br><br>
+ * An error sent to the pub/sub id (ie, the connection closed) is passed to every subscriber; subscribers
+ * are not removed.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ *   OpaPubSub ps = OpaPubSub.register(client, "_pubsub", executor);
+ *   OpaPubSub.Subscription s = ps.subscribe(Arrays.asList("ch1", "ch2"), cb, 1024, OpaPubSub.Overflow.DROP_OLDEST);
+ *   ...
+ *   s.cancel();
+ * }
+ * </pre>
+ */
+public class OpaPubSub implements CallbackSF<Object,OpaRpcError>, InternalCallback {
+	/**
+	 * What to do when a message is received and a subscriber's queue is full.
+	 */
+	public enum Overflow {
+		/** Remove the oldest queued message to make room for the new message */
+		DROP_OLDEST,
+		/** Discard the new message */
+		DROP_NEWEST,
+		/** Cancel the subscriber and send it an ERR_CANCELLED error */
+		CANCEL
+	}
+
+	// max number of channels to send in 1 SUBSCRIBE/UNSUBSCRIBE command
+	private static final int MAXBATCH = 1024;
+
+	private static final Subscription[] EMPTY = new Subscription[0];
+
+	/**
+	 * A subscriber of 1 or more channels or patterns.
+	 */
+	public final class Subscription implements Runnable {
+		private final Map<Object,Object> mNames;
+		private final boolean mPattern;
+		private final CallbackSF<Object,OpaRpcError> mCB;
+		private final Overflow mOverflow;
+		private final AtomicInteger mWip = new AtomicInteger();
+
+		// the following are guarded by this object's lock
+		private final Object[] mBuff;
+		private int mHead;
+		private int mSize;
+		private long mNumDropped;
+		private OpaRpcError mError;
+		private boolean mCancelled;
+
+		Subscription(Map<Object,Object> names, boolean pattern, CallbackSF<Object,OpaRpcError> cb, int queueLen, Overflow overflow) {
+			mNames = names;
+			mPattern = pattern;
+			mCB = cb;
+			mOverflow = overflow;
+			mBuff = mExecutor == null ? null : new Object[queueLen];
+		}
+
+		/**
+		 * Stop receiving messages. Channels or patterns that have no other subscribers are unsubscribed
+		 * on the server. Messages that are queued are discarded. Must not be called from a callback that runs
+		 * on the client's parser thread (no executor) if sending the UNSUBSCRIBE could block.
+		 */
+		public void cancel() {
+			if (markCancelled()) {
+				remove(this);
+			}
+		}
+
+		// returns false if already cancelled
+		private synchronized boolean markCancelled() {
+			if (mCancelled) {
+				return false;
+			}
+			mCancelled = true;
+			if (mBuff != null) {
+				for (int i = 0; i < mSize; ++i) {
+					mBuff[(mHead + i) % mBuff.length] = null;
+				}
+				mSize = 0;
+			}
+			return true;
+		}
+
+		/**
+		 * @return number of messages that were dropped because the queue was full
+		 */
+		public synchronized long getNumDropped() {
+			return mNumDropped;
+		}
+
+		/**
+		 * @return number of messages waiting to be delivered
+		 */
+		public synchronized int getNumQueued() {
+			return mSize;
+		}
+
+		void onMessage(Object msg) {
+			if (mBuff == null) {
+				mCB.onSuccess(msg);
+				return;
+			}
+			boolean slow = false;
+			synchronized (this) {
+				if (mCancelled) {
+					return;
+				}
+				if (mSize == mBuff.length) {
+					++mNumDropped;
+					switch (mOverflow) {
+						case DROP_OLDEST:
+							mBuff[mHead] = null;
+							mHead = (mHead + 1) % mBuff.length;
+							--mSize;
+							break;
+						case DROP_NEWEST:
+							return;
+						default:
+							slow = true;
+							markCancelled();
+							mError = new OpaRpcError(OpaDef.ERR_CANCELLED, "subscriber did not keep up; queue of " + mBuff.length + " messages is full");
+					}
+				}
+				if (!slow) {
+					mBuff[(mHead + mSize) % mBuff.length] = msg;
+					++mSize;
+				}
+			}
+			if (slow) {
+				// this is usually the client's parser thread; sending UNSUBSCRIBE here could block waiting for
+				// responses that only this thread can read
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						remove(Subscription.this);
+					}
+				});
+			}
+			schedule();
+		}
+
+		void onError(OpaRpcError err) {
+			if (mBuff == null) {
+				mCB.onFailure(err);
+				return;
+			}
+			synchronized (this) {
+				if (mCancelled) {
+					return;
+				}
+				mError = err;
+			}
+			schedule();
+		}
+
+		private void schedule() {
+			if (mWip.getAndIncrement() == 0) {
+				mExecutor.execute(this);
+			}
+		}
+
+		/**
+		 * Delivers queued messages. Only run by the executor.
+		 */
+		@Override
+		public void run() {
+			int missed = 1;
+			while (true) {
+				while (true) {
+					Object msg = null;
+					OpaRpcError err = null;
+					synchronized (this) {
+						if (mSize > 0) {
+							msg = mBuff[mHead];
+							mBuff[mHead] = null;
+							mHead = (mHead + 1) % mBuff.length;
+							--mSize;
+						} else if (mError != null) {
+							err = mError;
+							mError = null;
+						} else {
+							break;
+						}
+					}
+					if (err != null) {
+						mCB.onFailure(err);
+					} else {
+						mCB.onSuccess(msg);
+					}
+				}
+				missed = mWip.addAndGet(-missed);
+				if (missed == 0) {
+					break;
+				}
+			}
+		}
+	}
+
+	private final OpaClient mClient;
+	private final Object mId;
+	private final Executor mExecutor;
+	// copy on write; arrays are replaced while holding mLock
+	private final ConcurrentHashMap<Object,Subscription[]> mChannels = new ConcurrentHashMap<Object,Subscription[]>();
+	private final ConcurrentHashMap<Object,Subscription[]> mPatterns = new ConcurrentHashMap<Object,Subscription[]>();
+	// held while changing the registries and sending (UN)SUBSCRIBE so that the server's subscriptions match
+	private final Object mLock = new Object();
+
+	/**
+	 * Create a new dispatcher. It must be registered with the client to receive messages; see register().
+	 * @param c        client to send SUBSCRIBE/UNSUBSCRIBE commands to
+	 * @param id       async id that the server uses for pub/sub messages (ie, "_pubsub")
+	 * @param executor runs the delivery of queued messages; if null then messages are not queued and are
+	 *                 delivered on the thread that receives them
+	 */
+	public OpaPubSub(OpaClient c, Object id, Executor executor) {
+		mClient = c;
+		mId = id;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Create a new dispatcher and register it with a client to receive the messages of a pub/sub id.
+	 * @param c        client to register with
+	 * @param id       async id that the server uses for pub/sub messages (ie, "_pubsub")
+	 * @param executor runs the delivery of queued messages; can be null. See constructor
+	 * @return the new dispatcher
+	 */
+	public static OpaPubSub register(OpaClient c, Object id, Executor executor) {
+		OpaPubSub ps = new OpaPubSub(c, id, executor);
+		c.registerCB(id, ps);
+		return ps;
+	}
+
+	/**
+	 * @return the async id that this dispatcher receives messages for
+	 */
+	public Object getId() {
+		return mId;
+	}
+
+	// channel names from the server are usually strings; other names are compared by serialized contents
+	static Object key(Object name) {
+		if (name instanceof CharSequence) {
+			return name.toString();
+		}
+		return SerializedKey.of(name);
+	}
+
+	/**
+	 * Subscribe to channels.
+	 * @param channels channels to receive messages from
+	 * @param cb       receives messages and errors
+	 * @param queueLen max number of messages to queue for the subscriber; ignored if there is no executor
+	 * @param overflow what to do when a message is received and the queue is full
+	 * @return the subscription; cancel it to stop receiving messages
+	 */
+	public Subscription subscribe(Collection<?> channels, CallbackSF<Object,OpaRpcError> cb, int queueLen, Overflow overflow) {
+		return add(channels, false, cb, queueLen, overflow);
+	}
+
+	/**
+	 * Subscribe to channel patterns (PSUBSCRIBE).
+	 * @param patterns patterns to receive messages from
+	 * @param cb       receives messages and errors
+	 * @param queueLen max number of messages to queue for the subscriber; ignored if there is no executor
+	 * @param overflow what to do when a message is received and the queue is full
+	 * @return the subscription; cancel it to stop receiving messages
+	 */
+	public Subscription psubscribe(Collection<?> patterns, CallbackSF<Object,OpaRpcError> cb, int queueLen, Overflow overflow) {
+		return add(patterns, true, cb, queueLen, overflow);
+	}
+
+	private Subscription add(Collection<?> names, boolean pattern, CallbackSF<Object,OpaRpcError> cb, int queueLen, Overflow overflow) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		} else if (queueLen <= 0) {
+			throw new IllegalArgumentException("queueLen must be greater than 0");
+		} else if (overflow == null) {
+			throw new IllegalArgumentException("overflow cannot be null");
+		}
+		Map<Object,Object> keyed = new LinkedHashMap<Object,Object>(names.size() * 2);
+		for (Iterator<?> it = names.iterator(); it.hasNext(); ) {
+			Object n = it.next();
+			keyed.put(key(n), n);
+		}
+		Subscription s = new Subscription(keyed, pattern, cb, queueLen, overflow);
+		ConcurrentHashMap<Object,Subscription[]> reg = pattern ? mPatterns : mChannels;
+		synchronized (mLock) {
+			List<Object> added = new ArrayList<Object>();
+			for (Iterator<Map.Entry<Object,Object>> it = keyed.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Object,Object> e = it.next();
+				Subscription[] prev = reg.get(e.getKey());
+				if (prev == null) {
+					prev = EMPTY;
+					added.add(e.getValue());
+				}
+				Subscription[] subs = new Subscription[prev.length + 1];
+				System.arraycopy(prev, 0, subs, 0, prev.length);
+				subs[prev.length] = s;
+				reg.put(e.getKey(), subs);
+			}
+			try {
+				send(pattern ? "PSUBSCRIBE" : "SUBSCRIBE", added);
+			} catch (RuntimeException e) {
+				unregister(s);
+				throw e;
+			}
+		}
+		return s;
+	}
+
+	private void remove(Subscription s) {
+		synchronized (mLock) {
+			List<Object> removed = unregister(s);
+			send(s.mPattern ? "PUNSUBSCRIBE" : "UNSUBSCRIBE", removed);
+		}
+	}
+
+	// must hold mLock. returns the names that no longer have a subscriber
+	private List<Object> unregister(Subscription s) {
+		ConcurrentHashMap<Object,Subscription[]> reg = s.mPattern ? mPatterns : mChannels;
+		List<Object> removed = new ArrayList<Object>();
+		for (Iterator<Map.Entry<Object,Object>> it = s.mNames.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Object,Object> e = it.next();
+			Subscription[] prev = reg.get(e.getKey());
+			int idx = prev == null ? -1 : indexOf(prev, s);
+			if (idx < 0) {
+				continue;
+			}
+			if (prev.length == 1) {
+				reg.remove(e.getKey());
+				removed.add(e.getValue());
+				continue;
+			}
+			Subscription[] subs = new Subscription[prev.length - 1];
+			System.arraycopy(prev, 0, subs, 0, idx);
+			System.arraycopy(prev, idx + 1, subs, idx, subs.length - idx);
+			reg.put(e.getKey(), subs);
+		}
+		return removed;
+	}
+
+	private static int indexOf(Subscription[] subs, Subscription s) {
+		for (int i = 0; i < subs.length; ++i) {
+			if (subs[i] == s) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// must hold mLock
+	private void send(String cmd, List<Object> names) {
+		for (int i = 0; i < names.size(); i += MAXBATCH) {
+			mClient.call(cmd, names.subList(i, Math.min(names.size(), i + MAXBATCH)).iterator(), null);
+		}
+	}
+
+	/**
+	 * @return number of channels that have subscribers
+	 */
+	public int getNumChannels() {
+		return mChannels.size();
+	}
+
+	/**
+	 * @return number of patterns that have subscribers
+	 */
+	public int getNumPatterns() {
+		return mPatterns.size();
+	}
+
+	@Override
+	public void onSuccess(Object result) {
+		if (!(result instanceof List)) {
+			return;
+		}
+		List<?> l = (List<?>) result;
+		Subscription[] subs;
+		if (l.size() >= 3) {
+			subs = mPatterns.get(key(l.get(2)));
+		} else if (l.size() == 2) {
+			subs = mChannels.get(key(l.get(0)));
+		} else {
+			return;
+		}
+		if (subs != null) {
+			for (int i = 0; i < subs.length; ++i) {
+				subs[i].onMessage(result);
+			}
+		}
+	}
+
+	@Override
+	public void onFailure(OpaRpcError error) {
+		// a subscriber of several channels must only receive the error once
+		Map<Subscription,Boolean> all = new IdentityHashMap<Subscription,Boolean>();
+		addAll(all, mChannels);
+		addAll(all, mPatterns);
+		for (Iterator<Subscription> it = all.keySet().iterator(); it.hasNext(); ) {
+			it.next().onError(error);
+		}
+	}
+
+	private static void addAll(Map<Subscription,Boolean> dst, ConcurrentHashMap<Object,Subscription[]> reg) {
+		for (Iterator<Subscription[]> it = reg.values().iterator(); it.hasNext(); ) {
+			Subscription[] subs = it.next();
+			for (int i = 0; i < subs.length; ++i) {
+				dst.put(subs[i], Boolean.TRUE);
+			}
+		}
+	}
+}
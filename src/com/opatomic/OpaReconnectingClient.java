@@ -0,0 +1,485 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client that replaces its connection when the connection closes. While disconnected, requests are held
+ * and sent (in order) after a new connection is made. Reconnect attempts are delayed with exponential
+ * backoff and full jitter (a random delay up to the backoff) so that many clients do not reconnect at the
+ * same moment.
+ *
+ * <p>When a connection closes, requests that were queued but never written are sent again on the next
+ * connection, ahead of requests that were made while disconnected. A request that is failed by the old
+ * connection after the new connection is ready is sent after requests that were already sent on the new
+ * connection. Requests that were written but did not receive a response fail with ERR_CLOSED because the
+ * server may have run them. Requests sent with call() and a null callback are not resent (the client cannot
+ * tell whether they were written).
+ *
+ * <p>Callbacks registered with registerCB() are registered on each new connection and do not receive the
+ * ERR_CLOSED error of a connection that is being replaced. Channels and patterns that were subscribed to
+ * with SUBSCRIBE/PSUBSCRIBE (and not unsubscribed) are subscribed to again on each new connection.
+ *
+ * <p>If a standby is enabled, a second connection is kept ready so that a failover does not wait to connect.
+ *
+ * <p>Args are copied into a list so that a request can be resent; callbacks are wrapped. A request therefore
+ * allocates a few small objects.
+ */
+public class OpaReconnectingClient implements OpaClient {
+	private static final long MINBACKOFFMILLIS = 50;
+	private static final long MAXBACKOFFMILLIS = 10000;
+	private static final Random RANDOM = new Random();
+
+	// a request that can be resent; forwards the response to the caller's callback
+	private final class Pending implements InternalCallback {
+		final CharSequence cmd;
+		final List<Object> args;
+		final CallbackSF<Object,OpaRpcError> cb;
+		final boolean async;
+		OpaClient sentOn;
+		// order in which requests were first sent; keeps held requests in order. guarded by client's lock
+		long seq;
+
+		Pending(CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb, boolean async) {
+			this.cmd = cmd;
+			this.args = args;
+			this.cb = cb;
+			this.async = async;
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			cb.onSuccess(result);
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			if (error != null && error.code == OpaDef.ERR_CLOSED) {
+				onDisconnect(sentOn);
+				if (OpaClientUtils.isNotSent(error) && !mClosed) {
+					try {
+						send(this);
+						return;
+					} catch (IllegalStateException e) {
+						// closed after mClosed was checked; fail with the connection's error
+					}
+				}
+			}
+			cb.onFailure(error);
+		}
+	}
+
+	// registered on a connection for a callback from registerCB(); hides the connection's closed error
+	private final class Registered implements InternalCallback {
+		private final OpaClient mClient;
+		private final CallbackSF<Object,OpaRpcError> mCB;
+
+		Registered(OpaClient c, CallbackSF<Object,OpaRpcError> cb) {
+			mClient = c;
+			mCB = cb;
+		}
+
+		@Override
+		public void onSuccess(Object result) {
+			mCB.onSuccess(result);
+		}
+
+		@Override
+		public void onFailure(OpaRpcError error) {
+			if (error != null && error.code == OpaDef.ERR_CLOSED && !mClosed) {
+				onDisconnect(mClient);
+				return;
+			}
+			mCB.onFailure(error);
+		}
+	}
+
+	private static final CallbackSF<Object,OpaRpcError> IGNORECB = new InternalCallback() {
+		@Override
+		public void onSuccess(Object result) {}
+		@Override
+		public void onFailure(OpaRpcError error) {}
+	};
+
+	private final OpaClientPool.Connector mConnector;
+	private final boolean mUseStandby;
+	private final Map<Object,CallbackSF<Object,OpaRpcError>> mRegistered = new ConcurrentHashMap<Object,CallbackSF<Object,OpaRpcError>>();
+	// the following are guarded by this object's lock
+	private final Set<Object> mChannels = new LinkedHashSet<Object>();
+	private final Set<Object> mPatterns = new LinkedHashSet<Object>();
+	private final List<Pending> mBacklog = new ArrayList<Pending>();
+	private OpaClient mClient;
+	private OpaClient mStandby;
+	// connection that held requests are being sent to; becomes mClient when the backlog is empty
+	private OpaClient mActivating;
+	private long mNextSeq;
+	private boolean mConnecting;
+	private volatile boolean mClosed;
+
+	/**
+	 * Connect. Blocks until the first connection is made.
+	 * @param c          creates and closes connections
+	 * @param useStandby keep a second connection ready to replace the current connection
+	 * @throws IOException if the first connection cannot be made
+	 */
+	public OpaReconnectingClient(OpaClientPool.Connector c, boolean useStandby) throws IOException {
+		mConnector = c;
+		mUseStandby = useStandby;
+		mClient = c.connect();
+		if (useStandby) {
+			synchronized (this) {
+				startConnecting();
+			}
+		}
+	}
+
+	private static long backoff(int attempt) {
+		long max = MINBACKOFFMILLIS << Math.min(attempt, 20);
+		max = Math.min(max, MAXBACKOFFMILLIS);
+		synchronized (RANDOM) {
+			return (long) (RANDOM.nextDouble() * max);
+		}
+	}
+
+	// must hold lock
+	private void startConnecting() {
+		if (mConnecting || mClosed) {
+			return;
+		}
+		mConnecting = true;
+		OpaUtils.startDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+				connectLoop();
+			}
+		}, "OpaReconnectingClient-connect");
+	}
+
+	private void connectLoop() {
+		int attempt = 0;
+		while (true) {
+			OpaClient standby = null;
+			synchronized (this) {
+				if (mClosed || (mClient != null && (!mUseStandby || mStandby != null))) {
+					mConnecting = false;
+					return;
+				}
+				if (mClient == null && mStandby != null) {
+					standby = mStandby;
+					mStandby = null;
+				}
+			}
+			if (standby != null) {
+				// failover to standby without waiting to connect
+				if (activate(standby)) {
+					attempt = 0;
+				}
+				continue;
+			}
+			if (attempt > 0) {
+				try {
+					Thread.sleep(backoff(attempt));
+				} catch (InterruptedException e) {
+					synchronized (this) {
+						mConnecting = false;
+					}
+					return;
+				}
+			}
+			++attempt;
+			OpaClient c;
+			try {
+				c = mConnector.connect();
+			} catch (Exception e) {
+				continue;
+			}
+			boolean closed = false;
+			boolean current = false;
+			synchronized (this) {
+				if (mClosed) {
+					closed = true;
+				} else if (mClient == null) {
+					current = true;
+				} else {
+					mStandby = c;
+					attempt = 0;
+				}
+			}
+			if (closed) {
+				mConnector.close(c);
+			} else if (current && activate(c)) {
+				attempt = 0;
+			}
+		}
+	}
+
+	// make a connection current: restore registered callbacks and subscriptions then send held requests.
+	// must not hold lock; only called by the connect thread. returns false if the connection is closed
+	private boolean activate(OpaClient c) {
+		List<Object> channels;
+		List<Object> patterns;
+		synchronized (this) {
+			mActivating = c;
+			channels = new ArrayList<Object>(mChannels);
+			patterns = new ArrayList<Object>(mPatterns);
+		}
+		try {
+			Iterator<Map.Entry<Object,CallbackSF<Object,OpaRpcError>>> it = mRegistered.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Object,CallbackSF<Object,OpaRpcError>> e = it.next();
+				c.registerCB(e.getKey(), new Registered(c, e.getValue()));
+			}
+			if (channels.size() > 0) {
+				c.call("SUBSCRIBE", channels.iterator(), IGNORECB);
+			}
+			if (patterns.size() > 0) {
+				c.call("PSUBSCRIBE", patterns.iterator(), IGNORECB);
+			}
+			// requests made while sending are held (mClient is null) so repeat until nothing is held. a request
+			// is removed from the backlog before it is sent; if it fails then its callback holds it again
+			while (true) {
+				List<Pending> held;
+				synchronized (this) {
+					if (mClosed) {
+						break;
+					}
+					if (mBacklog.isEmpty()) {
+						mActivating = null;
+						mClient = c;
+						return true;
+					}
+					held = new ArrayList<Pending>(mBacklog);
+					mBacklog.clear();
+				}
+				for (int i = 0; i < held.size(); ++i) {
+					Pending p = held.get(i);
+					p.sentOn = c;
+					try {
+						if (p.async) {
+							c.callA(p.cmd, p.args.iterator(), p);
+						} else {
+							c.call(p.cmd, p.args.iterator(), p);
+						}
+					} catch (IllegalStateException e) {
+						hold(held.subList(i, held.size()));
+						throw e;
+					}
+				}
+			}
+		} catch (IllegalStateException e) {
+			// connection is closed
+		}
+		synchronized (this) {
+			mActivating = null;
+		}
+		mConnector.close(c);
+		return false;
+	}
+
+	// must hold lock
+	private void hold(Pending p) {
+		if (p.seq == 0) {
+			p.seq = ++mNextSeq;
+		}
+		int i = mBacklog.size();
+		while (i > 0 && mBacklog.get(i - 1).seq > p.seq) {
+			--i;
+		}
+		mBacklog.add(i, p);
+	}
+
+	private synchronized void hold(List<Pending> l) {
+		for (int i = 0; i < l.size(); ++i) {
+			hold(l.get(i));
+		}
+	}
+
+	// called when a connection is found to be closed
+	private synchronized void onDisconnect(OpaClient c) {
+		if (c == null) {
+			return;
+		}
+		if (c == mStandby) {
+			mStandby = null;
+		} else if (c != mClient) {
+			return;
+		} else {
+			mClient = null;
+		}
+		mConnector.close(c);
+		startConnecting();
+	}
+
+	private void send(Pending p) {
+		while (true) {
+			OpaClient c;
+			synchronized (this) {
+				if (mClosed) {
+					throw new IllegalStateException("closed");
+				}
+				c = mClient;
+				if (c == null) {
+					hold(p);
+					return;
+				}
+				if (p.seq == 0) {
+					p.seq = ++mNextSeq;
+				}
+			}
+			p.sentOn = c;
+			try {
+				if (p.async) {
+					c.callA(p.cmd, p.args.iterator(), p);
+				} else {
+					c.call(p.cmd, p.args.iterator(), p);
+				}
+				return;
+			} catch (IllegalStateException e) {
+				onDisconnect(c);
+			}
+		}
+	}
+
+	// remember channels/patterns so they can be subscribed to on a new connection
+	private synchronized void trackSubscriptions(CharSequence cmd, List<Object> args) {
+		String s = cmd.toString();
+		if (s.equals("SUBSCRIBE")) {
+			mChannels.addAll(args);
+		} else if (s.equals("UNSUBSCRIBE")) {
+			if (args.isEmpty()) {
+				mChannels.clear();
+			} else {
+				mChannels.removeAll(args);
+			}
+		} else if (s.equals("PSUBSCRIBE")) {
+			mPatterns.addAll(args);
+		} else if (s.equals("PUNSUBSCRIBE")) {
+			if (args.isEmpty()) {
+				mPatterns.clear();
+			} else {
+				mPatterns.removeAll(args);
+			}
+		}
+	}
+
+	private void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb, boolean async) {
+		List<Object> l = OpaClientUtils.toList(args);
+		trackSubscriptions(cmd, l);
+		if (cb == null) {
+			// no response; cannot tell whether request was written so it is never resent
+			while (true) {
+				OpaClient c;
+				synchronized (this) {
+					if (mClosed) {
+						throw new IllegalStateException("closed");
+					}
+					c = mClient;
+					if (c == null) {
+						return;
+					}
+				}
+				try {
+					c.call(cmd, l.iterator(), null);
+					return;
+				} catch (IllegalStateException e) {
+					onDisconnect(c);
+				}
+			}
+		}
+		send(new Pending(cmd, l, cb, async));
+	}
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		call(cmd, args, cb, false);
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		call(cmd, args, cb, true);
+	}
+
+	@Override
+	public synchronized CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		CallbackSF<Object,OpaRpcError> prev = cb == null ? mRegistered.remove(id) : mRegistered.put(id, cb);
+		OpaClient c = mClient != null ? mClient : mActivating;
+		if (c != null) {
+			c.registerCB(id, cb == null ? null : new Registered(c, cb));
+		}
+		return prev;
+	}
+
+	/**
+	 * Run a command with an async id. The request is not held or resent if the client is disconnected (it is
+	 * dropped). See OpaClient.callID()
+	 */
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		OpaClient c;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IllegalStateException("closed");
+			}
+			c = mClient;
+		}
+		if (c != null) {
+			try {
+				c.callID(id, cmd, args);
+			} catch (IllegalStateException e) {
+				onDisconnect(c);
+			}
+		}
+	}
+
+	/**
+	 * @return true if a connection is currently being used (false while reconnecting)
+	 */
+	public synchronized boolean isConnected() {
+		return mClient != null;
+	}
+
+	/**
+	 * Close the connections and stop reconnecting. Requests that are being held fail with ERR_CLOSED.
+	 */
+	public void close() {
+		List<Pending> held;
+		OpaClient c;
+		OpaClient standby;
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			held = new ArrayList<Pending>(mBacklog);
+			mBacklog.clear();
+			c = mClient;
+			standby = mStandby;
+			mClient = null;
+			mStandby = null;
+		}
+		if (c != null) {
+			mConnector.close(c);
+		}
+		if (standby != null) {
+			mConnector.close(standby);
+		}
+		for (int i = 0; i < held.size(); ++i) {
+			held.get(i).cb.onFailure(OpaClientUtils.CLOSED_ERROR);
+		}
+	}
+}
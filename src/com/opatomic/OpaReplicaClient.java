@@ -0,0 +1,262 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client that sends reads to replica servers and all other commands to the primary server. Commands are
+ * classified by an OpaCommandTable (see getCommandTable()). Each server is reached through its own client,
+ * normally an OpaClientPool (see connect()). Reads are spread over the replicas in turn. If there are no
+ * replicas, or a replica's client is closed, then reads are sent to the primary.
+ *
+ * <p>Replicas may lag behind the primary so a read sent to a replica right after a write might not see the
+ * write. A Session (see newSession()) sends its reads to the primary for a period of time after each of its
+ * writes; its other reads are sent to replicas.
+ *
+ * <p>Responses to call() are received in order for each server but not across servers. Use a Session per
+ * thread (or per user request) to read your own writes.
+ */
+public class OpaReplicaClient implements OpaClient {
+	/**
+	 * Sends reads to the primary for a period of time after a write. A session can be used by several
+	 * threads; a write made by any of them makes the session's reads go to the primary.
+	 */
+	public final class Session implements OpaClient {
+		private final long mStickyNanos;
+		private volatile boolean mWrote;
+		private volatile long mLastWrite;
+
+		Session(long stickyNanos) {
+			mStickyNanos = stickyNanos;
+		}
+
+		// returns true if the command must be sent to the primary
+		private boolean toPrimary(CharSequence cmd) {
+			if (!mCommands.isRead(cmd)) {
+				// record the write before it is sent so that a read sent after it goes to the primary
+				mLastWrite = System.nanoTime();
+				mWrote = true;
+				return true;
+			}
+			return mWrote && System.nanoTime() - mLastWrite < mStickyNanos;
+		}
+
+		@Override
+		public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			if (toPrimary(cmd)) {
+				mPrimary.call(cmd, args, cb);
+			} else {
+				OpaReplicaClient.this.call(cmd, args, cb);
+			}
+		}
+
+		@Override
+		public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			if (toPrimary(cmd)) {
+				mPrimary.callA(cmd, args, cb);
+			} else {
+				OpaReplicaClient.this.callA(cmd, args, cb);
+			}
+		}
+
+		/**
+		 * Same as OpaReplicaClient.registerCB(); callbacks are not specific to a session.
+		 */
+		@Override
+		public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+			return OpaReplicaClient.this.registerCB(id, cb);
+		}
+
+		@Override
+		public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+			if (toPrimary(cmd)) {
+				mPrimary.callID(id, cmd, args);
+			} else {
+				OpaReplicaClient.this.callID(id, cmd, args);
+			}
+		}
+	}
+
+	private final OpaCommandTable mCommands = new OpaCommandTable();
+	private final OpaClient mPrimary;
+	private final OpaClient[] mReplicas;
+	private final boolean mOwnsPools;
+	// next replica to use; not atomic because it only spreads out reads
+	private int mNext;
+
+	/**
+	 * @param primary  client connected to the primary server
+	 * @param replicas clients connected to the replica servers
+	 */
+	public OpaReplicaClient(OpaClient primary, OpaClient... replicas) {
+		this(primary, replicas, false);
+	}
+
+	private OpaReplicaClient(OpaClient primary, OpaClient[] replicas, boolean ownsPools) {
+		if (primary == null) {
+			throw new IllegalArgumentException("primary cannot be null");
+		}
+		for (int i = 0; i < replicas.length; ++i) {
+			if (replicas[i] == null) {
+				throw new IllegalArgumentException("replica cannot be null");
+			}
+		}
+		mPrimary = primary;
+		mReplicas = replicas.clone();
+		mOwnsPools = ownsPools;
+	}
+
+	/**
+	 * Create a connection pool for each server. The pools are closed by close().
+	 * @param primary  creates connections to the primary server
+	 * @param replicas create connections to the replica servers
+	 * @param poolSize number of connections to each server
+	 * @throws IOException if a connection could not be created
+	 */
+	public static OpaReplicaClient connect(OpaClientPool.Connector primary, OpaClientPool.Connector[] replicas, int poolSize) throws IOException {
+		OpaClientPool[] pools = new OpaClientPool[replicas.length];
+		OpaClientPool p = new OpaClientPool(primary, poolSize);
+		try {
+			for (int i = 0; i < replicas.length; ++i) {
+				pools[i] = new OpaClientPool(replicas[i], poolSize);
+			}
+		} catch (IOException e) {
+			closePools(p, pools);
+			throw e;
+		} catch (RuntimeException e) {
+			closePools(p, pools);
+			throw e;
+		}
+		return new OpaReplicaClient(p, pools, true);
+	}
+
+	private static void closePools(OpaClient primary, OpaClient[] replicas) {
+		((OpaClientPool) primary).close();
+		for (int i = 0; i < replicas.length; ++i) {
+			if (replicas[i] != null) {
+				((OpaClientPool) replicas[i]).close();
+			}
+		}
+	}
+
+	/**
+	 * @return the table used to decide whether a command is a read; can be modified
+	 */
+	public OpaCommandTable getCommandTable() {
+		return mCommands;
+	}
+
+	/**
+	 * @return client connected to the primary server
+	 */
+	public OpaClient getPrimary() {
+		return mPrimary;
+	}
+
+	/**
+	 * Create a session that reads its own writes.
+	 * @param time how long to send reads to the primary after a write; should be longer than replicas lag
+	 * @param unit unit of time
+	 */
+	public Session newSession(long time, TimeUnit unit) {
+		return new Session(unit.toNanos(time));
+	}
+
+	// returns the replica to send a command to; null if the command must be sent to the primary
+	private OpaClient replica(CharSequence cmd) {
+		OpaClient[] replicas = mReplicas;
+		if (replicas.length == 0 || !mCommands.isRead(cmd)) {
+			return null;
+		}
+		return replicas[(mNext++ & 0x7FFFFFFF) % replicas.length];
+	}
+
+	// args are copied when sent to a replica: a closed replica may have read them before it throws
+	private static List<Object> copyArgs(Iterator<?> args) {
+		return args != null ? OpaClientUtils.toList(args) : null;
+	}
+
+	private static Iterator<Object> iter(List<Object> args) {
+		return args != null ? args.iterator() : null;
+	}
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		OpaClient c = replica(cmd);
+		if (c == null) {
+			mPrimary.call(cmd, args, cb);
+			return;
+		}
+		List<Object> l = copyArgs(args);
+		try {
+			c.call(cmd, iter(l), cb);
+			return;
+		} catch (IllegalStateException e) {
+			// replica is closed; use primary
+		}
+		mPrimary.call(cmd, iter(l), cb);
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		OpaClient c = replica(cmd);
+		if (c == null) {
+			mPrimary.callA(cmd, args, cb);
+			return;
+		}
+		List<Object> l = copyArgs(args);
+		try {
+			c.callA(cmd, iter(l), cb);
+			return;
+		} catch (IllegalStateException e) {
+			// replica is closed; use primary
+		}
+		mPrimary.callA(cmd, iter(l), cb);
+	}
+
+	/**
+	 * Register a callback on the primary and every replica. See OpaClient.registerCB()
+	 */
+	@Override
+	public synchronized CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		CallbackSF<Object,OpaRpcError> prev = mPrimary.registerCB(id, cb);
+		for (int i = 0; i < mReplicas.length; ++i) {
+			mReplicas[i].registerCB(id, cb);
+		}
+		return prev;
+	}
+
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		OpaClient c = replica(cmd);
+		if (c == null) {
+			mPrimary.callID(id, cmd, args);
+			return;
+		}
+		List<Object> l = copyArgs(args);
+		try {
+			c.callID(id, cmd, iter(l));
+			return;
+		} catch (IllegalStateException e) {
+			// replica is closed; use primary
+		}
+		mPrimary.callID(id, cmd, iter(l));
+	}
+
+	/**
+	 * Close the connection pools that were created by connect(). Does nothing if the clients were passed to
+	 * the constructor (the caller owns them).
+	 */
+	public void close() {
+		if (mOwnsPools) {
+			closePools(mPrimary, mReplicas);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Exception thrown by blocking calls when the server responds with an error.
+ */
+public class OpaRpcException extends RuntimeException {
+	private final OpaRpcError mErr;
+
+	public OpaRpcException(OpaRpcError err) {
+		super(err == null ? null : err.toString());
+		mErr = err;
+	}
+
+	/**
+	 * Get the error that was returned
+	 * @return error response
+	 */
+	public OpaRpcError getRpcError() {
+		return mErr;
+	}
+}
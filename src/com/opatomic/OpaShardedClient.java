@@ -0,0 +1,538 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client that sends each request to 1 of several servers, chosen by hashing the request's key. The key is
+ * found by a KeyExtractor registered for the command (by default, the first argument). Servers are chosen
+ * with jump consistent hashing, so when a node is added only the keys that move to the new node change
+ * servers (about 1/n of them); nodes can only be added, not removed. Commands without a key are sent to
+ * the first node.
+ *
+ * <p>Keys are hashed directly from the bytes that the serializer writes for them (the UTF-8 bytes of a
+ * string or the bytes of a byte[]) without encoding a copy. Other types of keys are hashed from
+ * OpaUtils.stringify(). The same key always maps to the same node in every process that adds the same
+ * number of nodes.
+ *
+ * <p>A request's args are copied into a list so that the key can be found; the list is then sent to the
+ * chosen node. Responses to call() are received in order per node but not across nodes.
+ *
+ * <p>Commands that touch keys on several nodes can be registered with setScatter(). Such a command is split
+ * into 1 request per node; the requests are sent in parallel (with callA()) and their responses are merged
+ * into 1 response. KEYS is registered by default: it is sent to every node and the sorted lists of keys are
+ * merged (see mergeSorted()).
+ */
+public class OpaShardedClient implements OpaClient {
+	/**
+	 * Finds the key of a request.
+	 */
+	public interface KeyExtractor {
+		/**
+		 * @param cmd  Command
+		 * @param args Command's parameters. Do not modify
+		 * @return key that determines which node receives the request; null if the request does not have a key
+		 */
+		public Object getKey(CharSequence cmd, List<Object> args);
+	}
+
+	/**
+	 * @param idx index of the argument that is the key
+	 * @return extractor that returns the specified argument (or null if there are not enough arguments)
+	 */
+	public static KeyExtractor keyArg(final int idx) {
+		return new KeyExtractor() {
+			@Override
+			public Object getKey(CharSequence cmd, List<Object> args) {
+				return idx < args.size() ? args.get(idx) : null;
+			}
+		};
+	}
+
+	/**
+	 * Extractor for commands that do not have a key.
+	 */
+	public static final KeyExtractor NOKEY = new KeyExtractor() {
+		@Override
+		public Object getKey(CharSequence cmd, List<Object> args) {
+			return null;
+		}
+	};
+
+	/**
+	 * How a command is split over nodes and how the responses are merged. See multiKey() and mergeSorted()
+	 */
+	public abstract static class Scatter {
+		Scatter() {}
+
+		abstract void send(OpaClient[] nodes, CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb);
+	}
+
+	// collects the responses of the parts of a scattered request
+	private abstract static class Gather {
+		private final CallbackSF<Object,OpaRpcError> mCB;
+		private final AtomicInteger mRemaining;
+		private volatile OpaRpcError mError;
+		final Object[] mParts;
+
+		// numNodes is the length of mParts; numParts is the number of nodes that are sent a part
+		Gather(int numNodes, int numParts, CallbackSF<Object,OpaRpcError> cb) {
+			mCB = cb;
+			mRemaining = new AtomicInteger(numParts);
+			mParts = new Object[numNodes];
+		}
+
+		CallbackSF<Object,OpaRpcError> part(final int idx) {
+			return new InternalCallback() {
+				@Override
+				public void onSuccess(Object result) {
+					mParts[idx] = result;
+					done();
+				}
+				@Override
+				public void onFailure(OpaRpcError error) {
+					if (mError == null) {
+						mError = error;
+					}
+					done();
+				}
+			};
+		}
+
+		private void done() {
+			if (mRemaining.decrementAndGet() != 0) {
+				return;
+			}
+			if (mError != null) {
+				mCB.onFailure(mError);
+				return;
+			}
+			Object result;
+			try {
+				result = merge();
+			} catch (RuntimeException e) {
+				mCB.onFailure(new OpaRpcError(OpaDef.ERR_INVRESPONSE, "cannot merge responses", e.toString()));
+				return;
+			}
+			mCB.onSuccess(result);
+		}
+
+		abstract Object merge();
+	}
+
+	private static void sendParts(OpaClient[] nodes, CharSequence cmd, List<List<Object>> parts, Gather g) {
+		for (int i = 0; i < parts.size(); ++i) {
+			List<Object> part = parts.get(i);
+			if (part == null) {
+				continue;
+			}
+			if (g == null) {
+				nodes[i].call(cmd, part.iterator(), null);
+			} else {
+				nodes[i].callA(cmd, part.iterator(), g.part(i));
+			}
+		}
+	}
+
+	private static void sendWhole(OpaClient node, CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			node.call(cmd, args.iterator(), null);
+		} else {
+			node.callA(cmd, args.iterator(), cb);
+		}
+	}
+
+	/**
+	 * Scatter for commands whose args (starting at firstKey) are keys and whose response is an array that
+	 * has 1 value per key (ie, an MGET command; or DMGET if dict fields are sharded with
+	 * setKeyExtractor("DGET", keyArg(1)) and setScatter("DMGET", multiKey(1))). Each node receives the args
+	 * before firstKey followed by its keys. The responses are merged back into the order of the keys.
+	 * @param firstKey index of the first key in the args
+	 */
+	public static Scatter multiKey(final int firstKey) {
+		return new Scatter() {
+			@Override
+			void send(OpaClient[] nodes, CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb) {
+				int numKeys = args.size() - firstKey;
+				if (numKeys <= 0) {
+					sendWhole(nodes[0], cmd, args, cb);
+					return;
+				}
+				final int[] keyNodes = new int[numKeys];
+				int[] counts = new int[nodes.length];
+				int numNodes = 0;
+				for (int i = 0; i < numKeys; ++i) {
+					keyNodes[i] = shardOf(args.get(firstKey + i), nodes.length);
+					if (counts[keyNodes[i]]++ == 0) {
+						++numNodes;
+					}
+				}
+				if (numNodes == 1) {
+					// no need to split
+					sendWhole(nodes[keyNodes[0]], cmd, args, cb);
+					return;
+				}
+				final List<List<Object>> parts = new ArrayList<List<Object>>(nodes.length);
+				for (int i = 0; i < nodes.length; ++i) {
+					List<Object> part = null;
+					if (counts[i] > 0) {
+						part = new ArrayList<Object>(firstKey + counts[i]);
+						part.addAll(args.subList(0, firstKey));
+					}
+					parts.add(part);
+				}
+				for (int i = 0; i < numKeys; ++i) {
+					parts.get(keyNodes[i]).add(args.get(firstKey + i));
+				}
+				sendParts(nodes, cmd, parts, cb == null ? null : new Gather(nodes.length, numNodes, cb) {
+					@Override
+					Object merge() {
+						List<Object> result = new ArrayList<Object>(keyNodes.length);
+						int[] pos = new int[mParts.length];
+						for (int i = 0; i < keyNodes.length; ++i) {
+							int n = keyNodes[i];
+							result.add(((List<?>) mParts[n]).get(pos[n]++));
+						}
+						return result;
+					}
+				});
+			}
+		};
+	}
+
+	private static final Comparator<Object> COMPARATOR = new Comparator<Object>() {
+		@Override
+		public int compare(Object o1, Object o2) {
+			return OpaUtils.compare(o1, o2);
+		}
+	};
+
+	/**
+	 * Merge lists that are each sorted by OpaUtils.compare() into 1 sorted list (k-way merge).
+	 * @param lists sorted lists
+	 * @param limit max length of merged list
+	 */
+	static List<Object> mergeSorted(final List<?>[] lists, int limit) {
+		int total = 0;
+		for (int i = 0; i < lists.length; ++i) {
+			total += lists[i].size();
+		}
+		List<Object> result = new ArrayList<Object>(Math.min(total, limit));
+		// each entry is {list index, position in list}
+		PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(lists.length, 1), new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return COMPARATOR.compare(lists[a[0]].get(a[1]), lists[b[0]].get(b[1]));
+			}
+		});
+		for (int i = 0; i < lists.length; ++i) {
+			if (lists[i].size() > 0) {
+				heads.add(new int[] {i, 0});
+			}
+		}
+		while (result.size() < limit && !heads.isEmpty()) {
+			int[] h = heads.poll();
+			result.add(lists[h[0]].get(h[1]));
+			if (++h[1] < lists[h[0]].size()) {
+				heads.add(h);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Scatter for commands that return a sorted array (ie, KEYS START s LIMIT n). The request is sent to
+	 * every node and the responses are merged in order of OpaUtils.compare(). If the args contain limitName
+	 * followed by a number, then the merged array is truncated to that length (each node returns at most
+	 * that many, so the first values of the merged array are the same as if all keys were on 1 server).
+	 * @param limitName name of the arg that is followed by the max number of values (ie, "LIMIT"); null if none
+	 */
+	public static Scatter mergeSorted(final String limitName) {
+		return new Scatter() {
+			@Override
+			void send(OpaClient[] nodes, CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb) {
+				int limit = Integer.MAX_VALUE;
+				for (int i = 0; limitName != null && i + 1 < args.size(); ++i) {
+					if (limitName.equals(args.get(i)) && args.get(i + 1) instanceof Number) {
+						limit = ((Number) args.get(i + 1)).intValue();
+					}
+				}
+				if (nodes.length == 1) {
+					sendWhole(nodes[0], cmd, args, cb);
+					return;
+				}
+				List<List<Object>> parts = new ArrayList<List<Object>>(nodes.length);
+				for (int i = 0; i < nodes.length; ++i) {
+					parts.add(args);
+				}
+				final int maxLen = limit;
+				sendParts(nodes, cmd, parts, cb == null ? null : new Gather(nodes.length, nodes.length, cb) {
+					@Override
+					Object merge() {
+						List<?>[] lists = new List<?>[mParts.length];
+						for (int i = 0; i < lists.length; ++i) {
+							lists[i] = (List<?>) mParts[i];
+						}
+						return mergeSorted(lists, maxLen);
+					}
+				});
+			}
+		};
+	}
+
+	private static final long FNVOFFSET = 0xcbf29ce484222325L;
+	private static final long FNVPRIME = 0x100000001b3L;
+
+	private volatile OpaClient[] mNodes = new OpaClient[0];
+	private final Map<String,KeyExtractor> mExtractors = new ConcurrentHashMap<String,KeyExtractor>();
+	private volatile KeyExtractor mDefaultExtractor = keyArg(0);
+	private final Map<String,Scatter> mScatters = new ConcurrentHashMap<String,Scatter>();
+	private final Map<Object,CallbackSF<Object,OpaRpcError>> mRegistered = new ConcurrentHashMap<Object,CallbackSF<Object,OpaRpcError>>();
+
+	public OpaShardedClient() {
+		mExtractors.put("PING", NOKEY);
+		mExtractors.put("ECHO", NOKEY);
+		mExtractors.put("QUIT", NOKEY);
+		mScatters.put("KEYS", mergeSorted("LIMIT"));
+	}
+
+	/**
+	 * @param nodes clients connected to each server, in order. The order must be the same in every process
+	 *              that shares the servers
+	 */
+	public OpaShardedClient(OpaClient... nodes) {
+		this();
+		for (int i = 0; i < nodes.length; ++i) {
+			addNode(nodes[i]);
+		}
+	}
+
+	/**
+	 * Add a server. Keys that hash to the new node are sent to it rather than to the node they were on
+	 * before; other keys are not moved. Callbacks registered with registerCB() are registered on the new node.
+	 * @param c client connected to the server
+	 */
+	public synchronized void addNode(OpaClient c) {
+		if (c == null) {
+			throw new IllegalArgumentException("client cannot be null");
+		}
+		Iterator<Map.Entry<Object,CallbackSF<Object,OpaRpcError>>> it = mRegistered.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object,CallbackSF<Object,OpaRpcError>> e = it.next();
+			c.registerCB(e.getKey(), e.getValue());
+		}
+		OpaClient[] nodes = new OpaClient[mNodes.length + 1];
+		System.arraycopy(mNodes, 0, nodes, 0, mNodes.length);
+		nodes[mNodes.length] = c;
+		mNodes = nodes;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int numNodes() {
+		return mNodes.length;
+	}
+
+	/**
+	 * @param idx index of node (in the order nodes were added)
+	 * @return client connected to the node
+	 */
+	public OpaClient getNode(int idx) {
+		return mNodes[idx];
+	}
+
+	/**
+	 * Set the rule that finds the key of a command.
+	 * @param cmd Command
+	 * @param e   extractor to use for the command; null to use the default extractor
+	 */
+	public void setKeyExtractor(String cmd, KeyExtractor e) {
+		if (e == null) {
+			mExtractors.remove(cmd);
+		} else {
+			mExtractors.put(cmd, e);
+		}
+	}
+
+	/**
+	 * Split a command over nodes rather than sending it to 1 node (see Scatter). Only applies to call() and
+	 * callA(); callID() always sends the command to 1 node.
+	 * @param cmd Command
+	 * @param s   how to split the command; null to send the command to 1 node
+	 */
+	public void setScatter(String cmd, Scatter s) {
+		if (s == null) {
+			mScatters.remove(cmd);
+		} else {
+			mScatters.put(cmd, s);
+		}
+	}
+
+	/**
+	 * Set the rule that finds the key of commands that do not have their own extractor. By default, the key
+	 * is the first argument.
+	 */
+	public void setDefaultKeyExtractor(KeyExtractor e) {
+		if (e == null) {
+			throw new IllegalArgumentException("extractor cannot be null");
+		}
+		mDefaultExtractor = e;
+	}
+
+	KeyExtractor getKeyExtractor(CharSequence cmd) {
+		KeyExtractor e = mExtractors.get(cmd.toString());
+		return e != null ? e : mDefaultExtractor;
+	}
+
+	private static long hashByte(long h, int b) {
+		return (h ^ (b & 0xFF)) * FNVPRIME;
+	}
+
+	// FNV-1a over the UTF-8 bytes of a string
+	private static long hashChars(long h, CharSequence s) {
+		int len = s.length();
+		for (int i = 0; i < len; ++i) {
+			int c = s.charAt(i);
+			if (c < 0x80) {
+				h = hashByte(h, c);
+			} else if (c < 0x800) {
+				h = hashByte(h, 0xC0 | (c >> 6));
+				h = hashByte(h, 0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate((char) c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint((char) c, s.charAt(++i));
+				h = hashByte(h, 0xF0 | (cp >> 18));
+				h = hashByte(h, 0x80 | ((cp >> 12) & 0x3F));
+				h = hashByte(h, 0x80 | ((cp >> 6) & 0x3F));
+				h = hashByte(h, 0x80 | (cp & 0x3F));
+			} else {
+				h = hashByte(h, 0xE0 | (c >> 12));
+				h = hashByte(h, 0x80 | ((c >> 6) & 0x3F));
+				h = hashByte(h, 0x80 | (c & 0x3F));
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * @return 64 bit hash of a key
+	 */
+	static long hash(Object key) {
+		long h = FNVOFFSET;
+		if (key instanceof CharSequence) {
+			h = hashChars(h, (CharSequence) key);
+		} else if (key instanceof byte[]) {
+			byte[] b = (byte[]) key;
+			for (int i = 0; i < b.length; ++i) {
+				h = hashByte(h, b[i]);
+			}
+		} else {
+			h = hashChars(hashByte(h, 0), OpaUtils.stringify(key));
+		}
+		// finalize (from MurmurHash3) so that similar keys are spread over all bits
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Jump consistent hash (Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm").
+	 * @return bucket in range [0, numBuckets)
+	 */
+	static int jumpHash(long key, int numBuckets) {
+		long b = -1;
+		long j = 0;
+		while (j < numBuckets) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+
+	/**
+	 * @param key key of a request
+	 * @return index of the node that receives requests with the key
+	 */
+	public int shardOf(Object key) {
+		return shardOf(key, mNodes.length);
+	}
+
+	static int shardOf(Object key, int numNodes) {
+		return key == null ? 0 : jumpHash(hash(key), numNodes);
+	}
+
+	private OpaClient route(CharSequence cmd, List<Object> args) {
+		OpaClient[] nodes = mNodes;
+		if (nodes.length == 0) {
+			throw new IllegalStateException("no nodes");
+		}
+		return nodes[shardOf(getKeyExtractor(cmd).getKey(cmd, args), nodes.length)];
+	}
+
+	// returns true if the command was scattered
+	private boolean scatter(CharSequence cmd, List<Object> args, CallbackSF<Object,OpaRpcError> cb) {
+		Scatter s = mScatters.get(cmd.toString());
+		if (s == null) {
+			return false;
+		}
+		OpaClient[] nodes = mNodes;
+		if (nodes.length == 0) {
+			throw new IllegalStateException("no nodes");
+		}
+		s.send(nodes, cmd, args, cb);
+		return true;
+	}
+
+	@Override
+	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		List<Object> l = OpaClientUtils.toList(args);
+		if (!scatter(cmd, l, cb)) {
+			route(cmd, l).call(cmd, l.iterator(), cb);
+		}
+	}
+
+	@Override
+	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb == null) {
+			throw new IllegalArgumentException("callback cannot be null");
+		}
+		List<Object> l = OpaClientUtils.toList(args);
+		if (!scatter(cmd, l, cb)) {
+			route(cmd, l).callA(cmd, l.iterator(), cb);
+		}
+	}
+
+	/**
+	 * Register a callback on every node. See OpaClient.registerCB()
+	 */
+	@Override
+	public synchronized CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+		CallbackSF<Object,OpaRpcError> prev = cb == null ? mRegistered.remove(id) : mRegistered.put(id, cb);
+		OpaClient[] nodes = mNodes;
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i].registerCB(id, cb);
+		}
+		return prev;
+	}
+
+	@Override
+	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		List<Object> l = OpaClientUtils.toList(args);
+		route(cmd, l).callID(id, cmd, l.iterator());
+	}
+}
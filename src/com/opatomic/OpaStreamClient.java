@@ -10,29 +10,29 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Opatomic client that uses 2 threads: 1 for parser and 1 for serializer. Methods do not block (unless the
  * OpaClientConfig specifies a max sendQueueLen - then callers may block until the send queue has reduced in size).
  * Cannot modify args until callback is invoked (because requests are serialized in separate thread).
+ * The threads are created with OpaClientConfig.threadFactory (daemon platform threads if not set).
  */
-public class OpaStreamClient implements OpaClient {
+public class OpaStreamClient implements OpaClient, OpaBatch.Sender {
 
 	private static final Request LASTREQUEST = new Request("", null, null, null);
 
-	private final AtomicLong mCurrId = new AtomicLong();
-
 	private final OpaClientConfig mConfig;
 	private final OpaSerializer mSerializer;
-	private final BlockingQueue<Request> mSerializeQueue;
+	private final RequestQueue mSerializeQueue;
+	private final RequestPool mRequestPool;
+	private final int[] mLaneWeights;
+	private final OpaClient[] mLanes;
 
-	private final Queue<CallbackSF<Object,OpaRpcError>> mMainCallbacks = new ConcurrentLinkedQueue<CallbackSF<Object,OpaRpcError>>();
+	private final CallbackRing mMainCallbacks;
+	private final PendingLimit mPendingLimit;
+	private final AsyncIdTable mAutoCallbacks;
 	private final Map<Object,CallbackSF<Object,OpaRpcError>> mAsyncCallbacks = new ConcurrentHashMap<Object,CallbackSF<Object,OpaRpcError>>();
 
 	private boolean mQuit = false;
@@ -53,11 +53,21 @@ public class OpaStreamClient implements OpaClient {
 		}
 		mConfig = cfg;
 		mSerializer = new OpaSerializer(out, cfg.sendBuffLen);
-		mSerializeQueue = new LinkedBlockingQueue<Request>(cfg.sendQueueLen);
+		mLaneWeights = OpaClientUtils.laneWeights(cfg);
+		mLanes = new OpaClient[mLaneWeights.length];
+		for (int i = 0; i < mLanes.length; ++i) {
+			mLanes[i] = i == 0 ? this : new Lane(i);
+		}
+		mSerializeQueue = new RequestQueue(cfg.sendQueueLen, cfg.sendQueueBytes, mLaneWeights);
+		mPendingLimit = OpaClientUtils.newPendingLimit(cfg);
+		mAutoCallbacks = new AsyncIdTable(64, mPendingLimit, cfg.maxAutoId);
+		mMainCallbacks = new CallbackRing(256, mPendingLimit != null && mPendingLimit.isAdaptive());
+		// extra room in pool for requests that are not in the queue (being serialized or held by callers waiting on a full queue)
+		mRequestPool = new RequestPool(cfg.sendQueueLen + 16);
 
 		// TODO: consider using java.util.concurrent.Executor for send? (recv will always be blocking or doing work)
 
-		OpaUtils.startDaemonThread(new Runnable() {
+		OpaUtils.startThread(cfg.threadFactory, new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -89,13 +99,16 @@ public class OpaStreamClient implements OpaClient {
 					}
 				}
 
-				cleanupDeadRequests(mConfig, mSerializeQueue);
-				OpaClientUtils.respondWithClosedErr(mConfig, mMainCallbacks, mAsyncCallbacks);
+				cleanupDeadRequests(mConfig, mSerializeQueue, mAutoCallbacks);
+				if (mPendingLimit != null) {
+					mPendingLimit.close();
+				}
+				OpaClientUtils.respondWithClosedErr(mConfig, mMainCallbacks, mAutoCallbacks, mAsyncCallbacks);
 				//OpaDef.log("closing send thread");
 			}
 		}, "OpaStreamClient-send");
 
-		OpaUtils.startDaemonThread(new Runnable() {
+		OpaUtils.startThread(cfg.threadFactory, new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -120,7 +133,7 @@ public class OpaStreamClient implements OpaClient {
 		this(in, out, OpaClientConfig.DEFAULT_CFG);
 	}
 
-	private static void cleanupDeadRequests(OpaClientConfig cfg, BlockingQueue<Request> q) {
+	private static void cleanupDeadRequests(OpaClientConfig cfg, RequestQueue q, AsyncIdTable autoCBs) {
 		while (true) {
 			try {
 				Request r = q.take();
@@ -128,22 +141,42 @@ public class OpaStreamClient implements OpaClient {
 					break;
 				}
 				if (r != null) {
-					OpaClientUtils.invokeCallback(cfg, r.cb, null, OpaClientUtils.CLOSED_ERROR);
+					OpaClientUtils.invokeNotSent(cfg, r, autoCBs);
 				}
 			} catch (Exception e) {
 				OpaClientUtils.handleException(cfg.clientErrorHandler, e, null);
 			}
 		}
+		// LASTREQUEST is in lane 0 so it can be removed before requests in other lanes
+		Request r;
+		while ((r = q.poll()) != null) {
+			if (r != LASTREQUEST) {
+				OpaClientUtils.invokeNotSent(cfg, r, autoCBs);
+			}
+		}
 	}
 
 	private void sendRequest(Request r) throws IOException {
-		if (r.asyncId == null) {
+		if (OpaDeadline.isDone(r.cb)) {
+			// timed out or cancelled before being sent
+			if (r.usesMainCallbacks()) {
+				OpaClientUtils.releaseMain(mPendingLimit, r.cb, null);
+			}
+			if (r.autoId > 0) {
+				// no response will free the cancelled id
+				mAutoCallbacks.remove(r.autoId);
+			}
+			mRequestPool.recycle(r);
+			return;
+		}
+		if (r.usesMainCallbacks()) {
 			mMainCallbacks.add(r.cb);
 		}
-		OpaClientUtils.writeRequest(mSerializer, r.command, r.args, r.asyncId);
+		OpaClientUtils.writeRequest(mSerializer, r);
+		mRequestPool.recycle(r);
 	}
 
-	private void serializeRequests(BlockingQueue<Request> q) throws IOException, InterruptedException {
+	private void serializeRequests(RequestQueue q) throws IOException, InterruptedException {
 		Request r;
 		while (true) {
 			if ((r = q.poll()) == null) {
@@ -165,7 +198,7 @@ public class OpaStreamClient implements OpaClient {
 	}
 
 	private void parseResponses(InputStream in, OpaClientConfig cfg) throws IOException {
-		OpaClientRecvState s = new OpaClientRecvState(mMainCallbacks, mAsyncCallbacks, cfg);
+		OpaClientRecvState s = new OpaClientRecvState(mMainCallbacks, mAutoCallbacks, mAsyncCallbacks, mPendingLimit, cfg);
 		byte[] buff = new byte[cfg.recvBuffLen];
 		while (!mQuit) {
 			int numRead = in.read(buff);
@@ -176,12 +209,37 @@ public class OpaStreamClient implements OpaClient {
 		}
 	}
 
-	private void addRequest(CharSequence command, Iterator<?> args, Object id, CallbackSF<Object,OpaRpcError> cb) {
+	private void addRequest(int lane, CharSequence command, Iterator<?> args, Object id, CallbackSF<Object,OpaRpcError> cb) {
+		Request r = mRequestPool.get(command, args, id, cb);
+		r.lane = lane;
+		addRequest(r);
+	}
+
+	private void addRequest(Request r) {
+		if (mConfig.sendQueueBytes > 0 && r.batch == null) {
+			r.captureArgs();
+		}
+		boolean isMain = r.usesMainCallbacks();
+		if (isMain) {
+			OpaClientUtils.acquireMain(mPendingLimit, r.cb, r.batch);
+		}
+		boolean added = false;
 		try {
-			mSerializeQueue.put(new Request(command, args, id, cb));
+			if (mConfig.failWhenFull) {
+				if (!mSerializeQueue.offer(r)) {
+					throw new RejectedExecutionException("send queue is full");
+				}
+			} else {
+				mSerializeQueue.put(r);
+			}
+			added = true;
 		} catch (InterruptedException e) {
 			// TODO: create an Opatomic-specific exception class to use here rather than a wrapped RuntimeException?
 			throw new RuntimeException(e);
+		} finally {
+			if (!added && isMain) {
+				OpaClientUtils.releaseMain(mPendingLimit, r.cb, r.batch);
+			}
 		}
 	}
 
@@ -196,25 +254,42 @@ public class OpaStreamClient implements OpaClient {
 
 	@Override
 	public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		call(0, cmd, args, cb);
+	}
+
+	private void call(int lane, CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		if (cb != null && mConfig.autoIdCalls) {
+			callA(lane, cmd, args, cb);
+			return;
+		}
 		checkState();
-		addRequest(cmd, args, cb == null ? Boolean.FALSE : null, cb);
+		addRequest(lane, cmd, args, cb == null ? Boolean.FALSE : null, cb);
 	}
 
 	@Override
 	public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+		callA(0, cmd, args, cb);
+	}
+
+	private void callA(int lane, CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
 		if (cb == null) {
 			throw new IllegalArgumentException("callback cannot be null");
 		}
 		checkState();
-		Long id = mCurrId.incrementAndGet();
-		mAsyncCallbacks.put(id, cb);
+		long id = mAutoCallbacks.put(cb);
+		if (cb instanceof OpaDeadline) {
+			((OpaDeadline) cb).setAsyncId(mAutoCallbacks, id);
+		}
 		boolean removeCB = true;
 		try {
-			addRequest(cmd, args, id, null);
+			Request r = mRequestPool.get(cmd, args, null, cb);
+			r.autoId = id;
+			r.lane = lane;
+			addRequest(r);
 			removeCB = false;
 		} finally {
 			if (removeCB) {
-				mAsyncCallbacks.remove(id);
+				mAutoCallbacks.remove(id);
 			}
 		}
 	}
@@ -226,11 +301,87 @@ public class OpaStreamClient implements OpaClient {
 
 	@Override
 	public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+		callID(0, id, cmd, args);
+	}
+
+	private void callID(int lane, Object id, CharSequence cmd, Iterator<?> args) {
 		if (id == null) {
 			throw new IllegalArgumentException("id cannot be null");
 		}
 		checkState();
-		addRequest(cmd, args, id, null);
+		addRequest(lane, cmd, args, id, null);
+	}
+
+	/**
+	 * Send all commands of a batch. The batch uses 1 entry in the send queue and its commands are
+	 * serialized contiguously. See OpaBatch
+	 * @param b  batch to send. Do not modify
+	 * @param cb Callback to invoke when all responses are received. Cannot be null.
+	 */
+	@Override
+	public void callBatch(OpaBatch b, OpaBatch.Callback cb) {
+		callBatch(0, b, cb);
+	}
+
+	private void callBatch(int lane, OpaBatch b, OpaBatch.Callback cb) {
+		OpaBatch.Collector c = b.newCollector(cb);
+		checkState();
+		Request r = new Request(b, c);
+		r.lane = lane;
+		addRequest(r);
+	}
+
+	// sends requests through 1 of the send queue's priority lanes
+	private final class Lane implements OpaClient, OpaBatch.Sender {
+		private final int mLane;
+
+		Lane(int lane) {
+			mLane = lane;
+		}
+
+		@Override
+		public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			OpaStreamClient.this.call(mLane, cmd, args, cb);
+		}
+
+		@Override
+		public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			OpaStreamClient.this.callA(mLane, cmd, args, cb);
+		}
+
+		@Override
+		public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+			return OpaStreamClient.this.registerCB(id, cb);
+		}
+
+		@Override
+		public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+			OpaStreamClient.this.callID(mLane, id, cmd, args);
+		}
+
+		@Override
+		public void callBatch(OpaBatch b, OpaBatch.Callback cb) {
+			OpaStreamClient.this.callBatch(mLane, b, cb);
+		}
+	}
+
+	/**
+	 * Get a client that sends requests through a priority lane of this client's send queue (see
+	 * OpaClientConfig.priorityWeights). The returned client shares this client's connection and callbacks.
+	 * @param priority index of lane
+	 * @return client for the lane; this client if priority is 0
+	 */
+	public OpaClient withPriority(int priority) {
+		OpaClientUtils.checkPriority(mLaneWeights, priority);
+		return mLanes[priority];
+	}
+
+	/**
+	 * @return the current limit on pending responses and the response times used to adjust it; null if
+	 *         neither maxPendingResponses nor adaptivePendingLimit is configured
+	 */
+	public OpaPipelineMetrics getPipelineMetrics() {
+		return mPendingLimit != null ? mPendingLimit.getMetrics() : null;
 	}
 
 	/**
@@ -244,7 +395,7 @@ public class OpaStreamClient implements OpaClient {
 	public void quit(CharSequence cmd, Iterator<?> args, final CallbackSF<Object,OpaRpcError> cb) {
 		checkState();
 		mQuitting = true;
-		addRequest(cmd, args, null, new CallbackSF<Object,OpaRpcError>() {
+		addRequest(0, cmd, args, null, new InternalCallback() {
 			@Override
 			public void onSuccess(Object result) {
 				mQuit = true;
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Opatomic client that runs on the caller's thread: requests are serialized and responses are parsed by
+ * the thread that invokes call(). No background threads are used. Not thread-safe; use 1 client per thread.
+ * <br><br>
+ * Requests can be pipelined: after startPipeline(), call() queues the request and returns null. When
+ * sendPipeline() is invoked the requests are flushed and all responses are read and returned in order.
+ * <br><br>
+ * Responses that have an async id (ie, pub/sub messages) are passed to OpaClientConfig.unknownIdHandler.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ *   OpaSyncClient c = new OpaSyncClient(socket.getInputStream(), socket.getOutputStream());
+ *   Object pong = c.call("PING", null);
+ *   c.startPipeline();
+ *   c.callVA("INCR", "key1");
+ *   c.callVA("INCR", "key2");
+ *   Object[] results = c.sendPipeline();
+ * }
+ * </pre>
+ */
+public final class OpaSyncClient {
+	private static final class ChannelInputStream extends InputStream {
+		private final SocketChannel mChan;
+		ChannelInputStream(SocketChannel ch) {
+			mChan = ch;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return mChan.read(ByteBuffer.wrap(b, off, len));
+		}
+		@Override
+		public int read() {
+			// reading 1 byte at a time is inefficient!
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public void close() throws IOException {
+			mChan.close();
+		}
+	}
+
+	private static final class ChannelOutputStream extends OutputStream {
+		private final SocketChannel mChan;
+		ChannelOutputStream(SocketChannel ch) {
+			mChan = ch;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			while (bb.hasRemaining()) {
+				mChan.write(bb);
+			}
+		}
+		@Override
+		public void write(int b) {
+			// writing 1 byte at a time is inefficient!
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public void close() throws IOException {
+			mChan.close();
+		}
+	}
+
+	private final OpaClientConfig mConfig;
+	private final InputStream mIn;
+	private final OpaSerializer mSerializer;
+	private final OpaPartialParser mParser = new OpaPartialParser();
+	private final OpaPartialParser.Buff mPBuff = new OpaPartialParser.Buff();
+	private int mPipelineLen = -1;
+
+	/**
+	 * Create a new client that will serialize requests to an OutputStream and parse responses from an InputStream.
+	 * @param in   Stream to parse responses
+	 * @param out  Stream to serialize requests
+	 * @param cfg  Client options. See OpaClientConfig for details.
+	 */
+	public OpaSyncClient(InputStream in, OutputStream out, OpaClientConfig cfg) {
+		if (cfg.recvBuffLen <= 0) {
+			throw new IllegalArgumentException("config recvBuffLen must be greater than 0");
+		}
+		mConfig = cfg;
+		mIn = in;
+		mSerializer = new OpaSerializer(out, cfg.sendBuffLen);
+		mPBuff.data = new byte[cfg.recvBuffLen];
+	}
+
+	/**
+	 * Create a new client that will serialize requests to an OutputStream and parse responses from an InputStream.
+	 * @param in   Stream to parse responses
+	 * @param out  Stream to serialize requests
+	 */
+	public OpaSyncClient(InputStream in, OutputStream out) {
+		this(in, out, OpaClientConfig.DEFAULT_CFG);
+	}
+
+	/**
+	 * Create a new client that uses a connected SocketChannel.
+	 * @param ch   Channel to use. Must be connected and in blocking mode.
+	 * @param cfg  Client options. See OpaClientConfig for details.
+	 */
+	public OpaSyncClient(SocketChannel ch, OpaClientConfig cfg) {
+		this(new ChannelInputStream(checkBlocking(ch)), new ChannelOutputStream(ch), cfg);
+	}
+
+	private static SocketChannel checkBlocking(SocketChannel ch) {
+		if (!ch.isBlocking()) {
+			throw new IllegalBlockingModeException();
+		}
+		return ch;
+	}
+
+	// returns the response's result or an OpaRpcError if an error was returned
+	private Object parseNext() throws IOException {
+		while (true) {
+			if (mPBuff.len == 0) {
+				int numRead = mIn.read(mPBuff.data, 0, mPBuff.data.length);
+				if (numRead < 0) {
+					throw new EOFException("stream closed");
+				}
+				mPBuff.idx = 0;
+				mPBuff.len = numRead;
+			}
+			Object o = mParser.parseNext(mPBuff);
+			if (o == OpaPartialParser.NOMORE) {
+				continue;
+			}
+
+			List<?> l = (List<?>) o;
+			if (l.size() < 2 || l.size() > 3) {
+				throw new RuntimeException("Response list is wrong size: " + l.size());
+			}
+			Object id = l.get(0);
+			OpaRpcError err = l.size() == 3 ? OpaClientRecvState.convertErr(l.get(2)) : null;
+			if (id != null) {
+				if (mConfig.unknownIdHandler != null) {
+					mConfig.unknownIdHandler.handle(id, l.get(1), err);
+				}
+				continue;
+			}
+			return err != null ? err : l.get(1);
+		}
+	}
+
+	/**
+	 * Run specified command on server. If a pipeline has been started then the request is queued and null
+	 * is returned; otherwise, waits for the response.
+	 * @param cmd  Command to run
+	 * @param args Command's parameters
+	 * @return the command's result; or null if pipelining
+	 * @throws IOException
+	 * @throws OpaRpcException if the server returns an error
+	 */
+	public Object call(CharSequence cmd, Iterator<?> args) throws IOException {
+		OpaClientUtils.writeRequest(mSerializer, cmd, args, null);
+		if (mPipelineLen >= 0) {
+			++mPipelineLen;
+			return null;
+		}
+		mSerializer.flush();
+		Object r = parseNext();
+		if (r instanceof OpaRpcError) {
+			throw new OpaRpcException((OpaRpcError) r);
+		}
+		return r;
+	}
+
+	/**
+	 * Run specified command on server. See call()
+	 * @param cmd  Command to run
+	 * @param args Command's parameters
+	 * @return the command's result; or null if pipelining
+	 * @throws IOException
+	 * @throws OpaRpcException if the server returns an error
+	 */
+	public Object callVA(CharSequence cmd, Object... args) throws IOException {
+		return call(cmd, Arrays.asList(args).iterator());
+	}
+
+	/**
+	 * Start queueing requests. The requests are sent when sendPipeline() is invoked (or earlier if the
+	 * serializer's buffer fills up).
+	 */
+	public void startPipeline() {
+		if (mPipelineLen >= 0) {
+			throw new IllegalStateException("pipeline started already");
+		}
+		mPipelineLen = 0;
+	}
+
+	/**
+	 * Send all queued requests and wait for all of their responses. All responses are read even if an
+	 * error is returned so that the client can continue to be used.
+	 * @return the result of each request, in the order the requests were queued
+	 * @throws IOException
+	 * @throws OpaRpcException the first error if the server returned an error for any of the requests
+	 */
+	public Object[] sendPipeline() throws IOException {
+		Object[] results = new Object[pipelineLen()];
+		OpaRpcError[] errs = new OpaRpcError[results.length];
+		if (sendPipeline(results, errs) > 0) {
+			for (int i = 0; i < errs.length; ++i) {
+				if (errs[i] != null) {
+					throw new OpaRpcException(errs[i]);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Send all queued requests and wait for all of their responses.
+	 * @param results where to store each request's result. Length must be at least the number of queued requests
+	 * @param errs    where to store each request's error (null if no error). Length must be at least the number of queued requests
+	 * @return the number of errors that were returned
+	 * @throws IOException
+	 */
+	public int sendPipeline(Object[] results, OpaRpcError[] errs) throws IOException {
+		int len = pipelineLen();
+		if (results.length < len || errs.length < len) {
+			throw new IllegalArgumentException("arrays are too small for " + len + " responses");
+		}
+		mPipelineLen = -1;
+		// note: could cause problems if a lot of requests and responses are piling up on server...
+		//  server may not be able to parse more requests until some responses are received by client?
+		mSerializer.flush();
+		int numErrs = 0;
+		for (int i = 0; i < len; ++i) {
+			Object r = parseNext();
+			if (r instanceof OpaRpcError) {
+				results[i] = null;
+				errs[i] = (OpaRpcError) r;
+				++numErrs;
+			} else {
+				results[i] = r;
+				errs[i] = null;
+			}
+		}
+		return numErrs;
+	}
+
+	private int pipelineLen() {
+		if (mPipelineLen < 0) {
+			throw new IllegalStateException("pipeline not started");
+		}
+		return mPipelineLen;
+	}
+
+	/**
+	 * Close the streams (or channel) used by this client.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			mSerializer.close();
+		} finally {
+			mIn.close();
+		}
+	}
+}
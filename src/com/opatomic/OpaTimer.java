@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Hashed wheel timer shared by all clients. Tasks are stored in a wheel of buckets indexed by the tick at which
+ * they expire; each bucket is an intrusive doubly linked list so scheduling and cancelling are O(1) and do not
+ * allocate. A single daemon thread advances the wheel once per tick and waits when there are no tasks.
+ * Expiration is only as accurate as the tick length.
+ */
+final class OpaTimer implements Runnable {
+	abstract static class Task {
+		private Task mPrev;
+		private Task mNext;
+		private long mExpireTick;
+		private boolean mScheduled;
+
+		/**
+		 * Invoked from the timer thread when the task expires. Must return quickly.
+		 */
+		abstract void expire();
+	}
+
+	private static final int WHEELLEN = 512;
+	private static final long TICKNANOS = 10 * 1000000L;
+
+	static final OpaTimer INSTANCE = new OpaTimer();
+
+	private final Task[] mWheel = new Task[WHEELLEN];
+	private long mTick;
+	private long mStartNanos;
+	private int mCount;
+	private boolean mStarted;
+
+	private OpaTimer() {}
+
+	/**
+	 * Schedule a task to expire after a delay. The task must not already be scheduled.
+	 */
+	synchronized void schedule(Task t, long delayNanos) {
+		if (t.mScheduled) {
+			throw new IllegalStateException("task is already scheduled");
+		}
+		if (!mStarted) {
+			mStarted = true;
+			mStartNanos = System.nanoTime();
+			OpaUtils.startDaemonThread(this, "OpaTimer");
+		}
+		// round up so a task never expires early (the current tick has partially elapsed, hence the extra tick)
+		long ticks = (delayNanos + TICKNANOS - 1) / TICKNANOS;
+		t.mExpireTick = mTick + 1 + (ticks < 0 ? 0 : ticks);
+		int idx = (int) (t.mExpireTick & (WHEELLEN - 1));
+		t.mPrev = null;
+		t.mNext = mWheel[idx];
+		if (t.mNext != null) {
+			t.mNext.mPrev = t;
+		}
+		mWheel[idx] = t;
+		t.mScheduled = true;
+		if (++mCount == 1) {
+			notifyAll();
+		}
+	}
+
+	private void unlink(Task t, int idx) {
+		if (t.mPrev != null) {
+			t.mPrev.mNext = t.mNext;
+		} else {
+			mWheel[idx] = t.mNext;
+		}
+		if (t.mNext != null) {
+			t.mNext.mPrev = t.mPrev;
+		}
+		t.mPrev = null;
+		t.mNext = null;
+		t.mScheduled = false;
+		--mCount;
+	}
+
+	/**
+	 * Remove a task so that it will not expire.
+	 * @return true if the task was removed; false if it was not scheduled (or has already expired)
+	 */
+	synchronized boolean cancel(Task t) {
+		if (!t.mScheduled) {
+			return false;
+		}
+		unlink(t, (int) (t.mExpireTick & (WHEELLEN - 1)));
+		return true;
+	}
+
+	// advance wheel by 1 tick; returns list of expired tasks (linked by mNext)
+	private synchronized Task advance() throws InterruptedException {
+		while (mCount == 0) {
+			wait();
+			// no tasks were scheduled while waiting; start counting ticks from now
+			mStartNanos = System.nanoTime() - mTick * TICKNANOS;
+		}
+		long sleepNanos = mStartNanos + (mTick + 1) * TICKNANOS - System.nanoTime();
+		if (sleepNanos > 0) {
+			wait(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+			return null;
+		}
+		++mTick;
+		int idx = (int) (mTick & (WHEELLEN - 1));
+		Task expired = null;
+		Task t = mWheel[idx];
+		while (t != null) {
+			Task next = t.mNext;
+			if (t.mExpireTick <= mTick) {
+				unlink(t, idx);
+				t.mNext = expired;
+				expired = t;
+			}
+			t = next;
+		}
+		return expired;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Task t;
+			try {
+				t = advance();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			while (t != null) {
+				Task next = t.mNext;
+				t.mNext = null;
+				try {
+					t.expire();
+				} catch (Exception e) {
+					OpaClientUtils.handleException(OpaClientConfig.DEFAULT_CFG.uncaughtExceptionHandler, e, t);
+				}
+				t = next;
+			}
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadFactory;
 
 public class OpaUtils {
 	private static final String NULLCHARS = "null";
@@ -316,4 +317,17 @@ public class OpaUtils {
 		t.start();
 		return t;
 	}
+
+	static Thread startThread(ThreadFactory f, Runnable r, String name) {
+		if (f == null) {
+			return startDaemonThread(r, name);
+		}
+		Thread t = f.newThread(r);
+		if (t == null) {
+			throw new IllegalStateException("ThreadFactory did not create a thread");
+		}
+		t.setName(name);
+		t.start();
+		return t;
+	}
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21+). This is the fallback implementation for older versions of Java;
+ * the jar is a multi-release jar that contains a Java 21 version of this class which is used when
+ * running on Java 21 or later.
+ */
+public final class OpaVirtualThreads {
+	private OpaVirtualThreads() {}
+
+	/**
+	 * Determine whether virtual threads are available in the running JVM.
+	 * @return true if virtual threads are available
+	 */
+	public static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Get a ThreadFactory that creates virtual threads. Can be used as OpaClientConfig.threadFactory.
+	 * @return ThreadFactory that creates virtual threads
+	 * @throws UnsupportedOperationException if virtual threads are not available
+	 */
+	public static ThreadFactory factory() {
+		throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+	}
+}
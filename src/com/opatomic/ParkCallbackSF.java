@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A callback that helps make a request synchronous by waiting for response. Unlike WaitCallbackSF, this
+ * does not use synchronized/wait()/notify(); the waiting thread is parked with LockSupport. This means a
+ * virtual thread that is waiting will not pin its carrier thread. Only 1 thread may wait at a time.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ *   ParkCallbackSF<Object,OpaRpcError> pcb = new ParkCallbackSF<Object,OpaRpcError>();
+ *   client.call("PING", null, pcb);
+ *   pcb.waitIfNotDone();
+ *   if (pcb.getError() != null) {
+ *     // error occurred
+ *   } else {
+ *     // no error, result is available from pcb.getResult()
+ *   }
+ *
+ *   // or, more simply (throws OpaRpcException if an error is returned):
+ *   Object result = ParkCallbackSF.call(client, "PING", null);
+ * }
+ * </pre>
+ * @param <R> Object type for result
+ * @param <E> Object type for error
+ */
+public class ParkCallbackSF<R,E> implements CallbackSF<R,E> {
+	private R mResult;
+	private E mError;
+	private volatile boolean mIsDone;
+	private volatile Thread mWaiter;
+
+	/**
+	 * Get the result of the callback. Must call getError() first to determine whether an error occurred.
+	 * @return result
+	 * @throws IllegalStateException if the error/result is not available
+	 * @throws IllegalStateException if the callback failed and an error exists
+	 */
+	public R getResult() {
+		if (!mIsDone) {
+			throw new IllegalStateException("result is not available yet");
+		} else if (mError != null) {
+			throw new IllegalStateException("callback failed; getResult() cannot be called");
+		}
+		return mResult;
+	}
+
+	/**
+	 * Get the error of the callback. Returns null if an error did not occur.
+	 * @return result
+	 * @throws IllegalStateException if the error/result is not available
+	 */
+	public E getError() {
+		if (!mIsDone) {
+			throw new IllegalStateException("error is not available yet");
+		}
+		return mError;
+	}
+
+	/**
+	 * Determine whether a response has been received.
+	 * @return true if a response has been received
+	 */
+	public boolean isDone() {
+		return mIsDone;
+	}
+
+	private void done() {
+		mIsDone = true;
+		Thread t = mWaiter;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	@Override
+	public void onSuccess(R result) {
+		mResult = result;
+		done();
+	}
+
+	@Override
+	public void onFailure(E error) {
+		mError = error;
+		done();
+	}
+
+	/**
+	 * Wait forever until a response is received.
+	 * @throws InterruptedException
+	 */
+	public void waitIfNotDone() throws InterruptedException {
+		if (mIsDone) {
+			return;
+		}
+		mWaiter = Thread.currentThread();
+		try {
+			// loop because park() may return spuriously
+			while (!mIsDone) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			mWaiter = null;
+		}
+	}
+
+	/**
+	 * Wait until a response is received or a timeout is exceeded
+	 * @param millis max milliseconds to wait for response
+	 * @throws InterruptedException
+	 * @throws TimeoutException
+	 */
+	public void waitIfNotDone(long millis) throws InterruptedException, TimeoutException {
+		if (millis == 0) {
+			waitIfNotDone();
+			return;
+		}
+		if (mIsDone) {
+			return;
+		}
+		long endTime = System.nanoTime() + (millis * 1000000L);
+		mWaiter = Thread.currentThread();
+		try {
+			// loop because park() may return spuriously
+			while (!mIsDone) {
+				long remaining = endTime - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException("wait() timed out");
+				}
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			mWaiter = null;
+		}
+	}
+
+	/**
+	 * Clear the callback's state so it can be used again
+	 * @return this callback
+	 */
+	public ParkCallbackSF<R,E> reset() {
+		mIsDone = false;
+		mResult = null;
+		mError = null;
+		return this;
+	}
+
+	private static Object getResultOrThrow(ParkCallbackSF<Object,OpaRpcError> cb) {
+		if (cb.getError() != null) {
+			throw new OpaRpcException(cb.getError());
+		}
+		return cb.getResult();
+	}
+
+	/**
+	 * Run a command and block the current thread until the response is received.
+	 * @param c    client to use
+	 * @param cmd  Command to run
+	 * @param args Command's parameters
+	 * @return the command's result
+	 * @throws InterruptedException
+	 * @throws OpaRpcException if an error is returned
+	 */
+	public static Object call(OpaClient c, CharSequence cmd, Iterator<?> args) throws InterruptedException {
+		return call(c, cmd, args, new ParkCallbackSF<Object,OpaRpcError>());
+	}
+
+	/**
+	 * Same as call(OpaClient, CharSequence, Iterator) but reuses a callback owned by the caller rather than
+	 * allocating a new one for each call. The callback is reset before the command is sent. It must not be
+	 * used by more than 1 thread at a time.
+	 * @param c    client to use
+	 * @param cmd  Command to run
+	 * @param args Command's parameters
+	 * @param cb   Callback to reset and reuse
+	 * @return the command's result
+	 * @throws InterruptedException
+	 * @throws OpaRpcException if an error is returned
+	 */
+	public static Object call(OpaClient c, CharSequence cmd, Iterator<?> args, ParkCallbackSF<Object,OpaRpcError> cb) throws InterruptedException {
+		c.call(cmd, args, cb.reset());
+		cb.waitIfNotDone();
+		return getResultOrThrow(cb);
+	}
+
+	/**
+	 * Run a command with an auto-generated async id (see OpaClient.callA()) and block the current thread
+	 * until the response is received.
+	 * @param c    client to use
+	 * @param cmd  Command to run
+	 * @param args Command's parameters
+	 * @return the command's result
+	 * @throws InterruptedException
+	 * @throws OpaRpcException if an error is returned
+	 */
+	public static Object callA(OpaClient c, CharSequence cmd, Iterator<?> args) throws InterruptedException {
+		return callA(c, cmd, args, new ParkCallbackSF<Object,OpaRpcError>());
+	}
+
+	/**
+	 * Same as callA(OpaClient, CharSequence, Iterator) but reuses a callback owned by the caller.
+	 * @param c    client to use
+	 * @param cmd  Command to run
+	 * @param args Command's parameters
+	 * @param cb   Callback to reset and reuse
+	 * @return the command's result
+	 * @throws InterruptedException
+	 * @throws OpaRpcException if an error is returned
+	 */
+	public static Object callA(OpaClient c, CharSequence cmd, Iterator<?> args, ParkCallbackSF<Object,OpaRpcError> cb) throws InterruptedException {
+		c.callA(cmd, args, cb.reset());
+		cb.waitIfNotDone();
+		return getResultOrThrow(cb);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FIFO of threads that are waiting for a condition. Used instead of Object.wait() so that a waiting virtual
+ * thread parks (see LockSupport) rather than pinning its carrier thread, and instead of a Condition so that
+ * waiting does not allocate: each thread reuses 1 node for all of its waits. Except for await(), methods
+ * must be called while holding the lock that guards the condition; await() must be called without it.
+ */
+final class ParkQueue {
+	static final class Node {
+		final Thread thread = Thread.currentThread();
+		Node next;
+		volatile boolean waiting;
+	}
+
+	private static final ThreadLocal<Node> NODES = new ThreadLocal<Node>() {
+		@Override
+		protected Node initialValue() {
+			return new Node();
+		}
+	};
+
+	private Node mHead;
+	private Node mTail;
+
+	/**
+	 * Add the current thread to the end of the queue. Release the lock then call await() with the node.
+	 */
+	Node add() {
+		Node n = NODES.get();
+		n.next = null;
+		n.waiting = true;
+		if (mTail == null) {
+			mHead = n;
+		} else {
+			mTail.next = n;
+		}
+		mTail = n;
+		return n;
+	}
+
+	/**
+	 * Park until the node is signalled. If interrupted, then call remove() with the node (holding the lock).
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	static void await(Node n, Object blocker) throws InterruptedException {
+		while (n.waiting) {
+			LockSupport.park(blocker);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Remove a node that stopped waiting because its thread was interrupted. If the node was signalled, then
+	 * the signal is passed to the next waiting thread.
+	 */
+	void remove(Node n) {
+		if (!n.waiting) {
+			signal();
+			return;
+		}
+		n.waiting = false;
+		Node prev = null;
+		for (Node c = mHead; c != null; prev = c, c = c.next) {
+			if (c == n) {
+				if (prev == null) {
+					mHead = n.next;
+				} else {
+					prev.next = n.next;
+				}
+				if (mTail == n) {
+					mTail = prev;
+				}
+				n.next = null;
+				return;
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return mHead == null;
+	}
+
+	/**
+	 * Wake the first waiting thread.
+	 */
+	void signal() {
+		Node n = mHead;
+		if (n == null) {
+			return;
+		}
+		mHead = n.next;
+		if (mHead == null) {
+			mTail = null;
+		}
+		n.next = null;
+		n.waiting = false;
+		LockSupport.unpark(n.thread);
+	}
+
+	/**
+	 * Wake all waiting threads.
+	 */
+	void signalAll() {
+		while (mHead != null) {
+			signal();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits the number of responses a client is waiting for (see OpaClientConfig.maxPendingResponses). A permit
+ * is acquired by the caller for each response that a request will receive, and is released when the response
+ * is received or the request's callback is removed without a response (ie, when an OpaDeadline expires).
+ * Waiting callers park (see ParkQueue) so that a waiting virtual thread does not pin its carrier thread, and
+ * a released permit wakes 1 caller rather than all of them.
+ *
+ * <p>If adaptive, the limit is adjusted from response times similar to TCP Vegas: the lowest response time
+ * seen is assumed to be the time without any queueing. The lowest response time of each window of samples is
+ * compared to it to estimate how many requests are queued (in the client, network or server). The limit is
+ * increased while the estimated queue is small and decreased when it grows. The lowest response time is
+ * periodically reset so the limit can adapt to changes in latency.
+ */
+final class PendingLimit {
+	private static final int INITLIMIT = 20;
+	private static final int MINLIMIT = 1;
+	private static final int MINWINDOW = 16;
+	// reset min rtt after this many windows
+	private static final int PROBEWINDOWS = 100;
+
+	private final boolean mFailFast;
+	private final boolean mAdaptive;
+	private final int mMaxLimit;
+	private int mLimit;
+	private int mCount;
+	// callers waiting for permits; guarded by this object's lock (which is never held while waiting)
+	private final ParkQueue mWaiters = new ParkQueue();
+	private boolean mClosed;
+
+	private long mMinRtt;
+	private long mWindowMinRtt = Long.MAX_VALUE;
+	private long mLastRtt;
+	private int mWindowSamples;
+	private int mWindows;
+	private long mNumIncreases;
+	private long mNumDecreases;
+
+	/**
+	 * @param max      max number of pending responses
+	 * @param failFast throw rather than wait when limit is reached
+	 * @param adaptive adjust limit (between 1 and max) from response times
+	 */
+	PendingLimit(int max, boolean failFast, boolean adaptive) {
+		mMaxLimit = max;
+		mFailFast = failFast;
+		mAdaptive = adaptive;
+		mLimit = adaptive ? Math.min(INITLIMIT, max) : max;
+	}
+
+	boolean isAdaptive() {
+		return mAdaptive;
+	}
+
+	/**
+	 * Acquire permits, waiting for responses if necessary. If the number of permits is larger than the limit,
+	 * then waits until there are no pending responses.
+	 * @throws RejectedExecutionException if the limit has been reached and the client is configured to fail fast
+	 * @throws IllegalStateException if the client has been closed
+	 */
+	void acquire(int num) {
+		while (true) {
+			ParkQueue.Node n;
+			synchronized (this) {
+				if (mClosed) {
+					throw new IllegalStateException("closed");
+				}
+				if (mCount == 0 || mCount + num <= mLimit) {
+					mCount += num;
+					if (mCount < mLimit) {
+						// 1 waiter is woken at a time; wake the next one if permits are left
+						mWaiters.signal();
+					}
+					return;
+				}
+				if (mFailFast) {
+					throw new RejectedExecutionException("too many pending responses");
+				}
+				n = mWaiters.add();
+			}
+			try {
+				ParkQueue.await(n, this);
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					mWaiters.remove(n);
+				}
+				// TODO: create an Opatomic-specific exception class to use here rather than a wrapped RuntimeException?
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Release permits.
+	 * @param num      number of permits
+	 * @param rttNanos time between sending the request and receiving its response; negative if unknown
+	 */
+	synchronized void release(int num, long rttNanos) {
+		int prevCount = mCount;
+		mCount -= num;
+		if (mAdaptive && rttNanos >= 0) {
+			onSample(rttNanos, prevCount);
+		}
+		if (mCount < mLimit) {
+			mWaiters.signal();
+		}
+	}
+
+	private static int log10(int v) {
+		int l = 0;
+		while (v >= 10) {
+			v /= 10;
+			++l;
+		}
+		return l < 1 ? 1 : l;
+	}
+
+	private void onSample(long rtt, int pending) {
+		if (rtt < 1) {
+			rtt = 1;
+		}
+		if (mMinRtt == 0 || rtt < mMinRtt) {
+			mMinRtt = rtt;
+		}
+		if (rtt < mWindowMinRtt) {
+			mWindowMinRtt = rtt;
+		}
+		if (++mWindowSamples < Math.max(MINWINDOW, mLimit)) {
+			return;
+		}
+
+		mLastRtt = mWindowMinRtt;
+		mWindowMinRtt = Long.MAX_VALUE;
+		mWindowSamples = 0;
+
+		int limit = mLimit;
+		int l = log10(limit);
+		long queue = limit - ((limit * mMinRtt) / mLastRtt);
+		int newLimit = limit;
+		if (queue <= l) {
+			newLimit = limit + 3 * l;
+		} else if (queue < 3 * l) {
+			newLimit = limit + l;
+		} else if (queue > 6 * l) {
+			newLimit = limit - l;
+		}
+		if (newLimit > limit && pending * 2 < limit) {
+			// caller is not using the current limit; do not increase it
+			newLimit = limit;
+		}
+		newLimit = Math.max(MINLIMIT, Math.min(mMaxLimit, newLimit));
+		if (newLimit > limit) {
+			++mNumIncreases;
+		} else if (newLimit < limit) {
+			++mNumDecreases;
+		}
+		mLimit = newLimit;
+
+		if (++mWindows >= PROBEWINDOWS) {
+			// latency may have changed; find a new min
+			mWindows = 0;
+			mMinRtt = mLastRtt;
+		}
+	}
+
+	/**
+	 * Wake waiting callers and fail all future attempts to acquire permits.
+	 */
+	synchronized void close() {
+		mClosed = true;
+		mWaiters.signalAll();
+	}
+
+	synchronized OpaPipelineMetrics getMetrics() {
+		return new OpaPipelineMetrics(mLimit, mCount, mMinRtt, mLastRtt, mNumIncreases, mNumDecreases);
+	}
+}
@@ -1,22 +1,105 @@
 package com.opatomic;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-final class Request {
-	final CharSequence command;
-	final Iterator<?> args;
-	final Object asyncId;
-	final CallbackSF<Object,OpaRpcError> cb;
+// note: a request is its own iterator over args that were captured by captureArgs()
+final class Request implements Iterator<Object> {
+	// fields are not final so that requests can be recycled by RequestPool
+	CharSequence command;
+	Iterator<?> args;
+	Object asyncId;
+	// id from AsyncIdTable if > 0 (asyncId is null in this case)
+	long autoId;
+	CallbackSF<Object,OpaRpcError> cb;
+	OpaBatch batch;
+	// estimated serialized size; only set if client limits the number of bytes in its send queue
+	long size;
+	// priority lane of send queue (see RequestLanes)
+	int lane;
+
+	private Object[] mArgBuff;
+	private int mArgLen;
+	private int mArgIdx;
 
 	Request(CharSequence command, Iterator<?> args, Object asyncId, CallbackSF<Object,OpaRpcError> cb) {
+		set(command, args, asyncId, cb);
+	}
+
+	// all of the batch's commands are serialized together; cb receives all of the responses
+	Request(OpaBatch batch, OpaBatch.Collector cb) {
+		this.cb = cb;
+		this.batch = batch;
+		this.size = batch.estimateSize();
+	}
+
+	void set(CharSequence command, Iterator<?> args, Object asyncId, CallbackSF<Object,OpaRpcError> cb) {
 		this.command = command;
 		this.args = args;
 		this.asyncId = asyncId;
+		this.autoId = 0;
 		this.cb = cb;
+		this.batch = null;
+		this.size = 0;
+		this.lane = 0;
+		if (mArgLen > 0) {
+			// clear references to captured args so they can be garbage collected
+			for (int i = 0; i < mArgLen; ++i) {
+				mArgBuff[i] = null;
+			}
+			mArgLen = 0;
+		}
+	}
+
+	/**
+	 * Copy args from the caller's iterator so that their size can be estimated before the request is queued.
+	 * Sets size to the estimated size of the request.
+	 */
+	void captureArgs() {
+		long sz = OpaClientUtils.estimateSize(command) + 24;
+		if (args != null) {
+			while (args.hasNext()) {
+				Object o = args.next();
+				if (mArgBuff == null || mArgLen == mArgBuff.length) {
+					Object[] newBuff = new Object[mArgBuff == null ? 4 : mArgBuff.length * 2];
+					if (mArgBuff != null) {
+						System.arraycopy(mArgBuff, 0, newBuff, 0, mArgLen);
+					}
+					mArgBuff = newBuff;
+				}
+				mArgBuff[mArgLen++] = o;
+				sz += OpaClientUtils.estimateSize(o);
+			}
+			mArgIdx = 0;
+			args = this;
+		}
+		size = sz;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return mArgIdx < mArgLen;
+	}
+
+	@Override
+	public Object next() {
+		if (mArgIdx >= mArgLen) {
+			throw new NoSuchElementException();
+		}
+		return mArgBuff[mArgIdx++];
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	boolean usesMainCallbacks() {
+		return asyncId == null && autoId == 0;
 	}
 
 	// TODO: implement toString()?
 
-	// TODO: return an instance of this object from call() functions with a cancel() function: if request hasn't
-	//  been sent then set flag and when it is time to serialize, call failure callback? see java.util.concurrent.Future
+	// note: to cancel a request, wrap its callback with OpaDeadline. A request is not serialized if the
+	//  OpaDeadline is done (see OpaStreamClient.sendRequest())
 }
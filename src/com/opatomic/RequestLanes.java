@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Requests waiting to be serialized, split into priority lanes (see OpaClientConfig.priorityWeights). Each
+ * lane is a FIFO. Lanes are drained with weighted round robin: a lane may have up to its weight of requests
+ * removed before the next non-empty lane gets a turn, so a busy low priority lane cannot delay a high
+ * priority lane by more than its weight. A batch counts as 1 request. Not thread safe; callers must hold a
+ * lock.
+ */
+final class RequestLanes {
+	private static final int INITLANELEN = 16;
+
+	private final int[] mWeights;
+	private final Request[][] mRings;
+	private final int[] mHeads;
+	private final int[] mCounts;
+	private int mCount;
+	// lane whose turn it is and the number of requests it can still have removed in its turn
+	private int mLane;
+	private int mCredit;
+
+	/**
+	 * @param weights     weight of each lane; lane 0 is the first to get a turn
+	 * @param initLen     initial capacity of lane 0 (other lanes start smaller). Lanes grow when full
+	 */
+	RequestLanes(int[] weights, int initLen) {
+		mWeights = weights;
+		mRings = new Request[weights.length][];
+		mHeads = new int[weights.length];
+		mCounts = new int[weights.length];
+		for (int i = 0; i < weights.length; ++i) {
+			mRings[i] = new Request[i == 0 ? Math.max(initLen, 1) : Math.min(Math.max(initLen, 1), INITLANELEN)];
+		}
+		mCredit = weights[0];
+	}
+
+	private void grow(int lane) {
+		Request[] ring = mRings[lane];
+		Request[] newRing = new Request[ring.length * 2];
+		int head = mHeads[lane];
+		int tailLen = ring.length - head;
+		System.arraycopy(ring, head, newRing, 0, tailLen);
+		System.arraycopy(ring, 0, newRing, tailLen, head);
+		mRings[lane] = newRing;
+		mHeads[lane] = 0;
+	}
+
+	void add(Request r) {
+		int lane = r.lane < mRings.length ? r.lane : mRings.length - 1;
+		if (mCounts[lane] == mRings[lane].length) {
+			grow(lane);
+		}
+		Request[] ring = mRings[lane];
+		int idx = mHeads[lane] + mCounts[lane];
+		ring[idx >= ring.length ? idx - ring.length : idx] = r;
+		++mCounts[lane];
+		++mCount;
+	}
+
+	/**
+	 * @return the next request to serialize or null if there are no requests
+	 */
+	Request poll() {
+		if (mCount == 0) {
+			return null;
+		}
+		int lane = mLane;
+		while (mCredit == 0 || mCounts[lane] == 0) {
+			lane = lane + 1 == mRings.length ? 0 : lane + 1;
+			mCredit = mWeights[lane];
+		}
+		mLane = lane;
+		--mCredit;
+
+		Request[] ring = mRings[lane];
+		int head = mHeads[lane];
+		Request r = ring[head];
+		ring[head] = null;
+		mHeads[lane] = head + 1 == ring.length ? 0 : head + 1;
+		--mCounts[lane];
+		--mCount;
+		return r;
+	}
+
+	int size() {
+		return mCount;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.Iterator;
+
+/**
+ * Bounded pool of Request objects. A request is recycled after it has been serialized so that a client in
+ * steady state does not allocate a Request per call.
+ */
+final class RequestPool {
+	private final Request[] mFree;
+	private int mSize;
+
+	RequestPool(int maxLen) {
+		mFree = new Request[maxLen];
+	}
+
+	Request get(CharSequence command, Iterator<?> args, Object asyncId, CallbackSF<Object,OpaRpcError> cb) {
+		Request r = null;
+		synchronized (mFree) {
+			if (mSize > 0) {
+				r = mFree[--mSize];
+				mFree[mSize] = null;
+			}
+		}
+		if (r == null) {
+			return new Request(command, args, asyncId, cb);
+		}
+		r.set(command, args, asyncId, cb);
+		return r;
+	}
+
+	/**
+	 * Return a request to the pool. The request must not be referenced anywhere else.
+	 */
+	void recycle(Request r) {
+		// clear references so that args/callbacks can be garbage collected
+		r.set(null, null, null, null);
+		synchronized (mFree) {
+			if (mSize < mFree.length) {
+				mFree[mSize++] = r;
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+/**
+ * Bounded queue of requests waiting to be serialized. Requests are removed in FIFO order within each
+ * priority lane (see RequestLanes). Unlike the java.util.concurrent blocking queues, this does not allocate
+ * anything when adding an item (once the lanes have grown) or when a thread must wait (see ParkQueue). The
+ * object's monitor is only held briefly; waiting threads park without holding it, so a waiting virtual
+ * thread does not pin its carrier thread. The queue can also be bounded by the sum of the requests'
+ * estimated sizes (see Request.size).
+ */
+final class RequestQueue {
+	private final RequestLanes mItems;
+	private final int mCapacity;
+	private final long mMaxBytes;
+	// the following are guarded by this object's lock
+	private final ParkQueue mNotEmpty = new ParkQueue();
+	private final ParkQueue mNotFull = new ParkQueue();
+	private int mCount;
+	private long mBytes;
+
+	/**
+	 * @param capacity max number of requests
+	 * @param maxBytes max sum of request sizes; 0 for no limit. A request that is larger than this can be
+	 *                 added when the queue is empty
+	 * @param weights  weight of each priority lane (see RequestLanes)
+	 */
+	RequestQueue(int capacity, long maxBytes, int[] weights) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be > 0");
+		}
+		mItems = new RequestLanes(weights, capacity);
+		mCapacity = capacity;
+		mMaxBytes = maxBytes;
+	}
+
+	// must hold lock
+	private boolean isFull(Request r) {
+		return mCount == mCapacity || (mMaxBytes > 0 && mBytes > 0 && mBytes + r.size > mMaxBytes);
+	}
+
+	// must hold lock
+	private void enqueue(Request r) {
+		mBytes += r.size;
+		mItems.add(r);
+		++mCount;
+		mNotEmpty.signal();
+	}
+
+	// must hold lock
+	private Request dequeue() {
+		Request r = mItems.poll();
+		mBytes -= r.size;
+		--mCount;
+		// 1 waiting producer at a time; it wakes the next one if there is still space (see put())
+		mNotFull.signal();
+		return r;
+	}
+
+	/**
+	 * Add a request, waiting for space to become available if necessary.
+	 */
+	void put(Request r) throws InterruptedException {
+		while (true) {
+			ParkQueue.Node n;
+			synchronized (this) {
+				if (!isFull(r)) {
+					enqueue(r);
+					if (mCount < mCapacity && (mMaxBytes == 0 || mBytes < mMaxBytes)) {
+						mNotFull.signal();
+					}
+					return;
+				}
+				n = mNotFull.add();
+			}
+			try {
+				ParkQueue.await(n, this);
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					mNotFull.remove(n);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Add a request if there is space available.
+	 * @return false if the queue is full
+	 */
+	synchronized boolean offer(Request r) {
+		if (isFull(r)) {
+			return false;
+		}
+		enqueue(r);
+		return true;
+	}
+
+	/**
+	 * Add a request without waiting, even if the queue is full. Used to signal the consumer (which must be
+	 * able to receive the signal when producers have filled the queue).
+	 */
+	synchronized void add(Request r) {
+		enqueue(r);
+	}
+
+	/**
+	 * @return the next request or null if the queue is empty
+	 */
+	synchronized Request poll() {
+		return mCount == 0 ? null : dequeue();
+	}
+
+	/**
+	 * Remove the next request, waiting for one to be added if necessary.
+	 */
+	Request take() throws InterruptedException {
+		while (true) {
+			ParkQueue.Node n;
+			synchronized (this) {
+				if (mCount > 0) {
+					Request r = dequeue();
+					if (mCount > 0) {
+						mNotEmpty.signal();
+					}
+					return r;
+				}
+				n = mNotEmpty.add();
+			}
+			try {
+				ParkQueue.await(n, this);
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					mNotEmpty.remove(n);
+				}
+				throw e;
+			}
+		}
+	}
+}
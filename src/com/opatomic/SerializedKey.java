@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Map key made from serialized values. Values that serialize to the same bytes are equal (ie, a String and a
+ * StringBuilder with the same chars) and byte arrays are compared by content. The serialized form is
+ * compact and does not reference the values it was made from.
+ */
+final class SerializedKey {
+	final byte[] bytes;
+	private final int mHash;
+
+	private SerializedKey(byte[] b) {
+		bytes = b;
+		mHash = Arrays.hashCode(b);
+	}
+
+	// value is serialized in an array of length 1 because the parser only returns arrays
+	static byte[] serialize(Object o) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		OpaSerializer s = new OpaSerializer(bo, 128);
+		try {
+			s.writeArray(Collections.singletonList(o).iterator());
+			s.flush();
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new RuntimeException(e);
+		}
+		return bo.toByteArray();
+	}
+
+	static Object parse(byte[] b) {
+		OpaPartialParser.Buff buff = new OpaPartialParser.Buff();
+		buff.data = b;
+		buff.idx = 0;
+		buff.len = b.length;
+		return ((List<?>) new OpaPartialParser().parseNext(buff)).get(0);
+	}
+
+	/**
+	 * @return key for a value
+	 */
+	static SerializedKey of(Object o) {
+		return new SerializedKey(serialize(o));
+	}
+
+	/**
+	 * @return key for a command and its args
+	 */
+	static SerializedKey of(CharSequence cmd, List<Object> args) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		OpaSerializer s = new OpaSerializer(bo, 128);
+		try {
+			s.writeString(cmd);
+			s.writeArray(args.iterator());
+			s.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return new SerializedKey(bo.toByteArray());
+	}
+
+	@Override
+	public int hashCode() {
+		return mHash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof SerializedKey && ((SerializedKey) o).mHash == mHash && Arrays.equals(((SerializedKey) o).bytes, bytes);
+	}
+}
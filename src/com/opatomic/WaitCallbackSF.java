@@ -8,7 +8,8 @@ package com.opatomic;
 import java.util.concurrent.TimeoutException;
 
 /**
- * A callback that helps make a request synchronous by waiting for response.
+ * A callback that helps make a request synchronous by waiting for response. Waiting is done with
+ * Object.wait() which pins a virtual thread to its carrier; use ParkCallbackSF from virtual threads.
  *
  * Example usage:
  * <pre>
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads. This version of the class is placed in META-INF/versions/21 of the
+ * multi-release jar.
+ */
+public final class OpaVirtualThreads {
+	private static final ThreadFactory FACTORY = Thread.ofVirtual().name("opac-virtual-", 0).factory();
+
+	private OpaVirtualThreads() {}
+
+	/**
+	 * Determine whether virtual threads are available in the running JVM.
+	 * @return true if virtual threads are available
+	 */
+	public static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * Get a ThreadFactory that creates virtual threads. Can be used as OpaClientConfig.threadFactory.
+	 * @return ThreadFactory that creates virtual threads
+	 */
+	public static ThreadFactory factory() {
+		return FACTORY;
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A CompletionStage that is completed by a response callback. Completing the future is a single CAS; a
+ * CompletableFuture is only created when a dependent stage is added or a thread blocks in get(). This
+ * means a request whose future is never composed does not pay for CompletableFuture's stack of
+ * dependents. Error responses complete the future exceptionally with an OpaRpcException.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ *   OpaFuture.callF(client, "PING", null).thenAccept(r -> System.out.println(r));
+ * }
+ * </pre>
+ */
+public class OpaFuture implements CompletionStage<Object>, Future<Object>, CallbackSF<Object,OpaRpcError> {
+	private static final Object NULLRESULT = new Object();
+
+	private static final AtomicReferenceFieldUpdater<OpaFuture,Object> OUTCOME =
+			AtomicReferenceFieldUpdater.newUpdater(OpaFuture.class, Object.class, "mOutcome");
+	private static final AtomicReferenceFieldUpdater<OpaFuture,CompletableFuture<Object>> DEPS = newDepsUpdater();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static AtomicReferenceFieldUpdater<OpaFuture,CompletableFuture<Object>> newDepsUpdater() {
+		Class<CompletableFuture<Object>> c = (Class) CompletableFuture.class;
+		return AtomicReferenceFieldUpdater.newUpdater(OpaFuture.class, c, "mDeps");
+	}
+
+	// null if pending; NULLRESULT if result is null; OpaRpcException if failed; otherwise the result
+	private volatile Object mOutcome;
+	private volatile CompletableFuture<Object> mDeps;
+
+	/**
+	 * Run specified command and return a future that completes when the response is received.
+	 * See OpaClient.call()
+	 * @param c    client to use
+	 * @param cmd  Command to run
+	 * @param args Command's parameters. Do not modify
+	 * @return future that completes when response is received
+	 */
+	public static OpaFuture callF(OpaClient c, CharSequence cmd, Iterator<?> args) {
+		OpaFuture f = new OpaFuture();
+		c.call(cmd, args, f);
+		return f;
+	}
+
+	/**
+	 * Run specified command with an auto-generated async id and return a future that completes when the
+	 * response is received. See OpaClient.callA()
+	 * @param c    client to use
+	 * @param cmd  Command to run
+	 * @param args Command's parameters. Do not modify
+	 * @return future that completes when response is received
+	 */
+	public static OpaFuture callAF(OpaClient c, CharSequence cmd, Iterator<?> args) {
+		OpaFuture f = new OpaFuture();
+		c.callA(cmd, args, f);
+		return f;
+	}
+
+	private static void completeDeps(CompletableFuture<Object> cf, Object outcome) {
+		if (outcome instanceof OpaRpcException) {
+			cf.completeExceptionally((OpaRpcException) outcome);
+		} else {
+			cf.complete(outcome == NULLRESULT ? null : outcome);
+		}
+	}
+
+	private void complete(Object outcome) {
+		if (OUTCOME.compareAndSet(this, null, outcome)) {
+			CompletableFuture<Object> cf = mDeps;
+			if (cf != null) {
+				completeDeps(cf, outcome);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<Object> deps() {
+		CompletableFuture<Object> cf = mDeps;
+		if (cf == null) {
+			DEPS.compareAndSet(this, null, new CompletableFuture<Object>());
+			cf = mDeps;
+			// response may have been received before mDeps was set
+			Object outcome = mOutcome;
+			if (outcome != null) {
+				completeDeps(cf, outcome);
+			}
+		}
+		return cf;
+	}
+
+	@Override
+	public void onSuccess(Object result) {
+		complete(result == null ? NULLRESULT : result);
+	}
+
+	@Override
+	public void onFailure(OpaRpcError error) {
+		complete(new OpaRpcException(error));
+	}
+
+	private static Object report(Object outcome) throws ExecutionException {
+		if (outcome instanceof OpaRpcException) {
+			throw new ExecutionException((OpaRpcException) outcome);
+		}
+		return outcome == NULLRESULT ? null : outcome;
+	}
+
+	/**
+	 * Get the result if the response has been received.
+	 * @param valueIfAbsent value to return if response has not been received
+	 * @return result, or valueIfAbsent if response has not been received
+	 * @throws OpaRpcException if an error response was received
+	 */
+	public Object getNow(Object valueIfAbsent) {
+		Object outcome = mOutcome;
+		if (outcome == null) {
+			return valueIfAbsent;
+		} else if (outcome instanceof OpaRpcException) {
+			throw (OpaRpcException) outcome;
+		}
+		return outcome == NULLRESULT ? null : outcome;
+	}
+
+	/**
+	 * A request cannot be cancelled once it has been queued; this always returns false.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return mOutcome != null;
+	}
+
+	@Override
+	public Object get() throws InterruptedException, ExecutionException {
+		Object outcome = mOutcome;
+		return outcome != null ? report(outcome) : deps().get();
+	}
+
+	@Override
+	public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		Object outcome = mOutcome;
+		return outcome != null ? report(outcome) : deps().get(timeout, unit);
+	}
+
+	/**
+	 * Returns the CompletableFuture used for dependent stages. Completing it has no effect on this future.
+	 */
+	@Override
+	public CompletableFuture<Object> toCompletableFuture() {
+		return deps();
+	}
+
+	@Override
+	public <U> CompletionStage<U> thenApply(Function<? super Object,? extends U> fn) {
+		return deps().thenApply(fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> thenApplyAsync(Function<? super Object,? extends U> fn) {
+		return deps().thenApplyAsync(fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> thenApplyAsync(Function<? super Object,? extends U> fn, Executor executor) {
+		return deps().thenApplyAsync(fn, executor);
+	}
+
+	@Override
+	public CompletionStage<Void> thenAccept(Consumer<? super Object> action) {
+		return deps().thenAccept(action);
+	}
+
+	@Override
+	public CompletionStage<Void> thenAcceptAsync(Consumer<? super Object> action) {
+		return deps().thenAcceptAsync(action);
+	}
+
+	@Override
+	public CompletionStage<Void> thenAcceptAsync(Consumer<? super Object> action, Executor executor) {
+		return deps().thenAcceptAsync(action, executor);
+	}
+
+	@Override
+	public CompletionStage<Void> thenRun(Runnable action) {
+		return deps().thenRun(action);
+	}
+
+	@Override
+	public CompletionStage<Void> thenRunAsync(Runnable action) {
+		return deps().thenRunAsync(action);
+	}
+
+	@Override
+	public CompletionStage<Void> thenRunAsync(Runnable action, Executor executor) {
+		return deps().thenRunAsync(action, executor);
+	}
+
+	@Override
+	public <U,V> CompletionStage<V> thenCombine(CompletionStage<? extends U> other, BiFunction<? super Object,? super U,? extends V> fn) {
+		return deps().thenCombine(other, fn);
+	}
+
+	@Override
+	public <U,V> CompletionStage<V> thenCombineAsync(CompletionStage<? extends U> other, BiFunction<? super Object,? super U,? extends V> fn) {
+		return deps().thenCombineAsync(other, fn);
+	}
+
+	@Override
+	public <U,V> CompletionStage<V> thenCombineAsync(CompletionStage<? extends U> other, BiFunction<? super Object,? super U,? extends V> fn, Executor executor) {
+		return deps().thenCombineAsync(other, fn, executor);
+	}
+
+	@Override
+	public <U> CompletionStage<Void> thenAcceptBoth(CompletionStage<? extends U> other, BiConsumer<? super Object,? super U> action) {
+		return deps().thenAcceptBoth(other, action);
+	}
+
+	@Override
+	public <U> CompletionStage<Void> thenAcceptBothAsync(CompletionStage<? extends U> other, BiConsumer<? super Object,? super U> action) {
+		return deps().thenAcceptBothAsync(other, action);
+	}
+
+	@Override
+	public <U> CompletionStage<Void> thenAcceptBothAsync(CompletionStage<? extends U> other, BiConsumer<? super Object,? super U> action, Executor executor) {
+		return deps().thenAcceptBothAsync(other, action, executor);
+	}
+
+	@Override
+	public CompletionStage<Void> runAfterBoth(CompletionStage<?> other, Runnable action) {
+		return deps().runAfterBoth(other, action);
+	}
+
+	@Override
+	public CompletionStage<Void> runAfterBothAsync(CompletionStage<?> other, Runnable action) {
+		return deps().runAfterBothAsync(other, action);
+	}
+
+	@Override
+	public CompletionStage<Void> runAfterBothAsync(CompletionStage<?> other, Runnable action, Executor executor) {
+		return deps().runAfterBothAsync(other, action, executor);
+	}
+
+	@Override
+	public <U> CompletionStage<U> applyToEither(CompletionStage<? extends Object> other, Function<? super Object,U> fn) {
+		return deps().applyToEither(other, fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> applyToEitherAsync(CompletionStage<? extends Object> other, Function<? super Object,U> fn) {
+		return deps().applyToEitherAsync(other, fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> applyToEitherAsync(CompletionStage<? extends Object> other, Function<? super Object,U> fn, Executor executor) {
+		return deps().applyToEitherAsync(other, fn, executor);
+	}
+
+	@Override
+	public CompletionStage<Void> acceptEither(CompletionStage<? extends Object> other, Consumer<? super Object> action) {
+		return deps().acceptEither(other, action);
+	}
+
+	@Override
+	public CompletionStage<Void> acceptEitherAsync(CompletionStage<? extends Object> other, Consumer<? super Object> action) {
+		return deps().acceptEitherAsync(other, action);
+	}
+
+	@Override
+	public CompletionStage<Void> acceptEitherAsync(CompletionStage<? extends Object> other, Consumer<? super Object> action, Executor executor) {
+		return deps().acceptEitherAsync(other, action, executor);
+	}
+
+	@Override
+	public CompletionStage<Void> runAfterEither(CompletionStage<?> other, Runnable action) {
+		return deps().runAfterEither(other, action);
+	}
+
+	@Override
+	public CompletionStage<Void> runAfterEitherAsync(CompletionStage<?> other, Runnable action) {
+		return deps().runAfterEitherAsync(other, action);
+	}
+
+	@Override
+	public CompletionStage<Void> runAfterEitherAsync(CompletionStage<?> other, Runnable action, Executor executor) {
+		return deps().runAfterEitherAsync(other, action, executor);
+	}
+
+	@Override
+	public <U> CompletionStage<U> thenCompose(Function<? super Object,? extends CompletionStage<U>> fn) {
+		return deps().thenCompose(fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> thenComposeAsync(Function<? super Object,? extends CompletionStage<U>> fn) {
+		return deps().thenComposeAsync(fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> thenComposeAsync(Function<? super Object,? extends CompletionStage<U>> fn, Executor executor) {
+		return deps().thenComposeAsync(fn, executor);
+	}
+
+	@Override
+	public CompletionStage<Object> exceptionally(Function<Throwable,? extends Object> fn) {
+		return deps().exceptionally(fn);
+	}
+
+	@Override
+	public CompletionStage<Object> whenComplete(BiConsumer<? super Object,? super Throwable> action) {
+		return deps().whenComplete(action);
+	}
+
+	@Override
+	public CompletionStage<Object> whenCompleteAsync(BiConsumer<? super Object,? super Throwable> action) {
+		return deps().whenCompleteAsync(action);
+	}
+
+	@Override
+	public CompletionStage<Object> whenCompleteAsync(BiConsumer<? super Object,? super Throwable> action, Executor executor) {
+		return deps().whenCompleteAsync(action, executor);
+	}
+
+	@Override
+	public <U> CompletionStage<U> handle(BiFunction<? super Object,Throwable,? extends U> fn) {
+		return deps().handle(fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> handleAsync(BiFunction<? super Object,Throwable,? extends U> fn) {
+		return deps().handleAsync(fn);
+	}
+
+	@Override
+	public <U> CompletionStage<U> handleAsync(BiFunction<? super Object,Throwable,? extends U> fn, Executor executor) {
+		return deps().handleAsync(fn, executor);
+	}
+}
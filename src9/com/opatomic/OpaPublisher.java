@@ -0,0 +1,290 @@
+/*
+ * Copyright 2018-2019 Opatomic
+ * Open sourced with ISC license. Refer to LICENSE for details.
+ */
+
+package com.opatomic;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Flow.Publisher for an async id that can receive many responses (ie, an id registered with
+ * OpaClient.registerCB() such as "_pubsub"). Responses are buffered until the subscriber requests them.
+ * When the buffer is full, the overflow policy decides whether the oldest response is dropped, the newest
+ * response is dropped, or the subscriber is failed with a BufferOverflowException.
+ * <br><br>
+ * Only 1 subscriber is supported. Signals are sent to the subscriber from whichever thread adds a response
+ * or requests more responses; this is often the client's parser thread, so the subscriber must not block.
+ * Null responses are delivered as NULLITEM because Flow does not allow null items. An error response or a
+ * closed connection terminates the subscription with OpaRpcException after buffered responses have been
+ * delivered. Cancelling the subscription removes the callback from the client.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ *   OpaPublisher p = OpaPublisher.register(client, "_pubsub", 1024, OpaPublisher.Overflow.DROP_OLDEST);
+ *   p.subscribe(subscriber);
+ *   client.call("SUBSCRIBE", asIt("channelName"), null);
+ * }
+ * </pre>
+ */
+public class OpaPublisher implements Flow.Publisher<Object>, CallbackSF<Object,OpaRpcError> {
+	/**
+	 * What to do when a response is received and the buffer is full.
+	 */
+	public enum Overflow {
+		/** Remove the oldest buffered response to make room for the new response */
+		DROP_OLDEST,
+		/** Discard the new response */
+		DROP_NEWEST,
+		/** Fail the subscriber with a BufferOverflowException */
+		ERROR
+	}
+
+	/**
+	 * Error sent to the subscriber when the buffer overflows and the overflow policy is ERROR.
+	 */
+	public static class BufferOverflowException extends RuntimeException {
+		public BufferOverflowException(String msg) {
+			super(msg);
+		}
+	}
+
+	/**
+	 * Item that is delivered in place of a null response.
+	 */
+	public static final Object NULLITEM = new Object() {
+		@Override
+		public String toString() {
+			return "null";
+		}
+	};
+
+	private final OpaClient mClient;
+	private final Object mId;
+	private final int mBuffLen;
+	private final Overflow mOverflow;
+	private final AtomicInteger mWip = new AtomicInteger();
+
+	// following fields are guarded by this
+	private final ArrayDeque<Object> mBuff = new ArrayDeque<Object>();
+	private Flow.Subscriber<? super Object> mSubscriber;
+	private long mDemand;
+	private long mNumDropped;
+	private boolean mDone;
+	private boolean mTerminated;
+	private Throwable mError;
+
+	/**
+	 * Create a new publisher. The publisher must be registered with the client to receive responses; see
+	 * register().
+	 * @param c        client the publisher is registered with. Used to unregister when cancelled; can be null
+	 * @param id       async id the publisher is registered with
+	 * @param buffLen  max number of responses to buffer while the subscriber has no outstanding demand
+	 * @param overflow what to do when a response is received and the buffer is full
+	 */
+	public OpaPublisher(OpaClient c, Object id, int buffLen, Overflow overflow) {
+		if (buffLen <= 0) {
+			throw new IllegalArgumentException("buffLen must be greater than 0");
+		} else if (overflow == null) {
+			throw new IllegalArgumentException("overflow cannot be null");
+		}
+		mClient = c;
+		mId = id;
+		mBuffLen = buffLen;
+		mOverflow = overflow;
+	}
+
+	/**
+	 * Create a new publisher and register it with a client to receive the responses for an async id.
+	 * @param c        client to register with
+	 * @param id       async id. See OpaClient.registerCB()
+	 * @param buffLen  max number of responses to buffer while the subscriber has no outstanding demand
+	 * @param overflow what to do when a response is received and the buffer is full
+	 * @return the new publisher
+	 */
+	public static OpaPublisher register(OpaClient c, Object id, int buffLen, Overflow overflow) {
+		OpaPublisher p = new OpaPublisher(c, id, buffLen, overflow);
+		c.registerCB(id, p);
+		return p;
+	}
+
+	/**
+	 * Get the number of responses that have been dropped because the buffer was full.
+	 * @return number of dropped responses
+	 */
+	public synchronized long getNumDropped() {
+		return mNumDropped;
+	}
+
+	private void unregister() {
+		if (mClient != null) {
+			CallbackSF<Object,OpaRpcError> prev = mClient.registerCB(mId, null);
+			if (prev != null && prev != this) {
+				// a different callback was registered after this publisher; put it back
+				mClient.registerCB(mId, prev);
+			}
+		}
+	}
+
+	@Override
+	public void onSuccess(Object result) {
+		boolean overflowErr = false;
+		synchronized (this) {
+			if (mDone) {
+				return;
+			}
+			if (mBuff.size() >= mBuffLen) {
+				++mNumDropped;
+				switch (mOverflow) {
+					case DROP_OLDEST:
+						mBuff.poll();
+						break;
+					case DROP_NEWEST:
+						return;
+					default:
+						mBuff.clear();
+						mDone = true;
+						mError = new BufferOverflowException("subscriber did not keep up; buffer of " + mBuffLen + " responses is full");
+						overflowErr = true;
+				}
+			}
+			if (!overflowErr) {
+				mBuff.add(result == null ? NULLITEM : result);
+			}
+		}
+		if (overflowErr) {
+			unregister();
+		}
+		drain();
+	}
+
+	@Override
+	public void onFailure(OpaRpcError error) {
+		synchronized (this) {
+			if (mDone) {
+				return;
+			}
+			mDone = true;
+			mError = new OpaRpcException(error);
+		}
+		unregister();
+		drain();
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Object> s) {
+		if (s == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			if (mSubscriber == null) {
+				mSubscriber = s;
+				s = null;
+			}
+		}
+		if (s != null) {
+			s.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {}
+				@Override
+				public void cancel() {}
+			});
+			s.onError(new IllegalStateException("OpaPublisher only supports 1 subscriber"));
+			return;
+		}
+		mSubscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				OpaPublisher.this.request(n);
+			}
+			@Override
+			public void cancel() {
+				OpaPublisher.this.cancel();
+			}
+		});
+		drain();
+	}
+
+	private void request(long n) {
+		boolean invalid = false;
+		synchronized (this) {
+			if (mTerminated) {
+				return;
+			}
+			if (n <= 0) {
+				mBuff.clear();
+				mDone = true;
+				mError = new IllegalArgumentException("request amount must be positive");
+				invalid = true;
+			} else {
+				mDemand += n;
+				if (mDemand < 0) {
+					// overflow; treat as unbounded
+					mDemand = Long.MAX_VALUE;
+				}
+			}
+		}
+		if (invalid) {
+			unregister();
+		}
+		drain();
+	}
+
+	private void cancel() {
+		synchronized (this) {
+			if (mTerminated) {
+				return;
+			}
+			mTerminated = true;
+			mDone = true;
+			mBuff.clear();
+		}
+		unregister();
+	}
+
+	private void drain() {
+		if (mWip.getAndIncrement() != 0) {
+			// another thread is draining; it will loop again
+			return;
+		}
+		int missed = 1;
+		while (true) {
+			while (true) {
+				Flow.Subscriber<? super Object> s;
+				Object item = null;
+				Throwable err = null;
+				synchronized (this) {
+					s = mSubscriber;
+					if (s == null || mTerminated) {
+						break;
+					}
+					if (!mBuff.isEmpty() && mDemand > 0) {
+						item = mBuff.poll();
+						if (mDemand != Long.MAX_VALUE) {
+							--mDemand;
+						}
+					} else if (mBuff.isEmpty() && mDone) {
+						mTerminated = true;
+						err = mError;
+					} else {
+						break;
+					}
+				}
+				if (item != null) {
+					s.onNext(item);
+				} else if (err != null) {
+					s.onError(err);
+				} else {
+					s.onComplete();
+				}
+			}
+			missed = mWip.addAndGet(-missed);
+			if (missed == 0) {
+				break;
+			}
+		}
+	}
+}
@@ -2,17 +2,29 @@ package com.opatomic;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
@@ -400,6 +412,72 @@ public class Test {
 		bench(c, its, command, null);
 	}
 
+	/**
+	 * Compare call() with and without OpaClientConfig.autoIdCalls on a mix of slow (SLEEP) and fast (PING)
+	 * commands: request size of the ids and latency of the fast commands.
+	 */
+	private static void benchAutoIdCalls(String host, int port, int ops) throws IOException, InterruptedException {
+		long[] ids = {0, 127, 16383, 2097151, 268435455};
+		for (int i = 0; i < ids.length; ++i) {
+			ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			OpaSerializer ser = new OpaSerializer(bo, 128);
+			if (ids[i] == 0) {
+				OpaClientUtils.writeRequest(ser, "PING", null, (Object) null);
+			} else {
+				OpaClientUtils.writeRequest(ser, "PING", null, ids[i]);
+			}
+			ser.flush();
+			System.out.println("PING request with id " + ids[i] + ": " + bo.size() + " bytes");
+		}
+
+		for (int mode = 0; mode < 2; ++mode) {
+			OpaClientConfig cfg = new OpaClientConfig();
+			cfg.autoIdCalls = mode == 1;
+			cfg.maxAutoId = 127;
+			// the table of ids is kept at most half full; 63 pending ids fit in 128 slots so ids stay under 128
+			cfg.maxPendingResponses = 63;
+			Socket s = new Socket(host, port);
+			s.setTcpNoDelay(true);
+			OpaStreamClient c = new OpaStreamClient(s.getInputStream(), s.getOutputStream(), cfg);
+			final long[] lat = new long[ops];
+			final AtomicInteger done = new AtomicInteger();
+			long time = System.nanoTime();
+			for (int i = 0; i < ops; ++i) {
+				final int idx = i;
+				final long start = System.nanoTime();
+				// 1 in 100 commands is slow
+				c.call(i % 100 == 0 ? "SLEEP" : "PING", i % 100 == 0 ? asIt(20) : null, new CallbackSF<Object,OpaRpcError>() {
+					@Override
+					public void onSuccess(Object result) {
+						lat[idx] = System.nanoTime() - start;
+						done.incrementAndGet();
+					}
+					@Override
+					public void onFailure(OpaRpcError error) {
+						onSuccess(null);
+					}
+				});
+			}
+			callSync(c, "PING", null);
+			while (done.get() < ops) {
+				Thread.sleep(1);
+			}
+			time = System.nanoTime() - time;
+			long sum = 0;
+			long max = 0;
+			int n = 0;
+			for (int i = 0; i < ops; ++i) {
+				if (i % 100 != 0) {
+					sum += lat[i];
+					max = Math.max(max, lat[i]);
+					++n;
+				}
+			}
+			System.out.println("autoIdCalls=" + cfg.autoIdCalls + ": PING avg " + (sum / n / 1000) + "us, max " + (max / 1000) + "us; total " + (time / 1000000) + "ms");
+			s.close();
+		}
+	}
+
 	private static void check(OpaClient c, final Object expect, final String command, final Object... args) {
 		c.call(command, asIt(args), new CallbackSF<Object,OpaRpcError>() {
 			@Override
@@ -415,6 +493,51 @@ public class Test {
 		});
 	}
 
+	private static void testBatch(OpaClient c) throws InterruptedException {
+		final WaitCallbackSF<Object,OpaRpcError> wcb = new WaitCallbackSF<Object,OpaRpcError>();
+		OpaBatch b = new OpaBatch();
+		b.add("ECHO", asIt("batch1"));
+		b.add("INVALIDCMD", null);
+		b.add("ECHO", asIt(2));
+		b.send(c, new OpaBatch.Callback() {
+			@Override
+			public void onResponses(Object[] results, OpaRpcError[] errors) {
+				if (errors[0] != null || errors[1] == null || errors[2] != null || OpaUtils.compare(results[2], 2) != 0) {
+					wcb.onFailure(new OpaRpcError(OpaDef.ERR_INVRESPONSE, "unexpected batch response"));
+				} else {
+					wcb.onSuccess(results[0]);
+				}
+			}
+		});
+		wcb.waitIfNotDone();
+		if (wcb.getError() != null || OpaUtils.compare(wcb.getResult(), "batch1") != 0) {
+			throw new RuntimeException("batch failed");
+		}
+	}
+
+	private static void testDeadline(OpaClient c) throws InterruptedException {
+		WaitCallbackSF<Object,OpaRpcError> wcb = new WaitCallbackSF<Object,OpaRpcError>();
+		OpaDeadline.callA(c, "SLEEP", asIt(1000), 50, TimeUnit.MILLISECONDS, wcb);
+		wcb.waitIfNotDone();
+		if (wcb.getError() == null || wcb.getError().code != OpaDef.ERR_TIMEOUT) {
+			throw new RuntimeException("callA() did not time out");
+		}
+
+		OpaDeadline d = OpaDeadline.callA(c, "SLEEP", asIt(500), 10, TimeUnit.SECONDS, wcb.reset());
+		d.cancel();
+		wcb.waitIfNotDone();
+		if (wcb.getError() == null || wcb.getError().code != OpaDef.ERR_CANCELLED || d.cancel()) {
+			throw new RuntimeException("callA() was not cancelled");
+		}
+
+		// response is received before deadline
+		OpaDeadline.call(c, "ECHO", asIt("deadline"), 10, TimeUnit.SECONDS, wcb.reset());
+		wcb.waitIfNotDone();
+		if (wcb.getError() != null || OpaUtils.compare(wcb.getResult(), "deadline") != 0) {
+			throw new RuntimeException("call() with deadline failed");
+		}
+	}
+
 	private static void createBigBlob(OpaClient c, int chunkLen, int numChunks) {
 		Object blen = callSync(c, "BLEN", asIt("bigblob"));
 
@@ -532,6 +655,1077 @@ public class Test {
 		}
 	}
 
+	private static void testAsyncIdTable() {
+		AsyncIdTable t = new AsyncIdTable(4, null);
+		long[] ids = new long[1000];
+		for (int i = 0; i < ids.length; ++i) {
+			ids[i] = t.put(ECHOCB);
+			if (i > 0 && ids[i] <= ids[i - 1]) {
+				throw new RuntimeException("ids are not increasing");
+			}
+		}
+		// remove every other id, then make sure stale ids are not matched after their slots are reused
+		for (int i = 0; i < ids.length; i += 2) {
+			if (t.remove(ids[i]) != ECHOCB || t.remove(ids[i]) != null) {
+				throw new RuntimeException("wrong callback removed from AsyncIdTable");
+			}
+		}
+		for (int i = 0; i < ids.length; ++i) {
+			t.put(ECHOERRCB);
+		}
+		for (int i = 0; i < ids.length; ++i) {
+			CallbackSF<Object,OpaRpcError> cb = t.remove(ids[i]);
+			if (cb != ((i & 1) == 0 ? null : ECHOCB)) {
+				throw new RuntimeException("stale id matched in AsyncIdTable");
+			}
+		}
+		if (t.removeAll().length != ids.length) {
+			throw new RuntimeException("wrong number of callbacks in AsyncIdTable");
+		}
+
+		// ids wrap around after the max id; a pending id is not reused
+		t = new AsyncIdTable(4, null, 10);
+		long pending = t.put(ECHOCB);
+		for (int i = 0; i < 25; ++i) {
+			long id = t.put(ECHOERRCB);
+			if (id < 1 || id > 10 || id == pending || t.remove(id) != ECHOERRCB) {
+				throw new RuntimeException("wrong id from AsyncIdTable with max id: " + id);
+			}
+		}
+
+		// a cancelled id is not reused until its response arrives
+		long cancelled = t.put(ECHOCB);
+		if (t.cancel(cancelled) != ECHOCB || t.cancel(cancelled) != null) {
+			throw new RuntimeException("wrong callback cancelled in AsyncIdTable");
+		}
+		for (int i = 0; i < 25; ++i) {
+			long id = t.put(ECHOERRCB);
+			if (id == cancelled || t.remove(id) != ECHOERRCB) {
+				throw new RuntimeException("cancelled id reused by AsyncIdTable: " + id);
+			}
+		}
+		if (t.remove(cancelled) != null || t.removeAll().length != 1) {
+			throw new RuntimeException("late response matched a cancelled id in AsyncIdTable");
+		}
+		boolean reused = false;
+		for (int i = 0; i < 25; ++i) {
+			long id = t.put(ECHOERRCB);
+			reused |= id == cancelled;
+			t.remove(id);
+		}
+		if (!reused) {
+			throw new RuntimeException("id not reused after response to cancelled id");
+		}
+	}
+
+	private static void testCallbackRing() throws InterruptedException {
+		final CallbackRing r = new CallbackRing(2);
+		final int its = 1000000;
+		final CallbackSF<Object,OpaRpcError>[] cbs = new EchoCB[16];
+		for (int i = 0; i < cbs.length; ++i) {
+			cbs[i] = new EchoCB();
+		}
+		final AtomicInteger errs = new AtomicInteger();
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < its; ++i) {
+					CallbackSF<Object,OpaRpcError> cb;
+					while ((cb = r.poll()) == null) {
+						Thread.yield();
+					}
+					if (cb != cbs[i & (cbs.length - 1)]) {
+						errs.incrementAndGet();
+					}
+				}
+			}
+		};
+		consumer.start();
+		for (int i = 0; i < its; ++i) {
+			r.add(cbs[i & (cbs.length - 1)]);
+		}
+		consumer.join();
+		if (errs.get() != 0 || r.size() != 0) {
+			throw new RuntimeException("CallbackRing returned wrong callback");
+		}
+		try {
+			r.remove();
+			throw new RuntimeException("CallbackRing did not detect response without callback");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private static Request laneRequest(int lane, int i) {
+		Request r = new Request("ECHO", null, null, null);
+		r.lane = lane;
+		r.size = i;
+		return r;
+	}
+
+	private static void testRequestLanes() {
+		RequestLanes q = new RequestLanes(new int[] {3, 1}, 2);
+		for (int i = 0; i < 100; ++i) {
+			q.add(laneRequest(1, i));
+		}
+		for (int i = 0; i < 10; ++i) {
+			q.add(laneRequest(0, i));
+		}
+		// lane 0 gets 3 turns for each of lane 1's; order within each lane is preserved
+		int[] expectLanes = {0,0,0,1,0,0,0,1,0,0,0,1,0,1,1,1};
+		long[] next = new long[2];
+		for (int i = 0; i < expectLanes.length; ++i) {
+			Request r = q.poll();
+			if (r.lane != expectLanes[i] || r.size != next[r.lane]++) {
+				throw new RuntimeException("RequestLanes returned wrong request");
+			}
+		}
+		while (q.size() > 0) {
+			Request r = q.poll();
+			if (r.lane != 1 || r.size != next[1]++) {
+				throw new RuntimeException("RequestLanes returned wrong request");
+			}
+		}
+		if (next[1] != 100 || q.poll() != null) {
+			throw new RuntimeException("RequestLanes lost a request");
+		}
+	}
+
+	private static void testShardHash() {
+		// keys must map to the same node in every process (values computed with the reference jump hash)
+		if (OpaShardedClient.jumpHash(0, 10) != 0 || OpaShardedClient.jumpHash(1, 10) != 6 || OpaShardedClient.jumpHash(0xDEADBEEFL, 1000) != 285 || OpaShardedClient.jumpHash(123456789, 100) != 34) {
+			throw new RuntimeException("jump hash is wrong");
+		}
+		if (OpaShardedClient.hash("k\u00e9y") != OpaShardedClient.hash("k\u00e9y".getBytes(Charset.forName("UTF-8")))) {
+			throw new RuntimeException("string must hash the same as its UTF-8 bytes");
+		}
+		// adding a node only moves keys to the new node
+		int numKeys = 100000;
+		int[] counts = new int[5];
+		int moved = 0;
+		for (int i = 0; i < numKeys; ++i) {
+			String k = "key" + i;
+			int s4 = OpaShardedClient.shardOf(k, 4);
+			int s5 = OpaShardedClient.shardOf(k, 5);
+			++counts[s5];
+			if (s4 != s5) {
+				if (s5 != 4) {
+					throw new RuntimeException("key moved to an old node");
+				}
+				++moved;
+			}
+		}
+		for (int i = 0; i < counts.length; ++i) {
+			if (Math.abs(counts[i] - numKeys / 5) > numKeys / 50) {
+				throw new RuntimeException("keys are not spread evenly: " + Arrays.toString(counts));
+			}
+		}
+		if (moved != counts[4]) {
+			throw new RuntimeException("wrong number of keys moved");
+		}
+	}
+
+	private static void testMergeSorted() {
+		List<?>[] lists = new List<?>[] {
+			Arrays.asList("a", "d", "e"),
+			Arrays.asList(new Object[0]),
+			Arrays.asList("b", "c", "f", "g"),
+			Arrays.asList(1, "h")
+		};
+		List<Object> all = OpaShardedClient.mergeSorted(lists, Integer.MAX_VALUE);
+		if (!all.equals(Arrays.asList(1, "a", "b", "c", "d", "e", "f", "g", "h"))) {
+			throw new RuntimeException("k-way merge is wrong: " + all);
+		}
+		if (!OpaShardedClient.mergeSorted(lists, 3).equals(Arrays.asList(1, "a", "b"))) {
+			throw new RuntimeException("k-way merge did not apply limit");
+		}
+	}
+
+	private static void testLatencyHistogram() {
+		for (long v = 0; v < 100000000L; v += 1 + v / 7) {
+			int b = LatencyHistogram.bucket(v);
+			if (v > LatencyHistogram.bucketMax(b) || (b > 0 && v <= LatencyHistogram.bucketMax(b - 1))) {
+				throw new RuntimeException("value " + v + " is not in bucket " + b);
+			}
+		}
+		LatencyHistogram h = new LatencyHistogram(95);
+		for (int i = 0; i < 1000; ++i) {
+			h.record(i % 100 < 95 ? 1000 : 1000000);
+		}
+		long p95 = h.get();
+		if (p95 < 1000 || p95 > 1250) {
+			throw new RuntimeException("wrong percentile estimate: " + p95);
+		}
+	}
+
+	private static void testFrequencySketch() {
+		FrequencySketch s = new FrequencySketch(64);
+		for (int i = 0; i < 10; ++i) {
+			s.increment("hot".hashCode());
+		}
+		s.increment("cold".hashCode());
+		if (s.frequency("hot".hashCode()) != 10 || s.frequency("cold".hashCode()) < 1 || s.frequency("cold".hashCode()) > 2) {
+			throw new RuntimeException("wrong frequency estimates");
+		}
+		// counters are halved after 10 * width increments
+		for (int i = 0; i < 640; ++i) {
+			s.increment(i);
+		}
+		if (s.frequency("hot".hashCode()) > 7) {
+			throw new RuntimeException("frequencies were not aged");
+		}
+	}
+
+	/**
+	 * Client that records the commands and args that are sent (flattened into 1 list) and the callback of each
+	 * command. It never responds; tests can invoke the recorded callbacks. Throws IllegalStateException when
+	 * closed is set.
+	 */
+	private static class RecordingClient implements OpaClient {
+		final List<Object> sent = new ArrayList<Object>();
+		final List<CallbackSF<Object,OpaRpcError>> callbacks = new ArrayList<CallbackSF<Object,OpaRpcError>>();
+		volatile boolean closed;
+
+		@Override
+		public synchronized void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			callbacks.add(cb);
+			sent.add(cmd.toString());
+			while (args != null && args.hasNext()) {
+				sent.add(args.next());
+			}
+		}
+		@Override
+		public void callA(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+			call(cmd, args, cb);
+		}
+		@Override
+		public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+			return null;
+		}
+		@Override
+		public void callID(Object id, CharSequence cmd, Iterator<?> args) {
+			call(cmd, args, null);
+		}
+	}
+
+	/**
+	 * Make sure that single-field reads of a key are sent as 1 DMGET whose response is split among the reads,
+	 * that held reads are sent before a write, and that held reads are failed if they cannot be sent.
+	 */
+	private static void testAutoBatcher() {
+		RecordingClient c = new RecordingClient();
+		OpaAutoBatcher b = new OpaAutoBatcher(c, 1, TimeUnit.HOURS, 100);
+		final List<Object> got = new ArrayList<Object>();
+		CallbackSF<Object,OpaRpcError> cb = new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got.add(result);
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				got.add(Integer.valueOf(error.code));
+			}
+		};
+		b.callA("DGET", Arrays.asList("k", "f1").iterator(), cb);
+		b.call("DGET", Arrays.asList("j", "f1").iterator(), cb);
+		b.call("DGET", Arrays.asList("k", "f2").iterator(), cb);
+		if (!c.sent.isEmpty()) {
+			throw new RuntimeException("reads were not held");
+		}
+		b.call("DSET", Arrays.asList("k", "f1", "v").iterator(), null);
+		List<Object> expect = Arrays.<Object>asList("DMGET", "k", "f1", "f2", "DGET", "j", "f1", "DSET", "k", "f1", "v");
+		if (!expect.equals(c.sent)) {
+			throw new RuntimeException("wrong commands sent: " + c.sent);
+		}
+		c.callbacks.get(0).onSuccess(Arrays.asList("v1", "v2"));
+		c.callbacks.get(1).onSuccess("j1");
+		if (!got.equals(Arrays.asList("v1", "v2", "j1"))) {
+			throw new RuntimeException("wrong results: " + got);
+		}
+
+		// reads that cannot be sent are failed
+		got.clear();
+		b.call("DGET", Arrays.asList("k", "f3").iterator(), cb);
+		b.call("DGET", Arrays.asList("j", "f3").iterator(), cb);
+		c.closed = true;
+		b.close();
+		if (!got.equals(Arrays.asList(OpaDef.ERR_CLOSED, OpaDef.ERR_CLOSED)) || b.getNumReads() != 5 || b.getNumCommands() != 2) {
+			throw new RuntimeException("unsent reads were not failed: " + got);
+		}
+	}
+
+	/**
+	 * Make sure that increments of a key are summed (switching to BigDecimal on overflow) and that the sums
+	 * are sent before other commands and on close.
+	 */
+	private static void testCounterAggregator() {
+		RecordingClient c = new RecordingClient();
+		OpaCounterAggregator a = new OpaCounterAggregator(c, 1, TimeUnit.HOURS, 100);
+		a.call("INCR", Arrays.asList("a").iterator(), null);
+		a.call("INCR", Arrays.asList(new StringBuilder("a"), 2).iterator(), null);
+		a.call("INCR", Arrays.asList("b", Long.MAX_VALUE).iterator(), null);
+		a.call("INCR", Arrays.asList("b", 1).iterator(), null);
+		a.call("GET", Arrays.asList("a").iterator(), null);
+		a.call("INCR", Arrays.asList("a", -1).iterator(), null);
+		a.close();
+		BigDecimal bsum = BigDecimal.valueOf(Long.MAX_VALUE).add(BigDecimal.ONE);
+		List<Object> expect = Arrays.<Object>asList("INCR", "a", 3L, "INCR", "b", bsum, "GET", "a", "INCR", "a", -1L);
+		if (!expect.equals(c.sent) || a.getNumIncrements() != 5 || a.getNumSent() != 3) {
+			throw new RuntimeException("wrong commands sent: " + c.sent);
+		}
+
+		// increments that cannot be sent are held again and merged with later increments
+		c = new RecordingClient();
+		a = new OpaCounterAggregator(c, 1, TimeUnit.HOURS, 2);
+		c.closed = true;
+		a.call("INCR", Arrays.asList("a", 2).iterator(), null);
+		// the held increments are full; the failed flush is not thrown to the caller
+		a.call("INCR", Arrays.asList("b", 3).iterator(), null);
+		try {
+			a.call("GET", Arrays.asList("a").iterator(), null);
+			throw new RuntimeException("GET was sent while the client was closed");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		a.call("INCR", Arrays.asList("a", 4).iterator(), null);
+		if (a.getNumSent() != 0) {
+			throw new RuntimeException("unsent increments were counted as sent");
+		}
+		c.closed = false;
+		a.close();
+		expect = Arrays.<Object>asList("INCR", "a", 6L, "INCR", "b", 3L);
+		if (!expect.equals(c.sent) || a.getNumIncrements() != 3 || a.getNumSent() != 2) {
+			throw new RuntimeException("unsent increments were lost: " + c.sent);
+		}
+	}
+
+	/**
+	 * Make sure that pub/sub messages are routed by channel and pattern, that a channel is only subscribed
+	 * to while it has subscribers, and that a full queue is handled by the overflow policy.
+	 */
+	private static void testPubSub() {
+		RecordingClient c = new RecordingClient();
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		OpaPubSub ps = new OpaPubSub(c, "_pubsub", new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				tasks.add(r);
+			}
+		});
+		final List<Object> got1 = new ArrayList<Object>();
+		final List<Object> got2 = new ArrayList<Object>();
+		final List<Object> errs = new ArrayList<Object>();
+		OpaPubSub.Subscription s1 = ps.subscribe(Arrays.asList("a", "b"), new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got1.add(((List<?>) result).get(1));
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				errs.add(error);
+			}
+		}, 2, OpaPubSub.Overflow.DROP_OLDEST);
+		ps.subscribe(Arrays.asList(new StringBuilder("b"), "d"), new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got2.add(((List<?>) result).get(1));
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				errs.add(error);
+			}
+		}, 1, OpaPubSub.Overflow.CANCEL);
+		ps.psubscribe(Arrays.asList("c*"), new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got2.add(((List<?>) result).get(1));
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {}
+		}, 4, OpaPubSub.Overflow.DROP_NEWEST);
+
+		ps.onSuccess(Arrays.asList("a", 1));
+		ps.onSuccess(Arrays.asList("b", 2));
+		ps.onSuccess(Arrays.asList("a", 3));
+		ps.onSuccess(Arrays.asList("b", 4));
+		ps.onSuccess(Arrays.asList("c1", 5, "c*"));
+		ps.onSuccess(Arrays.asList("x", 6));
+		// the slow subscriber is unsubscribed by the executor rather than the thread that received the message
+		if (c.sent.contains("UNSUBSCRIBE")) {
+			throw new RuntimeException("UNSUBSCRIBE sent from receiving thread");
+		}
+		for (int i = 0; i < tasks.size(); ++i) {
+			tasks.get(i).run();
+		}
+		s1.cancel();
+		// oldest messages of s1 were dropped; 2nd subscriber was cancelled (and its queue discarded) when its queue of 1 was full
+		if (!got1.equals(Arrays.asList(3, 4)) || s1.getNumDropped() != 2 || !got2.equals(Arrays.asList(5)) || errs.size() != 1) {
+			throw new RuntimeException("wrong messages delivered: " + got1 + " " + got2 + " " + errs);
+		}
+		List<Object> expect = Arrays.<Object>asList("SUBSCRIBE", "a", "b", "SUBSCRIBE", "d", "PSUBSCRIBE", "c*", "UNSUBSCRIBE", "d", "UNSUBSCRIBE", "a", "b");
+		if (!expect.equals(c.sent) || ps.getNumChannels() != 0 || ps.getNumPatterns() != 1) {
+			throw new RuntimeException("wrong commands sent: " + c.sent);
+		}
+
+		// a subscription that cannot be sent is not registered, so a later subscriber sends it again
+		CallbackSF<Object,OpaRpcError> ignore = new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {}
+			@Override
+			public void onFailure(OpaRpcError error) {}
+		};
+		c.closed = true;
+		try {
+			ps.subscribe(Arrays.asList("e"), ignore, 1, OpaPubSub.Overflow.CANCEL);
+			throw new RuntimeException("exception from client was not thrown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		c.closed = false;
+		ps.subscribe(Arrays.asList("e"), ignore, 1, OpaPubSub.Overflow.CANCEL);
+		if (ps.getNumChannels() != 1 || !c.sent.subList(expect.size(), c.sent.size()).equals(Arrays.asList("SUBSCRIBE", "e"))) {
+			throw new RuntimeException("failed subscription was registered: " + c.sent);
+		}
+	}
+
+	/**
+	 * Make sure that requests that were not written are resent on the next connection ahead of requests made
+	 * while disconnected, that subscriptions are restored, and that held requests fail on close.
+	 */
+	private static void testReconnectingClient() throws IOException, InterruptedException {
+		final List<RecordingClient> conns = new ArrayList<RecordingClient>();
+		final Semaphore connects = new Semaphore(1);
+		OpaClientPool.Connector connector = new OpaClientPool.Connector() {
+			@Override
+			public OpaClient connect() throws IOException {
+				connects.acquireUninterruptibly();
+				RecordingClient c = new RecordingClient();
+				synchronized (conns) {
+					conns.add(c);
+				}
+				return c;
+			}
+			@Override
+			public void close(OpaClient c) {
+				((RecordingClient) c).closed = true;
+			}
+		};
+		final List<Object> got = new ArrayList<Object>();
+		CallbackSF<Object,OpaRpcError> cb = new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got.add(result);
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				got.add(Integer.valueOf(error.code));
+			}
+		};
+		OpaReconnectingClient rc = new OpaReconnectingClient(connector, false);
+		RecordingClient c1 = conns.get(0);
+		rc.call("SUBSCRIBE", Arrays.asList("ch").iterator(), cb);
+		rc.call("GET", Arrays.asList("k0").iterator(), cb);
+		rc.call("GET", Arrays.asList("k1").iterator(), cb);
+		// k0 was written and k1 was still queued when the connection closed
+		c1.callbacks.get(1).onFailure(OpaClientUtils.CLOSED_ERROR);
+		rc.call("GET", Arrays.asList("k2").iterator(), cb);
+		c1.callbacks.get(2).onFailure(OpaClientUtils.NOTSENT_ERROR);
+		if (!c1.closed || rc.isConnected()) {
+			throw new RuntimeException("closed connection was not replaced");
+		}
+
+		connects.release();
+		for (int i = 0; i < 5000 && !rc.isConnected(); ++i) {
+			Thread.sleep(1);
+		}
+		RecordingClient c2;
+		synchronized (conns) {
+			c2 = conns.get(1);
+		}
+		List<Object> expect = Arrays.<Object>asList("SUBSCRIBE", "ch", "GET", "k1", "GET", "k2");
+		if (!rc.isConnected() || !expect.equals(c2.sent)) {
+			throw new RuntimeException("wrong commands resent: " + c2.sent);
+		}
+		c2.callbacks.get(1).onSuccess("v1");
+		c2.callbacks.get(2).onSuccess("v2");
+
+		// k3 is held until reconnected; close fails it
+		c2.closed = true;
+		rc.call("GET", Arrays.asList("k3").iterator(), cb);
+		for (int i = 0; i < 5000 && !connects.hasQueuedThreads(); ++i) {
+			Thread.sleep(1);
+		}
+		rc.close();
+		connects.release();
+		RecordingClient c3 = null;
+		for (int i = 0; i < 5000 && (c3 == null || !c3.closed); ++i) {
+			Thread.sleep(1);
+			synchronized (conns) {
+				c3 = conns.size() > 2 ? conns.get(2) : null;
+			}
+		}
+		if (c3 == null || !c3.closed || c3.sent.size() > 0) {
+			throw new RuntimeException("connection made after close was not closed");
+		}
+		try {
+			rc.call("GET", Arrays.asList("k4").iterator(), cb);
+			throw new RuntimeException("call did not fail after close");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		if (!Arrays.<Object>asList(OpaDef.ERR_CLOSED, "v1", "v2", OpaDef.ERR_CLOSED).equals(got)) {
+			throw new RuntimeException("wrong results: " + got);
+		}
+	}
+
+	// returns the callback of the request that was sent after the first num requests; null if not sent yet
+	private static CallbackSF<Object,OpaRpcError> sentCallback(RecordingClient c, int num) {
+		synchronized (c) {
+			return c.callbacks.size() > num ? c.callbacks.get(num) : null;
+		}
+	}
+
+	/**
+	 * Make sure that a pool warms up its connections, spreads requests over them, replaces a dead connection,
+	 * and sends a slow hedged request again on another connection (using only the first response).
+	 */
+	private static void testClientPool() throws IOException, InterruptedException {
+		final List<RecordingClient> conns = new ArrayList<RecordingClient>();
+		final AtomicBoolean respond = new AtomicBoolean(false);
+		OpaClientPool.Connector connector = new OpaClientPool.Connector() {
+			@Override
+			public OpaClient connect() throws IOException {
+				RecordingClient c = new RecordingClient() {
+					@Override
+					public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+						super.call(cmd, args, cb);
+						if (cb != null && ("PING".contentEquals(cmd) || respond.get())) {
+							cb.onSuccess("ok");
+						}
+					}
+				};
+				synchronized (conns) {
+					conns.add(c);
+				}
+				return c;
+			}
+			@Override
+			public void close(OpaClient c) {
+				((RecordingClient) c).closed = true;
+			}
+		};
+		final List<Object> got = new ArrayList<Object>();
+		CallbackSF<Object,OpaRpcError> cb = new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public synchronized void onSuccess(Object result) {
+				got.add(result);
+			}
+			@Override
+			public synchronized void onFailure(OpaRpcError error) {
+				got.add(Integer.valueOf(error.code));
+			}
+		};
+
+		OpaClientPool p = new OpaClientPool(connector, 2);
+		RecordingClient a = conns.get(0);
+		RecordingClient b = conns.get(1);
+		p.call("GET", Arrays.asList("k1").iterator(), cb);
+		p.call("GET", Arrays.asList("k2").iterator(), cb);
+		if (!a.sent.equals(Arrays.asList("PING", "GET", "k1")) && !a.sent.equals(Arrays.asList("PING", "GET", "k2"))) {
+			throw new RuntimeException("requests not spread over connections: " + a.sent + " " + b.sent);
+		}
+
+		// a request that fails with ERR_CLOSED marks its connection as dead
+		a.callbacks.get(1).onFailure(OpaClientUtils.CLOSED_ERROR);
+		b.callbacks.get(1).onSuccess("v");
+		for (int i = 0; i < 5000 && p.numAlive() < 2; ++i) {
+			Thread.sleep(1);
+		}
+		RecordingClient c;
+		synchronized (conns) {
+			c = conns.size() == 3 ? conns.get(2) : null;
+		}
+		if (!a.closed || p.numAlive() != 2 || c == null || !c.sent.equals(Arrays.asList("PING"))) {
+			throw new RuntimeException("dead connection was not replaced");
+		}
+
+		// measure response times of hedged commands, then leave a request without a response
+		p.setHedging(50);
+		respond.set(true);
+		for (int i = 0; i < 64; ++i) {
+			p.call("DGET", Arrays.asList("h", "f").iterator(), cb);
+		}
+		respond.set(false);
+		int numB = b.callbacks.size();
+		int numC = c.callbacks.size();
+		p.call("DGET", Arrays.asList("h", "f").iterator(), cb);
+		CallbackSF<Object,OpaRpcError> first = sentCallback(b, numB);
+		RecordingClient other = c;
+		int numOther = numC;
+		if (first == null) {
+			first = sentCallback(c, numC);
+			other = b;
+			numOther = numB;
+		}
+		CallbackSF<Object,OpaRpcError> second = null;
+		for (int i = 0; i < 5000 && (second = sentCallback(other, numOther)) == null; ++i) {
+			Thread.sleep(1);
+		}
+		if (first == null || second == null) {
+			throw new RuntimeException("slow request was not hedged");
+		}
+		second.onSuccess("hedged");
+		first.onSuccess("late");
+		p.close();
+		List<Object> expect = new ArrayList<Object>();
+		expect.add(OpaDef.ERR_CLOSED);
+		expect.add("v");
+		for (int i = 0; i < 64; ++i) {
+			expect.add("ok");
+		}
+		expect.add("hedged");
+		if (!expect.equals(got) || !b.closed || !c.closed) {
+			throw new RuntimeException("wrong results from pool: " + got);
+		}
+	}
+
+	/**
+	 * Make sure that reads go to the replica and other commands to the primary, that a session reads from the
+	 * primary only until its stickiness expires, and that reads go to the primary when the replica is closed.
+	 */
+	private static void testReplicaClient() throws InterruptedException {
+		RecordingClient primary = new RecordingClient();
+		RecordingClient replica = new RecordingClient();
+		OpaReplicaClient rc = new OpaReplicaClient(primary, replica);
+		rc.call("DGET", Arrays.asList("k", "f").iterator(), null);
+		rc.call("DSET", Arrays.asList("k", "f", "v").iterator(), null);
+		rc.call("GET", Arrays.asList("a").iterator(), null);
+		rc.getCommandTable().setRead("GET", true);
+		rc.call("GET", Arrays.asList("b").iterator(), null);
+
+		OpaReplicaClient.Session s = rc.newSession(100, TimeUnit.MILLISECONDS);
+		s.call("DGET", Arrays.asList("s1").iterator(), null);
+		s.call("DSET", Arrays.asList("s2", "f", "v").iterator(), null);
+		s.call("DGET", Arrays.asList("s3").iterator(), null);
+		Thread.sleep(150);
+		s.call("DGET", Arrays.asList("s4").iterator(), null);
+
+		replica.closed = true;
+		rc.call("DGET", Arrays.asList("c").iterator(), null);
+
+		List<Object> expectPrimary = Arrays.<Object>asList("DSET", "k", "f", "v", "GET", "a", "DSET", "s2", "f", "v", "DGET", "s3", "DGET", "c");
+		List<Object> expectReplica = Arrays.<Object>asList("DGET", "k", "f", "GET", "b", "DGET", "s1", "DGET", "s4");
+		if (!expectPrimary.equals(primary.sent) || !expectReplica.equals(replica.sent)) {
+			throw new RuntimeException("commands sent to wrong server: " + primary.sent + " " + replica.sent);
+		}
+
+		// a closed replica that reads the args before it throws does not take them from the primary
+		primary = new RecordingClient();
+		rc = new OpaReplicaClient(primary, new RecordingClient() {
+			@Override
+			public synchronized void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> cb) {
+				OpaClientUtils.toList(args);
+				throw new IllegalStateException("closed");
+			}
+		});
+		rc.call("DGET", Arrays.asList("k", "f").iterator(), null);
+		rc.callA("DGET", Arrays.asList("k2").iterator(), null);
+		rc.callID("id", "DGET", Arrays.asList("k3").iterator());
+		if (!Arrays.<Object>asList("DGET", "k", "f", "DGET", "k2", "DGET", "k3").equals(primary.sent)) {
+			throw new RuntimeException("args were lost: " + primary.sent);
+		}
+	}
+
+	/**
+	 * Make sure that a cached read is not sent again, that writes and invalidation messages remove entries,
+	 * that a response to a read that was pending when its key was invalidated is not cached, and that the
+	 * cache is limited by size.
+	 */
+	private static void testNearCache() {
+		final Map<Object,CallbackSF<Object,OpaRpcError>> registered = new HashMap<Object,CallbackSF<Object,OpaRpcError>>();
+		RecordingClient c = new RecordingClient() {
+			@Override
+			public CallbackSF<Object,OpaRpcError> registerCB(Object id, CallbackSF<Object,OpaRpcError> cb) {
+				return registered.put(id, cb);
+			}
+		};
+		final List<Object> got = new ArrayList<Object>();
+		CallbackSF<Object,OpaRpcError> cb = new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got.add(result);
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				got.add(Integer.valueOf(error.code));
+			}
+		};
+		OpaNearCache nc = new OpaNearCache(c, 1024 * 1024);
+
+		nc.call("DGET", Arrays.asList("k", "f").iterator(), cb);
+		c.callbacks.get(0).onSuccess("v1");
+		nc.call("DGET", Arrays.asList(new StringBuilder("k"), "f").iterator(), cb);
+		if (c.callbacks.size() != 1 || !Arrays.<Object>asList("v1", "v1").equals(got) || nc.getMetrics().hits != 1) {
+			throw new RuntimeException("cached read was sent: " + c.sent + " " + got);
+		}
+
+		// a write invalidates its key
+		nc.call("DSET", Arrays.asList("k", "f", "v2").iterator(), null);
+		nc.call("DGET", Arrays.asList("k", "f").iterator(), cb);
+		if (c.callbacks.size() != 3) {
+			throw new RuntimeException("read after write was not sent: " + c.sent);
+		}
+		// the key is invalidated while the read is pending; the response is not cached
+		nc.invalidate("k");
+		c.callbacks.get(2).onSuccess("v2");
+		nc.call("DGET", Arrays.asList("k", "f").iterator(), cb);
+		if (c.callbacks.size() != 4 || nc.getMetrics().entries != 0) {
+			throw new RuntimeException("stale response was cached: " + c.sent);
+		}
+		c.callbacks.get(3).onSuccess("v2");
+
+		// invalidation messages remove entries; other messages go to the registered callback
+		final List<Object> msgs = new ArrayList<Object>();
+		nc.listen("_pubsub", "inval");
+		nc.registerCB("_pubsub", new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				msgs.add(result);
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {}
+		});
+		CallbackSF<Object,OpaRpcError> dispatcher = registered.get("_pubsub");
+		dispatcher.onSuccess(Arrays.asList("other", "m"));
+		dispatcher.onSuccess(Arrays.asList(new StringBuilder("inval"), "k"));
+		nc.call("DGET", Arrays.asList("k", "f").iterator(), cb);
+		if (c.callbacks.size() != 6 || !Arrays.asList(Arrays.asList("other", "m")).equals(msgs)
+				|| !c.sent.contains("SUBSCRIBE") || !c.sent.contains("inval")) {
+			throw new RuntimeException("invalidation message was not handled: " + c.sent + " " + msgs);
+		}
+
+		// the cache is limited by the estimated size of its entries
+		c = new RecordingClient();
+		nc = new OpaNearCache(c, 16 * 1024);
+		char[] val = new char[200];
+		Arrays.fill(val, 'v');
+		for (int i = 0; i < 500; ++i) {
+			nc.call("DGET", Arrays.asList("k" + i).iterator(), cb);
+			c.callbacks.get(i).onSuccess(new String(val));
+		}
+		OpaCacheMetrics m = nc.getMetrics();
+		if (m.bytes > 16 * 1024 || m.evictions == 0 || m.entries == 0) {
+			throw new RuntimeException("cache was not limited: " + m);
+		}
+	}
+
+	/**
+	 * Make sure that identical pending reads share 1 request, that a write stops later reads from joining
+	 * earlier requests, and that reads that joined a request that could not be sent fail with ERR_CLOSED.
+	 */
+	private static void testCoalescingClient() {
+		final AtomicBoolean fail = new AtomicBoolean();
+		final OpaCoalescingClient[] cc = new OpaCoalescingClient[1];
+		final List<Object> got = new ArrayList<Object>();
+		final CallbackSF<Object,OpaRpcError> cb = new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				got.add(result);
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				got.add(Integer.valueOf(error.code));
+			}
+		};
+		RecordingClient c = new RecordingClient() {
+			@Override
+			public void call(CharSequence cmd, Iterator<?> args, CallbackSF<Object,OpaRpcError> rcb) {
+				if (fail.getAndSet(false)) {
+					// an identical read joins the request before it fails to send
+					cc[0].call("DGET", Arrays.asList("x").iterator(), cb);
+					throw new IllegalStateException("closed");
+				}
+				super.call(cmd, args, rcb);
+			}
+		};
+		cc[0] = new OpaCoalescingClient(c);
+
+		cc[0].call("DGET", Arrays.asList("k", "f").iterator(), cb);
+		cc[0].call("DGET", Arrays.asList(new StringBuilder("k"), "f").iterator(), cb);
+		cc[0].call("DSET", Arrays.asList("k", "f", "v").iterator(), cb);
+		cc[0].call("DGET", Arrays.asList("k", "f").iterator(), cb);
+		List<Object> expect = Arrays.<Object>asList("DGET", "k", "f", "DSET", "k", "f", "v", "DGET", "k", "f");
+		if (!expect.equals(c.sent) || cc[0].getNumCoalesced() != 1) {
+			throw new RuntimeException("wrong commands sent: " + c.sent);
+		}
+		c.callbacks.get(0).onSuccess("old");
+		c.callbacks.get(1).onSuccess("ok");
+		c.callbacks.get(2).onSuccess("new");
+
+		fail.set(true);
+		try {
+			cc[0].call("DGET", Arrays.asList("x").iterator(), cb);
+			throw new RuntimeException("exception from client was not thrown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		if (!Arrays.<Object>asList("old", "old", "ok", "new", OpaDef.ERR_CLOSED).equals(got) || cc[0].getNumCoalesced() != 2) {
+			throw new RuntimeException("wrong results: " + got);
+		}
+	}
+
+	/**
+	 * Make sure that a batch response handler receives all responses parsed from 1 buffer at once, in order,
+	 * that a response split over 2 buffers is delivered with the second buffer, and that the client's own
+	 * callbacks are not passed to the handler.
+	 */
+	private static void testBatchResponses() throws IOException {
+		final List<Integer> lens = new ArrayList<Integer>();
+		final List<Object> got = new ArrayList<Object>();
+		OpaClientConfig cfg = new OpaClientConfig();
+		cfg.batchResponseHandler = new OpaClientConfig.BatchResponseHandler() {
+			@Override
+			public void handle(CallbackSF<Object,OpaRpcError>[] callbacks, Object[] results, OpaRpcError[] errors, int len) {
+				lens.add(len);
+				for (int i = 0; i < len; ++i) {
+					got.add(callbacks[i]);
+					got.add(errors[i] != null ? Integer.valueOf(errors[i].code) : results[i]);
+				}
+			}
+		};
+		CallbackRing main = new CallbackRing(4);
+		AsyncIdTable auto = new AsyncIdTable(4, null);
+		OpaClientRecvState rs = new OpaClientRecvState(main, auto, new HashMap<Object,CallbackSF<Object,OpaRpcError>>(), null, cfg);
+
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		OpaSerializer ser = new OpaSerializer(bo, 128);
+		for (int i = 0; i < 40; ++i) {
+			main.add(ECHOCB);
+			ser.writeArray(Arrays.asList(null, (long) i).iterator());
+		}
+		long id = auto.put(ECHOERRCB);
+		ser.writeArray(Arrays.asList(id, null, asList(5L, "err")).iterator());
+		// callbacks of the client library are invoked directly rather than passed to the handler, after the
+		// responses that were parsed before them
+		final WaitCallbackSF<Object,OpaRpcError> wcb = new WaitCallbackSF<Object,OpaRpcError>();
+		final List<Integer> lensAtDeadline = new ArrayList<Integer>();
+		main.add(new OpaDeadline(new CallbackSF<Object,OpaRpcError>() {
+			@Override
+			public void onSuccess(Object result) {
+				lensAtDeadline.addAll(lens);
+				wcb.onSuccess(result);
+			}
+			@Override
+			public void onFailure(OpaRpcError error) {
+				wcb.onFailure(error);
+			}
+		}));
+		ser.writeArray(Arrays.asList(null, "deadline").iterator());
+		main.add(ECHOCB);
+		ser.writeArray(Arrays.asList(null, "last").iterator());
+		ser.flush();
+		byte[] b = bo.toByteArray();
+
+		rs.onRecv(b, 0, b.length - 3);
+		if (!"deadline".equals(wcb.getResult())) {
+			throw new RuntimeException("internal callback was not invoked directly");
+		}
+		if (!lensAtDeadline.equals(Arrays.asList(41))) {
+			throw new RuntimeException("internal callback was invoked before earlier responses: " + lensAtDeadline);
+		}
+		rs.onRecv(b, b.length - 3, 3);
+		if (!lens.equals(Arrays.asList(41, 1)) || !got.get(3).equals(1L) || got.get(78) != ECHOCB
+				|| got.get(80) != ECHOERRCB || !got.get(81).equals(5) || !got.get(83).equals("last")) {
+			throw new RuntimeException("wrong batches: " + lens + " " + got);
+		}
+	}
+
+	/**
+	 * Fill the send queue of a client whose OutputStream never returns and make sure that the queue is
+	 * limited by the estimated size of the requests.
+	 */
+	private static void testSendQueueBytes() throws IOException {
+		OutputStream out = new OutputStream() {
+			@Override
+			public synchronized void write(int b) {}
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+		OpaClientConfig cfg = new OpaClientConfig();
+		cfg.sendQueueBytes = 100000;
+		cfg.failWhenFull = true;
+		OpaStreamClient c = new OpaStreamClient(new PipedInputStream(new PipedOutputStream()), out, cfg);
+
+		byte[] val = new byte[10000];
+		int numQueued = 0;
+		try {
+			for (; numQueued < 1000; ++numQueued) {
+				c.call("SET", asIt("k", val), null);
+			}
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		// 1 request is being serialized and the queue is full at 9 requests
+		if (numQueued < 9 || numQueued > 11) {
+			throw new RuntimeException("send queue size was not limited by bytes; num queued: " + numQueued);
+		}
+	}
+
+	private static long getAllocatedBytes(String threadName) {
+		java.lang.management.ThreadMXBean b = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (!(b instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		Thread t = Thread.currentThread();
+		if (threadName != null) {
+			t = null;
+			for (Thread t2 : Thread.getAllStackTraces().keySet()) {
+				if (threadName.equals(t2.getName())) {
+					t = t2;
+				}
+			}
+			if (t == null) {
+				return -1;
+			}
+		}
+		return ((com.sun.management.ThreadMXBean) b).getThreadAllocatedBytes(t.getId());
+	}
+
+	// answers each request that expects a response with PONG, like a server would. requests are read from reqs
+	// and responses are written to resps on a new thread
+	private static void startPongResponder(final InputStream reqs, final OutputStream resps) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				OpaSerializer ser = new OpaSerializer(resps, 4096);
+				OpaPartialParser parser = new OpaPartialParser();
+				OpaPartialParser.Buff b = new OpaPartialParser.Buff();
+				byte[] buff = new byte[4096];
+				try {
+					while (true) {
+						int len = reqs.read(buff);
+						if (len < 0) {
+							break;
+						}
+						b.data = buff;
+						b.idx = 0;
+						b.len = len;
+						Object req;
+						while ((req = parser.parseNext(b)) != OpaPartialParser.NOMORE) {
+							Object id = ((List<?>) req).get(0);
+							if (!Boolean.FALSE.equals(id)) {
+								ser.writeArray(Arrays.asList(id, "PONG").iterator());
+							}
+						}
+						ser.flush();
+					}
+				} catch (IOException e) {
+					// client closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static final long MAXALLOCNOISE = 16 * 1024;
+
+	// returns bytes allocated by the caller and by the send thread during the measured calls; null if counters
+	// are not supported
+	private static long[] callAllocations(OpaClient c, int mode, int its) throws InterruptedException {
+		ParkCallbackSF<Object,OpaRpcError> cb = new ParkCallbackSF<Object,OpaRpcError>();
+		long callerStart = 0;
+		long sendStart = 0;
+		// first pass warms up (ie, grows tables to their steady state size); second pass is measured
+		for (int pass = 0; pass < 2; ++pass) {
+			if (pass == 1) {
+				callerStart = getAllocatedBytes(null);
+				sendStart = getAllocatedBytes("OpaStreamClient-send");
+			}
+			for (int i = 0; i < its; ++i) {
+				if (mode == 0) {
+					c.call("PING", null, null);
+				} else if (mode == 1) {
+					ParkCallbackSF.call(c, "PING", null, cb);
+				} else {
+					ParkCallbackSF.callA(c, "PING", null, cb);
+				}
+			}
+		}
+		long callerBytes = getAllocatedBytes(null) - callerStart;
+		long sendBytes = getAllocatedBytes("OpaStreamClient-send") - sendStart;
+		if (callerStart < 0 || sendStart < 0) {
+			return null;
+		}
+		return new long[] {callerBytes, sendBytes};
+	}
+
+	/**
+	 * Check that steady state calls do not allocate in the client (other than what the caller allocates for
+	 * arguments and callbacks): call() without a callback, call() with a reused callback and callA() with a
+	 * reused callback. Requests are answered by a thread that reads the client's output stream.
+	 */
+	private static void testCallAllocations() throws IOException, InterruptedException {
+		PipedInputStream in = new PipedInputStream(1 << 16);
+		OutputStream resps = new PipedOutputStream(in);
+		PipedInputStream reqs = new PipedInputStream(1 << 16);
+		OutputStream out = new PipedOutputStream(reqs);
+		startPongResponder(reqs, resps);
+		OpaStreamClient c = new OpaStreamClient(in, out);
+
+		String[] names = {"call() without callback", "call() with reused callback", "callA() with reused callback"};
+		int[] its = {1000000, 100000, 100000};
+		for (int mode = 0; mode < names.length; ++mode) {
+			long[] bytes = callAllocations(c, mode, its[mode]);
+			if (bytes == null) {
+				System.out.println("thread allocation counters not supported; skipping allocation test");
+				break;
+			}
+			System.out.println("bytes allocated per " + names[mode] + "; caller: " + ((double) bytes[0] / its[mode]) + "; send thread: " + ((double) bytes[1] / its[mode]));
+			// allow a fixed amount of noise (ie, reading the allocation counters, JIT); an object allocated once
+			// every 100 calls would exceed it
+			if (bytes[0] > MAXALLOCNOISE || bytes[1] > MAXALLOCNOISE) {
+				throw new RuntimeException(names[mode] + " allocates memory");
+			}
+		}
+		in.close();
+		reqs.close();
+	}
+
+	private static void testSyncClient(String host, int port) throws IOException {
+		Socket s = new Socket(host, port);
+		s.setTcpNoDelay(true);
+		OpaSyncClient c = new OpaSyncClient(s.getInputStream(), s.getOutputStream());
+		if (OpaUtils.compare(c.call("PING", null), "PONG") != 0) {
+			throw new RuntimeException("unexpected PING response");
+		}
+		c.startPipeline();
+		c.callVA("ECHO", "pipelined");
+		c.callVA("INVALIDCMD");
+		c.callVA("ECHO", 3);
+		Object[] results = new Object[3];
+		OpaRpcError[] errs = new OpaRpcError[3];
+		if (c.sendPipeline(results, errs) != 1 || errs[1] == null || OpaUtils.compare(results[2], 3) != 0) {
+			throw new RuntimeException("unexpected pipeline response");
+		}
+		try {
+			c.callVA("INVALIDCMD");
+			throw new RuntimeException("expected exception");
+		} catch (OpaRpcException e) {
+			// expected
+		}
+		c.close();
+	}
+
 	// TODO: latency tester
 	// TODO: tester with many concurrent clients loading the db
 	// TODO: tests to validate the db's ops are implemented correctly
@@ -568,6 +1762,22 @@ public class Test {
 		c.registerCB("_pubsub", null);
 	}
 
+	private static void testPubSubMany(OpaClient c, int count) {
+		OpaPubSub ps = OpaPubSub.register(c, "_pubsub", null);
+		List<Object> chans = new ArrayList<Object>(count);
+		for (int i = 0; i < count; ++i) {
+			chans.add("ch" + i);
+		}
+		long time = System.currentTimeMillis();
+		OpaPubSub.Subscription s = ps.subscribe(chans, ECHOERRCB, 1, OpaPubSub.Overflow.DROP_OLDEST);
+		s.cancel();
+		callSync(c, "PING", null);
+		System.out.println("subscribed/unsubscribed " + count + " channels in " + (System.currentTimeMillis() - time) + "ms");
+		c.call("ECHO", asIt("CHANNELS (on next line):"), ECHOCB);
+		c.call("PUBSUB", asIt("CHANNELS"), ECHOCB);
+		c.registerCB("_pubsub", null);
+	}
+
 	private static SSLContext trustAllContext() throws KeyManagementException, NoSuchAlgorithmException {
 		SSLContext c = SSLContext.getInstance("TLS");
 
@@ -599,8 +1809,46 @@ public class Test {
 
 			testSerialize();
 
+			testCallAllocations();
+
+			testAsyncIdTable();
+
+			testCallbackRing();
+
+			testRequestLanes();
+
+			testShardHash();
+
+			testMergeSorted();
+
+			testLatencyHistogram();
+
+			testFrequencySketch();
+
+			testAutoBatcher();
+
+			testCounterAggregator();
+
+			testPubSub();
+
+			testReconnectingClient();
+
+			testClientPool();
+
+			testReplicaClient();
+
+			testCoalescingClient();
+
+			testNearCache();
+
+			testBatchResponses();
+
+			testSendQueueBytes();
+
 			testCloseFromSerializerException(host, port);
 
+			testSyncClient(host, port);
+
 			Socket s = new Socket(host, port);
 			if (!s.getInetAddress().isLoopbackAddress()) {
 				// TODO: handle --cacert ca.crt, --sni opad, etc on command line and validate server identity?
@@ -645,6 +1893,10 @@ public class Test {
 
 			check(c, "PONG", "PING");
 
+			testBatch(c);
+
+			testDeadline(c);
+
 			check(c, 1, "INCR", "i1");
 			check(c, 0, "INCR", "i1", -1);
 			check(c, -2, "INCR", "i1", -2);
@@ -665,6 +1917,8 @@ public class Test {
 
 			testSubMany(c, 100000);
 
+			testPubSubMany(c, 100000);
+
 			c.call("PING", null, ECHOCB);
 			/*
 			List<Object> l = new ArrayList<Object>();
@@ -683,6 +1937,7 @@ public class Test {
 			boolean runBench = false;
 			if (runBench) {
 				bench(c);
+				benchAutoIdCalls(host, port, 10000);
 			}
 
 
@@ -16,6 +16,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 import com.yahoo.ycsb.ByteArrayByteIterator;
 import com.yahoo.ycsb.ByteIterator;
@@ -24,6 +25,7 @@ import com.yahoo.ycsb.DBException;
 import com.yahoo.ycsb.Status;
 
 import com.opatomic.CallbackSF;
+import com.opatomic.OpaAutoBatcher;
 import com.opatomic.OpaClient;
 import com.opatomic.OpaRpcError;
 import com.opatomic.OpaStreamClient;
@@ -35,6 +37,7 @@ import com.opatomic.WaitCallbackSF;
 public class OpatomicAsyncClient extends DB {
 	private Socket mSocket;
 	private OpaClient mClient;
+	private OpaAutoBatcher mBatcher;
 	private boolean mInsertStrict;
 	private boolean mUseDMGET = true;
 	private OpaRpcError mError;
@@ -47,6 +50,9 @@ public class OpatomicAsyncClient extends DB {
 		String pass = props.getProperty("opatomic.password", null);
 		mInsertStrict = props.getProperty("opatomic.insertstrict", "false").equalsIgnoreCase("true");
 		String ctype = props.getProperty("opatomic.ctype", OpaStreamClient.class.getName());
+		mUseDMGET = props.getProperty("opatomic.usedmget", "true").equalsIgnoreCase("true");
+		// hold DGETs for this many microseconds so that reads of the same key are sent as 1 DMGET
+		long batchMicros = Long.parseLong(props.getProperty("opatomic.autobatchmicros", "0"));
 		//System.out.println("using " + ctype + " client");
 
 		try {
@@ -65,6 +71,9 @@ public class OpatomicAsyncClient extends DB {
 		} catch (IOException e) {
 			throw new DBException(e);
 		}
+		if (batchMicros > 0) {
+			mBatcher = new OpaAutoBatcher(mClient, batchMicros, TimeUnit.MICROSECONDS, 1024);
+		}
 
 		if (pass != null) {
 			Object r = callAndWait("AUTH", asIt(pass));
@@ -99,6 +108,9 @@ public class OpatomicAsyncClient extends DB {
 	@Override
 	public void cleanup() throws DBException {
 		// TODO: just close socket rather than calling QUIT and waiting for response?
+		if (mBatcher != null) {
+			mBatcher.close();
+		}
 		WaitCallbackSF<Object,OpaRpcError> wcb = new WaitCallbackSF<Object,OpaRpcError>();
 		if (mClient instanceof OpaStreamClient) {
 			((OpaStreamClient)mClient).quit("QUIT", null, wcb);
@@ -193,6 +205,8 @@ public class OpatomicAsyncClient extends DB {
 					});
 				}
 			} else {
+				// DGETs of the same key are merged into 1 DMGET if auto batching is enabled
+				OpaClient c = mBatcher != null ? mBatcher : mClient;
 				ToMap cb = new ToMap(fields.iterator(), result);
 				int count = fields.size();
 				if (wait && count > 0) {
@@ -200,11 +214,13 @@ public class OpatomicAsyncClient extends DB {
 				}
 				Iterator<String> it = fields.iterator();
 				for (int i = 0; i < count; ++i) {
-					mClient.call("DGET", asIt(key, it.next()), cb);
+					c.call("DGET", asIt(key, it.next()), cb);
 				}
 				if (wait && it.hasNext()) {
 					String lastField = it.next();
-					Object last = callAndWait("DGET", asIt(key, lastField));
+					WaitCallbackSF<Object,OpaRpcError> wcb = new WaitCallbackSF<Object,OpaRpcError>();
+					c.call("DGET", asIt(key, lastField), wcb);
+					Object last = waitForResult(wcb);
 					result.put(lastField, new ByteArrayByteIterator((byte[]) last));
 				}
 			}